@@ -5,6 +5,7 @@ import com.replaymod.render.RenderSettings;
 import com.replaymod.render.blend.BlendState;
 import com.replaymod.render.capturer.RenderInfo;
 import com.replaymod.render.hooks.ForceChunkLoadingHook;
+import com.replaymod.render.rendering.PipelineStatistics;
 import com.replaymod.render.rendering.Pipelines;
 import de.johni0702.minecraft.gui.utils.lwjgl.Dimension;
 import de.johni0702.minecraft.gui.utils.lwjgl.ReadableDimension;
@@ -19,6 +20,7 @@ public class ScreenshotRenderer implements RenderInfo {
     private final Minecraft mc = MCVer.getMinecraft();
 
     private final RenderSettings settings;
+    private final PipelineStatistics statistics = new PipelineStatistics();
 
     private int framesDone;
 
@@ -83,4 +85,9 @@ public class ScreenshotRenderer implements RenderInfo {
     public RenderSettings getRenderSettings() {
         return settings;
     }
+
+    @Override
+    public PipelineStatistics getStatistics() {
+        return statistics;
+    }
 }
@@ -4,10 +4,11 @@ import com.replaymod.core.ReplayMod;
 import com.replaymod.core.utils.Utils;
 import com.replaymod.core.versions.MCVer;
 import com.replaymod.extras.ReplayModExtras;
-import com.replaymod.gui.versions.Image;
 import com.replaymod.render.frame.BitmapFrame;
 import com.replaymod.render.rendering.Channel;
 import com.replaymod.render.rendering.FrameConsumer;
+import com.replaymod.render.utils.ByteBufferPool;
+import com.replaymod.render.utils.PngEncoder;
 import com.replaymod.replay.ReplayModReplay;
 import de.johni0702.minecraft.gui.utils.lwjgl.ReadableDimension;
 import net.minecraft.crash.CrashReport;
@@ -29,23 +30,16 @@ public class ScreenshotWriter implements FrameConsumer<BitmapFrame> {
         BitmapFrame frame = channels.get(Channel.BRGA);
 
         // skip the first frame, in which not all chunks are properly loaded
-        if (frame.getFrameId() == 0) return;
+        if (frame.getFrameId() == 0) {
+            channels.values().forEach(it -> ByteBufferPool.release(it.getByteBuffer()));
+            return;
+        }
 
         final ReadableDimension frameSize = frame.getSize();
-        try (Image img = new Image(frameSize.getWidth(), frameSize.getHeight())) {
-            for (int y = 0; y < frameSize.getHeight(); y++) {
-                for (int x = 0; x < frameSize.getWidth(); x++) {
-                    byte b = frame.getByteBuffer().get();
-                    byte g = frame.getByteBuffer().get();
-                    byte r = frame.getByteBuffer().get();
-                    byte a = frame.getByteBuffer().get();
-
-                    img.setRGBA(x, y, r, g, b, 0xff);
-                }
-            }
-
+        try {
             outputFile.getParentFile().mkdirs();
-            img.writePNG(outputFile);
+            PngEncoder.fromSettings(ReplayMod.instance.getSettingsRegistry())
+                    .writeBgra(frame.getByteBuffer(), frameSize.getWidth(), frameSize.getHeight(), false, outputFile);
         } catch (OutOfMemoryError e) {
             e.printStackTrace();
             CrashReport report = CrashReport.makeCrashReport(e, "Exporting frame");
@@ -56,6 +50,8 @@ public class ScreenshotWriter implements FrameConsumer<BitmapFrame> {
             ReplayMod.instance.runLater(() -> Utils.error(ReplayModExtras.LOGGER,
                     ReplayModReplay.instance.getReplayHandler().getOverlay(),
                     report, null));
+        } finally {
+            channels.values().forEach(it -> ByteBufferPool.release(it.getByteBuffer()));
         }
     }
 
@@ -5,19 +5,26 @@ import com.replaymod.render.frame.BitmapFrame;
 import com.replaymod.render.rendering.Channel;
 import com.replaymod.render.rendering.FrameConsumer;
 import com.replaymod.render.utils.ByteBufferPool;
+import com.replaymod.render.utils.TileExecutor;
 import de.johni0702.minecraft.gui.utils.lwjgl.ReadableDimension;
 import net.minecraft.crash.CrashReport;
 import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.util.tinyexr.EXRChannelInfo;
 import org.lwjgl.util.tinyexr.EXRHeader;
 import org.lwjgl.util.tinyexr.EXRImage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import static org.lwjgl.system.MemoryStack.*;
@@ -25,21 +32,68 @@ import static org.lwjgl.system.MemoryUtil.*;
 import static org.lwjgl.util.tinyexr.TinyEXR.*;
 
 public class EXRWriter implements FrameConsumer<BitmapFrame> {
+    /**
+     * Normalized float value for each possible channel byte.
+     */
+    private static final float[] UNORM8 = new float[256];
+    static {
+        for (int i = 0; i < UNORM8.length; i++) {
+            UNORM8[i] = i / 255f;
+        }
+    }
+    /**
+     * Rows converted by each task of the {@link TileExecutor}, each channel is first collected in an array and then
+     * copied into its plane.
+     */
+    private static final int ROWS_PER_TASK = 16;
 
     private final Path outputFolder;
+    private final int firstFrame;
+    private final int compressionType;
 
-    public EXRWriter(Path outputFolder) throws IOException {
+    /**
+     * Float buffers for the channels of a frame, one per thread as frames are written concurrently.
+     */
+    private final ThreadLocal<FloatBuffer> scratch = new ThreadLocal<>();
+    private final List<FloatBuffer> allScratch = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param firstFrame frame of the timeline with which the first frame written to this writer corresponds
+     */
+    public EXRWriter(Path outputFolder, RenderSettings.ExrCompression compression, int firstFrame) throws IOException {
         this.outputFolder = outputFolder;
+        this.firstFrame = firstFrame;
+        switch (compression) {
+            case RLE:
+                compressionType = TINYEXR_COMPRESSIONTYPE_RLE;
+                break;
+            case ZIP:
+                compressionType = TINYEXR_COMPRESSIONTYPE_ZIP;
+                break;
+            case PIZ:
+                compressionType = TINYEXR_COMPRESSIONTYPE_PIZ;
+                break;
+            default:
+                compressionType = TINYEXR_COMPRESSIONTYPE_NONE;
+        }
 
         Files.createDirectories(outputFolder);
     }
 
+    @Override
+    public boolean isParallelCapable() {
+        // Every frame goes into its own file
+        return true;
+    }
+
     @Override
     public void consume(Map<Channel, BitmapFrame> channels) {
         BitmapFrame bgraFrame = channels.get(Channel.BRGA);
         BitmapFrame depthFrame = channels.get(Channel.DEPTH);
 
-        Path path = outputFolder.resolve(bgraFrame.getFrameId() + ".exr");
+        Path path = outputFolder.resolve(firstFrame + bgraFrame.getFrameId() + ".exr");
+        // Only complete frames get their final name, so an interrupted render can skip them when it is resumed
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
         ReadableDimension size = bgraFrame.getSize();
         ByteBuffer bgra = bgraFrame.getByteBuffer();
         int width = size.getWidth();
@@ -55,13 +109,14 @@ public class EXRWriter implements FrameConsumer<BitmapFrame> {
         EXRImage image = EXRImage.mallocStack();
         InitEXRImage(image);
         PointerBuffer imagePointers = stackMallocPointer(numChannels);
-        FloatBuffer images = memAllocFloat(width * height * numChannels);
+        FloatBuffer images = getScratch(width * height * numChannels);
         PointerBuffer err = stackMallocPointer(1);
         try {
             header.num_channels(numChannels);
             header.channels(channelInfos);
             header.pixel_types(pixelTypes);
             header.requested_pixel_types(requestedPixelTypes);
+            header.compression_type(compressionType);
 
             // Some readers ignore this, so we use the most expected order
             memASCII("A", true, channelInfos.get(0).name());
@@ -81,45 +136,77 @@ public class EXRWriter implements FrameConsumer<BitmapFrame> {
             image.width(width);
             image.height(height);
             image.images(imagePointers);
-            FloatBuffer[] bgrChannels = new FloatBuffer[4];
-            FloatBuffer depthChannel = null;
+            int pixels = width * height;
             for (int i = 0; i < numChannels; i++) {
-                FloatBuffer channel = images.slice();
-                channel.position(width * height * i);
+                FloatBuffer channel = images.duplicate();
+                channel.position(pixels * i);
                 imagePointers.put(i, channel.slice());
-                if (i == 4) {
-                    depthChannel = channel;
-                } else {
-                    bgrChannels[(i + 3) % 4] = channel;
-                }
             }
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    for (FloatBuffer channel : bgrChannels) {
-                        channel.put(((int) bgra.get() & 0xff) / 255f);
-                    }
+            // Channels are A, B, G, R, so the offset of a channel is its distance from alpha in BGRA
+            IntBuffer pixelInts = bgra.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            int rowTasks = (height + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+            TileExecutor.forEach(rowTasks, task -> {
+                float[] lut = UNORM8;
+                int from = task * ROWS_PER_TASK * width;
+                int to = Math.min(height, (task + 1) * ROWS_PER_TASK) * width;
+                float[] a = new float[to - from], b = new float[to - from], g = new float[to - from], r = new float[to - from];
+                for (int i = from; i < to; i++) {
+                    int pixel = pixelInts.get(i);
+                    b[i - from] = lut[pixel & 0xff];
+                    g[i - from] = lut[(pixel >>> 8) & 0xff];
+                    r[i - from] = lut[(pixel >>> 16) & 0xff];
+                    a[i - from] = lut[pixel >>> 24];
                 }
-            }
-            if (depthFrame != null && depthChannel != null) {
+                FloatBuffer out = images.duplicate();
+                out.position(from);
+                out.put(a);
+                out.position(pixels + from);
+                out.put(b);
+                out.position(pixels * 2 + from);
+                out.put(g);
+                out.position(pixels * 3 + from);
+                out.put(r);
+            });
+            if (depthFrame != null) {
+                FloatBuffer depthChannel = images.duplicate();
+                depthChannel.position(pixels * 4);
                 depthChannel.put(depthFrame.getByteBuffer().asFloatBuffer());
             }
 
-            int ret = SaveEXRImageToFile(image, header, path.toString(), err);
+            int ret = SaveEXRImageToFile(image, header, tmpPath.toString(), err);
             if (ret != TINYEXR_SUCCESS) {
                 String message = err.getStringASCII(0);
                 FreeEXRErrorMessage(err.getByteBuffer(0));
                 throw new IOException(message);
             }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
         } catch (Throwable t) {
             MCVer.getMinecraft().crashed(CrashReport.makeCrashReport(t, "Exporting EXR frame"));
         } finally {
-            memFree(images);
             stackPop();
             channels.values().forEach(it -> ByteBufferPool.release(it.getByteBuffer()));
         }
     }
 
+    private FloatBuffer getScratch(int size) {
+        FloatBuffer buffer = scratch.get();
+        if (buffer == null || buffer.capacity() < size) {
+            if (buffer != null) {
+                allScratch.remove(buffer);
+                memFree(buffer);
+            }
+            buffer = memAllocFloat(size);
+            scratch.set(buffer);
+            allScratch.add(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
     @Override
     public void close() {
+        // All frames have been written by now
+        allScratch.forEach(MemoryUtil::memFree);
+        allScratch.clear();
     }
 }
@@ -4,139 +4,288 @@ import com.replaymod.core.versions.MCVer;
 import com.replaymod.render.frame.BitmapFrame;
 import com.replaymod.render.rendering.Channel;
 import com.replaymod.render.rendering.FrameConsumer;
+import com.replaymod.render.rendering.PipelineStatistics;
 import com.replaymod.render.rendering.VideoRenderer;
 import com.replaymod.render.utils.ByteBufferPool;
 import com.replaymod.render.utils.StreamPipe;
 import de.johni0702.minecraft.gui.utils.lwjgl.ReadableDimension;
 import net.minecraft.crash.CrashReport;
 import net.minecraft.crash.CrashReportCategory;
+import net.minecraft.crash.ReportedException;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.commons.lang3.StringUtils;
 
 import java.io.*;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static com.replaymod.render.ReplayModRender.LOGGER;
 import static org.apache.commons.lang3.Validate.isTrue;
 
 public class FFmpegWriter implements FrameConsumer<BitmapFrame> {
+    /**
+     * Memory the write queue may use at most, the number of frames is derived from this. Queued frames are still
+     * pooled buffers, so this counts against the budget of the {@link ByteBufferPool}.
+     */
+    private static final long MAX_QUEUE_BYTES = 256 << 20;
+    private static final int MIN_QUEUE_FRAMES = 2;
+    private static final int MAX_QUEUE_FRAMES = 16;
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+    /**
+     * Size of the heap buffer through which frames are copied into the stdin of ffmpeg.
+     */
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+    /**
+     * Length of each segment of a resumable render. At most this much of the video is lost when rendering is
+     * interrupted.
+     */
+    private static final int RESUMABLE_SEGMENT_SECONDS = 10;
 
-    private final VideoRenderer renderer;
+    private final Consumer<Throwable> failureHandler;
     private final RenderSettings settings;
-    private final Process process;
-    private final OutputStream outputStream;
-    private final WritableByteChannel channel;
+    private final PipelineStatistics statistics;
+    private final File outputFolder;
+    private final String fileName;
     private final String commandArgs;
     private volatile boolean aborted;
+    private volatile boolean failed;
 
-    private ByteArrayOutputStream ffmpegLog = new ByteArrayOutputStream(4096);
+    private final Encoder encoder;
+    /**
+     * If the render is resumable, the video is split into segments of this many frames, see
+     * {@link RenderCheckpoint.Run}. Those are joined by {@link #joinSegments()}.
+     */
+    private final int segmentFrames;
+    private final RenderCheckpoint checkpoint;
+    private final RenderCheckpoint.Run run;
+    private int framesConsumed;
 
     public FFmpegWriter(final VideoRenderer renderer) throws IOException {
-        this.renderer = renderer;
-        this.settings = renderer.getRenderSettings();
+        this(renderer, renderer.getRenderSettings(), null, 0);
+    }
 
-        File outputFolder = settings.getOutputFile().getParentFile();
+    /**
+     * @param settings   settings of the output written by this writer, which may differ from those of the renderer
+     * @param checkpoint checkpoint of a resumable render, {@code null} if it is not resumable
+     * @param firstFrame frame of the timeline with which the first frame written to this writer corresponds
+     */
+    public FFmpegWriter(final VideoRenderer renderer, RenderSettings settings, RenderCheckpoint checkpoint, int firstFrame) throws IOException {
+        this(settings, renderer.getStatistics(), cause -> {
+            if (cause instanceof ReportedException) {
+                MCVer.getMinecraft().crashed(((ReportedException) cause).getCrashReport());
+            } else {
+                renderer.setFailure(cause);
+            }
+        }, checkpoint, firstFrame);
+    }
+
+    /**
+     * @param failureHandler called with an {@link FFmpegStartupException} if ffmpeg could not be started (e.g.
+     *                       because of invalid arguments) or with a {@link ReportedException} for all other failures
+     */
+    public FFmpegWriter(RenderSettings settings, PipelineStatistics statistics, Consumer<Throwable> failureHandler) throws IOException {
+        this(settings, statistics, failureHandler, null, 0);
+    }
+
+    private FFmpegWriter(RenderSettings settings, PipelineStatistics statistics, Consumer<Throwable> failureHandler,
+                         RenderCheckpoint checkpoint, int firstFrame) throws IOException {
+        this.settings = settings;
+        this.statistics = statistics;
+        this.failureHandler = failureHandler;
+
+        outputFolder = settings.getOutputFile().getParentFile();
         FileUtils.forceMkdir(outputFolder);
-        String fileName = settings.getOutputFile().getName();
+        fileName = settings.getOutputFile().getName();
 
-        commandArgs = settings.getExportArguments()
-                .replace("%WIDTH%", String.valueOf(settings.getVideoWidth()))
-                .replace("%HEIGHT%", String.valueOf(settings.getVideoHeight()))
+        String commandArgs = settings.getExportArguments()
+                .replace("%WIDTH%", String.valueOf(settings.getTargetVideoWidth()))
+                .replace("%HEIGHT%", String.valueOf(settings.getTargetVideoHeight()))
                 .replace("%FPS%", String.valueOf(settings.getFramesPerSecond()))
-                .replace("%FILENAME%", fileName)
                 .replace("%BITRATE%", String.valueOf(settings.getBitRate()))
                 .replace("%FILTERS%", settings.getVideoFilters());
+        if (settings.getFFmpegInputFormat() != RenderSettings.PixelFormat.BGRA) {
+            // Frames are converted on our side, see YuvConversionProcessor
+            commandArgs = StringUtils.replaceOnce(commandArgs, RenderSettings.PixelFormat.BGRA.getInputArgument(),
+                    settings.getFFmpegInputFormat().getInputArgument());
+        }
 
-        String executable = settings.getExportCommandOrDefault();
-        LOGGER.info("Starting {} with args: {}", executable, commandArgs);
-        String[] cmdline;
-        try {
-            cmdline = new CommandLine(executable).addArguments(commandArgs, false).toStrings();
-        } catch (IllegalArgumentException e) {
-            LOGGER.error("Failed to parse ffmpeg command line:", e);
-            throw new FFmpegStartupException(settings, e.getLocalizedMessage());
+        // Segments can only be produced if we know where the output file goes
+        if (checkpoint != null && !commandArgs.contains("\"%FILENAME%\"")) {
+            LOGGER.warn("Export arguments do not end with the output file, encoding without checkpoints.");
+            checkpoint = null;
         }
-        try {
-            process = new ProcessBuilder(cmdline).directory(outputFolder).start();
-        } catch (IOException e) {
-            throw new NoFFmpegException(e);
+        int fps = settings.getFramesPerSecond();
+        int segmentSeconds = checkpoint != null ? RESUMABLE_SEGMENT_SECONDS : 0;
+        segmentFrames = fps * segmentSeconds;
+        if (segmentFrames > 0) {
+            this.checkpoint = checkpoint;
+            this.run = new RenderCheckpoint.Run(firstFrame, 1, segmentFrames);
+            this.checkpoint.addRun(run, settings.getOutputFile());
+        } else {
+            this.checkpoint = null;
+            this.run = null;
+        }
+
+        int frameBytes = Math.max(1, settings.getFFmpegInputFormat().getFrameSize(settings.getTargetVideoWidth(), settings.getTargetVideoHeight()));
+        int queueFrames = (int) Math.max(MIN_QUEUE_FRAMES, Math.min(MAX_QUEUE_FRAMES, MAX_QUEUE_BYTES / frameBytes));
+        statistics.setQueueCapacity(PipelineStatistics.Queue.ENCODER, queueFrames);
+
+        String args;
+        if (segmentFrames > 0) {
+            String segmentArgs = "-force_key_frames expr:gte(t,n_forced*" + segmentSeconds + ")"
+                    + " -f segment -segment_time " + segmentSeconds + " -reset_timestamps 1 ";
+            args = StringUtils.replaceOnce(commandArgs, "\"%FILENAME%\"",
+                    segmentArgs + "\"" + run.getSegmentPattern(fileName, 0) + "\"");
+        } else {
+            args = commandArgs.replace("%FILENAME%", fileName);
         }
         File exportLogFile = new File(MCVer.getMinecraft().gameDir, "export.log");
-        OutputStream exportLogOut = new TeeOutputStream(new FileOutputStream(exportLogFile), ffmpegLog);
-        new StreamPipe(process.getInputStream(), exportLogOut).start();
-        new StreamPipe(process.getErrorStream(), exportLogOut).start();
-        outputStream = process.getOutputStream();
-        channel = Channels.newChannel(outputStream);
+        encoder = new Encoder(args, new FileOutputStream(exportLogFile), queueFrames);
+        this.commandArgs = encoder.commandArgs;
     }
 
     @Override
     public void close() throws IOException {
-        IOUtils.closeQuietly(outputStream);
+        encoder.endOfStream();
+        encoder.close();
 
-        long startTime = System.nanoTime();
-        long rem = TimeUnit.SECONDS.toNanos(30);
-        do {
-            try {
-                process.exitValue();
-                break;
-            } catch (IllegalThreadStateException ex) {
-                if (rem > 0) {
-                    try {
-                        Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(rem) + 1, 100));
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                }
+        // Segments of a resumable render are kept, so it can continue from them later on
+        if (aborted && segmentFrames > 0 && !checkpoint.isPersistent()) {
+            checkpoint.deleteSegments(settings.getOutputFile());
+        }
+    }
+
+    /**
+     * Joins the segments produced by this and by earlier runs of a resumed render into the final video, without
+     * re-encoding. Does nothing if the video was not written in segments.
+     * Must only be called after this writer has been closed.
+     */
+    public void joinSegments() throws IOException {
+        if (segmentFrames == 0) {
+            return;
+        }
+        List<File> segments = checkpoint.getSegments(settings.getOutputFile(), framesConsumed);
+        join(settings, segments);
+        checkpoint.deleteSegments(settings.getOutputFile());
+    }
+
+    /**
+     * Joins videos into the output file of the given settings, without re-encoding. The videos have to be in the
+     * same folder as the output file and must have been encoded with the same settings.
+     */
+    public static void join(RenderSettings settings, List<File> parts) throws IOException {
+        File outputFolder = settings.getOutputFile().getParentFile();
+        String fileName = settings.getOutputFile().getName();
+        File listFile = new File(outputFolder, fileName + ".segments.txt");
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(listFile), StandardCharsets.UTF_8))) {
+            for (File part : parts) {
+                writer.println("file '" + part.getName().replace("'", "'\\''") + "'");
             }
-            rem = TimeUnit.SECONDS.toNanos(30) - (System.nanoTime() - startTime);
-        } while (rem > 0);
+        }
 
-        process.destroy();
+        String[] cmdline = {settings.getExportCommandOrDefault(), "-y", "-f", "concat", "-safe", "0",
+                "-i", listFile.getName(), "-c", "copy", fileName};
+        LOGGER.info("Joining {} segments: {}", parts.size(), String.join(" ", cmdline));
+        Process process;
+        try {
+            process = new ProcessBuilder(cmdline).directory(outputFolder).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            throw new NoFFmpegException(e);
+        }
+        ByteArrayOutputStream log = new ByteArrayOutputStream(4096);
+        IOUtils.closeQuietly(process.getOutputStream());
+        IOUtils.copy(process.getInputStream(), log);
+        int exitValue;
+        try {
+            exitValue = process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+            throw new InterruptedIOException("Interrupted while joining segments");
+        }
+        if (exitValue != 0) {
+            throw new IOException("Failed to join segments (exit code " + exitValue + "):\n" + log);
+        }
+
+        FileUtils.deleteQuietly(listFile);
     }
 
     @Override
     public void consume(Map<Channel, BitmapFrame> channels) {
         BitmapFrame frame = channels.get(Channel.BRGA);
+        boolean queued = false;
         try {
-            checkSize(frame.getSize());
-            channel.write(frame.getByteBuffer());
-        } catch (Throwable t) {
-            if (aborted) {
-                return;
+            if (settings.getFFmpegInputFormat() == RenderSettings.PixelFormat.BGRA) {
+                checkSize(frame.getSize());
+            } else {
+                int expected = settings.getFFmpegInputFormat().getFrameSize(settings.getTargetVideoWidth(), settings.getTargetVideoHeight());
+                isTrue(frame.getByteBuffer().remaining() == expected, "Frame has to be %d bytes but was %d",
+                        expected, frame.getByteBuffer().remaining());
             }
-            try {
-                // Check whether this is a failure right at the beginning of the rendering process
-                // or at some later point (ffmpeg won't print the output file until the first frame
-                // has been written to stdin, so we can't already check for invalid args in <init>).
-                getVideoFile();
-            } catch (FFmpegStartupException e) {
-                // Possibly invalid ffmpeg arguments
-                renderer.setFailure(e);
+            if (failed) {
                 return;
             }
-            CrashReport report = CrashReport.makeCrashReport(t, "Exporting frame");
-            CrashReportCategory exportDetails = report.makeCategory("Export details");
-            exportDetails.addDetail("Export command", settings::getExportCommand);
-            exportDetails.addDetail("Export args", commandArgs::toString);
-            MCVer.getMinecraft().crashed(report);
+            framesConsumed++;
+            long start = System.nanoTime();
+            encoder.writeQueue.put(frame.getByteBuffer());
+            queued = true;
+            statistics.record(PipelineStatistics.Stage.ENCODER_STALL, System.nanoTime() - start);
+            statistics.recordQueueDepth(PipelineStatistics.Queue.ENCODER, encoder.writeQueue.size());
+        } catch (Throwable t) {
+            handleFailure(t);
         } finally {
-            channels.values().forEach(it -> ByteBufferPool.release(it.getByteBuffer()));
+            for (BitmapFrame it : channels.values()) {
+                // The writer thread releases the frame once it has been written
+                if (!queued || it != frame) {
+                    ByteBufferPool.release(it.getByteBuffer());
+                }
+            }
         }
     }
 
+    private void handleFailure(Throwable t) {
+        if (aborted) {
+            return;
+        }
+        try {
+            // Check whether this is a failure right at the beginning of the rendering process
+            // or at some later point (ffmpeg won't print the output file until the first frame
+            // has been written to stdin, so we can't already check for invalid args in <init>).
+            getVideoFile();
+        } catch (FFmpegStartupException e) {
+            // Possibly invalid ffmpeg arguments
+            failureHandler.accept(e);
+            return;
+        }
+        CrashReport report = CrashReport.makeCrashReport(t, "Exporting frame");
+        CrashReportCategory exportDetails = report.makeCategory("Export details");
+        exportDetails.addDetail("Export command", settings::getExportCommand);
+        exportDetails.addDetail("Export args", commandArgs::toString);
+        failureHandler.accept(new ReportedException(report));
+    }
+
     private void checkSize(ReadableDimension size) {
         checkSize(size.getWidth(), size.getHeight());
     }
 
     private void checkSize(int width, int height) {
-        isTrue(width == settings.getVideoWidth(), "Width has to be %d but was %d", settings.getVideoWidth(), width);
-        isTrue(height == settings.getVideoHeight(), "Height has to be %d but was %d", settings.getVideoHeight(), height);
+        // Anti-aliasing has already been resolved by the pipeline
+        isTrue(width == settings.getTargetVideoWidth(), "Width has to be %d but was %d", settings.getTargetVideoWidth(), width);
+        isTrue(height == settings.getTargetVideoHeight(), "Height has to be %d but was %d", settings.getTargetVideoHeight(), height);
+    }
+
+    public RenderSettings getRenderSettings() {
+        return settings;
     }
 
     public void abort() {
@@ -144,16 +293,151 @@ public class FFmpegWriter implements FrameConsumer<BitmapFrame> {
     }
 
     public File getVideoFile() throws FFmpegStartupException {
-        String log = ffmpegLog.toString();
+        String log = encoder.log.toString();
         for (String line : log.split("\n")) {
             if (line.startsWith("Output #0")) {
+                if (segmentFrames > 0) {
+                    // That is only the first segment, the final video is created by joinSegments
+                    return new File(outputFolder, fileName);
+                }
                 String fileName = line.substring(line.indexOf(", to '") + 6, line.lastIndexOf('\''));
-                return new File(settings.getOutputFile().getParentFile(), fileName);
+                return new File(outputFolder, fileName);
             }
         }
         throw new FFmpegStartupException(settings, log);
     }
 
+    /**
+     * The ffmpeg process. Frames are written to it by a dedicated thread, so a slow encoder only blocks the consumer
+     * once its queue is full.
+     */
+    private class Encoder {
+        private final String commandArgs;
+        private final Process process;
+        private final OutputStream outputStream;
+        /**
+         * Large enough that writes bypass the buffer of the process stream and go to the pipe directly.
+         */
+        private final byte[] writeBuffer = new byte[WRITE_BUFFER_BYTES];
+        private final BlockingQueue<ByteBuffer> writeQueue;
+        private final Thread writerThread;
+        private final ByteArrayOutputStream log = new ByteArrayOutputStream(4096);
+
+        Encoder(String commandArgs, OutputStream exportLog, int queueFrames) throws IOException {
+            this.commandArgs = commandArgs;
+
+            String executable = settings.getExportCommandOrDefault();
+            LOGGER.info("Starting {} with args: {}", executable, commandArgs);
+            String[] cmdline;
+            try {
+                cmdline = new CommandLine(executable).addArguments(commandArgs, false).toStrings();
+            } catch (IllegalArgumentException e) {
+                LOGGER.error("Failed to parse ffmpeg command line:", e);
+                throw new FFmpegStartupException(settings, e.getLocalizedMessage());
+            }
+            try {
+                process = new ProcessBuilder(cmdline).directory(outputFolder).start();
+            } catch (IOException e) {
+                throw new NoFFmpegException(e);
+            }
+            OutputStream logOut = new TeeOutputStream(exportLog, log);
+            new StreamPipe(process.getInputStream(), logOut).start();
+            new StreamPipe(process.getErrorStream(), logOut).start();
+            outputStream = process.getOutputStream();
+
+            writeQueue = new ArrayBlockingQueue<>(queueFrames);
+            writerThread = new Thread(this::runWriter, "replaymod-ffmpeg-writer");
+            writerThread.start();
+        }
+
+        private void runWriter() {
+            List<ByteBuffer> batch = new ArrayList<>();
+            boolean done = false;
+            while (!done) {
+                try {
+                    batch.add(writeQueue.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                writeQueue.drainTo(batch);
+                // Nothing is ever queued after the end marker
+                if (batch.get(batch.size() - 1) == END_OF_STREAM) {
+                    batch.remove(batch.size() - 1);
+                    done = true;
+                }
+                try {
+                    if (!failed && !aborted && !batch.isEmpty()) {
+                        write(batch);
+                    }
+                } catch (Throwable t) {
+                    failed = true;
+                    handleFailure(t);
+                } finally {
+                    batch.forEach(ByteBufferPool::release);
+                    batch.clear();
+                }
+            }
+        }
+
+        private void write(List<ByteBuffer> buffers) throws IOException {
+            long start = System.nanoTime();
+            long bytes = 0;
+            for (ByteBuffer buffer : buffers) {
+                bytes += buffer.remaining();
+            }
+            for (ByteBuffer buffer : buffers) {
+                // Leave the buffer as it is, it goes back to the pool afterwards
+                ByteBuffer source = buffer.duplicate();
+                while (source.hasRemaining()) {
+                    int length = Math.min(writeBuffer.length, source.remaining());
+                    source.get(writeBuffer, 0, length);
+                    outputStream.write(writeBuffer, 0, length);
+                }
+            }
+            outputStream.flush();
+            statistics.record(PipelineStatistics.Stage.WRITE, System.nanoTime() - start, bytes);
+        }
+
+        void endOfStream() {
+            try {
+                writeQueue.put(END_OF_STREAM);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            IOUtils.closeQuietly(outputStream);
+
+            long startTime = System.nanoTime();
+            long rem = TimeUnit.SECONDS.toNanos(30);
+            do {
+                try {
+                    process.exitValue();
+                    break;
+                } catch (IllegalThreadStateException ex) {
+                    if (rem > 0) {
+                        try {
+                            Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(rem) + 1, 100));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+                rem = TimeUnit.SECONDS.toNanos(30) - (System.nanoTime() - startTime);
+            } while (rem > 0);
+
+            process.destroy();
+        }
+    }
+
     public static class NoFFmpegException extends IOException {
         public NoFFmpegException(Throwable cause) {
             super(cause);
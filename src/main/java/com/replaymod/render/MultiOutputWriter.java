@@ -0,0 +1,263 @@
+package com.replaymod.render;
+
+import com.replaymod.core.versions.MCVer;
+import com.replaymod.render.frame.BitmapFrame;
+import com.replaymod.render.processor.AbstractFrameProcessor;
+import com.replaymod.render.rendering.Channel;
+import com.replaymod.render.rendering.FrameConsumer;
+import com.replaymod.render.rendering.FrameProcessor;
+import com.replaymod.render.utils.ByteBufferPool;
+import com.replaymod.render.utils.Utils;
+import net.minecraft.crash.CrashReport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands every frame to several outputs, so multiple videos (e.g. a master and a smaller proxy) can be produced from a
+ * single render pass.
+ * <p>
+ * The processors of all outputs (e.g. downscaling and pixel format conversion) are run by {@link #getProcessor()},
+ * which has to be added to the color channel of the pipeline so they run on its processing threads. The first output
+ * receives the original frames, all others receive processed copies of the color channel only.
+ * Every output then has its own queue and thread on which its consumer is run in frame order. A slow output only
+ * holds back the others once its queue is full.
+ */
+public class MultiOutputWriter implements FrameConsumer<BitmapFrame> {
+    private static final Map<Channel, BitmapFrame> END_OF_STREAM = Collections.unmodifiableMap(new EnumMap<>(Channel.class));
+
+    private final int queueDepth;
+    private final List<Output> outputs = new ArrayList<>();
+    /**
+     * Processed copies for all but the first output, by frame id, waiting for their frame to be consumed.
+     */
+    private final Map<Integer, BitmapFrame[]> copies = new ConcurrentHashMap<>();
+    private final FrameProcessor<BitmapFrame, BitmapFrame> processor = new AbstractFrameProcessor<BitmapFrame, BitmapFrame>() {
+        @Override
+        public BitmapFrame process(BitmapFrame frame) {
+            return processFrame(frame);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeProcessors();
+        }
+    };
+
+    /**
+     * @param queueDepth maximum number of frames waiting for each output
+     */
+    public MultiOutputWriter(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Adds an output. Must be called before any frames are processed.
+     *
+     * @param processor run on the color channel before it is handed to the consumer, may be {@code null}
+     */
+    public void addOutput(FrameProcessor<BitmapFrame, BitmapFrame> processor, FrameConsumer<BitmapFrame> consumer) {
+        Output output = new Output(outputs.size(), processor, consumer);
+        outputs.add(output);
+        output.thread.start();
+    }
+
+    /**
+     * @return processor which has to be run on the color channel of every frame before it is consumed, it copies the
+     * frame for all but the first output and runs the processor of every output
+     */
+    public FrameProcessor<BitmapFrame, BitmapFrame> getProcessor() {
+        return processor;
+    }
+
+    private BitmapFrame processFrame(BitmapFrame frame) {
+        BitmapFrame[] processed = new BitmapFrame[outputs.size()];
+        try {
+            // Copies first, the original frame may be released by the processor of the first output
+            for (int i = 1; i < processed.length; i++) {
+                processed[i] = outputs.get(i).process(copy(frame));
+            }
+            frame = outputs.get(0).process(frame);
+        } catch (Throwable t) {
+            for (BitmapFrame copy : processed) {
+                Utils.release(copy);
+            }
+            throw t;
+        }
+        copies.put(frame.getFrameId(), processed);
+        return frame;
+    }
+
+    @Override
+    public void consume(Map<Channel, BitmapFrame> channels) {
+        BitmapFrame bgraFrame = channels.get(Channel.BRGA);
+        BitmapFrame[] processed = bgraFrame != null ? copies.remove(bgraFrame.getFrameId()) : null;
+        try {
+            outputs.get(0).put(channels);
+            for (int i = 1; i < outputs.size(); i++) {
+                if (processed == null || processed[i] == null) {
+                    continue;
+                }
+                Map<Channel, BitmapFrame> frame = new EnumMap<>(Channel.class);
+                frame.put(Channel.BRGA, processed[i]);
+                processed[i] = null;
+                outputs.get(i).put(frame);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (processed != null) {
+                for (BitmapFrame copy : processed) {
+                    Utils.release(copy);
+                }
+            }
+        }
+    }
+
+    private static BitmapFrame copy(BitmapFrame frame) {
+        ByteBuffer source = frame.getByteBuffer();
+        ByteBuffer copy = ByteBufferPool.allocate(source.remaining());
+        copy.order(source.order());
+        copy.put(source.duplicate());
+        copy.rewind();
+        return new BitmapFrame(frame.getFrameId(), frame.getSize(), frame.getBytesPerPixel(), copy);
+    }
+
+    private static void release(Map<Channel, BitmapFrame> channels) {
+        for (BitmapFrame frame : channels.values()) {
+            Utils.release(frame);
+        }
+    }
+
+    private void closeProcessors() throws IOException {
+        IOException failure = null;
+        for (Output output : outputs) {
+            try {
+                if (output.processor != null) {
+                    output.processor.close();
+                }
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Output output : outputs) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        // Frames which were processed but never consumed, e.g. because the pipeline crashed
+        for (BitmapFrame[] processed : copies.values()) {
+            for (BitmapFrame copy : processed) {
+                Utils.release(copy);
+            }
+        }
+        copies.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private class Output implements Runnable {
+        private final BlockingQueue<Map<Channel, BitmapFrame>> queue = new ArrayBlockingQueue<>(queueDepth);
+        private final FrameProcessor<BitmapFrame, BitmapFrame> processor;
+        private final FrameConsumer<BitmapFrame> consumer;
+        private final Thread thread;
+        /**
+         * Set once the thread no longer takes frames from the queue, frames for it are released instead.
+         */
+        private volatile boolean stopped;
+
+        Output(int index, FrameProcessor<BitmapFrame, BitmapFrame> processor, FrameConsumer<BitmapFrame> consumer) {
+            this.processor = processor;
+            this.consumer = consumer;
+            this.thread = new Thread(this, "replaymod-output-" + index);
+        }
+
+        BitmapFrame process(BitmapFrame frame) {
+            return processor != null ? processor.process(frame) : frame;
+        }
+
+        /**
+         * Queues the given frame, waiting for space if necessary. Releases it instead if the output has stopped.
+         */
+        void put(Map<Channel, BitmapFrame> channels) throws InterruptedException {
+            while (!stopped) {
+                if (queue.offer(channels, 100, TimeUnit.MILLISECONDS)) {
+                    if (stopped) {
+                        // Stopped while we were queuing, nobody is going to take it anymore
+                        discardQueued();
+                    }
+                    return;
+                }
+            }
+            release(channels);
+        }
+
+        private void discardQueued() {
+            Map<Channel, BitmapFrame> channels;
+            while ((channels = queue.poll()) != null) {
+                release(channels);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Map<Channel, BitmapFrame> channels = queue.take();
+                    if (channels == END_OF_STREAM) {
+                        return;
+                    }
+                    try {
+                        consumer.consume(channels);
+                    } catch (Throwable t) {
+                        release(channels);
+                        MCVer.getMinecraft().crashed(CrashReport.makeCrashReport(t, "Writing frame to output"));
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                stopped = true;
+                discardQueued();
+            }
+        }
+
+        void close() throws IOException {
+            try {
+                put(END_OF_STREAM);
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            consumer.close();
+        }
+    }
+}
@@ -1,43 +1,62 @@
 package com.replaymod.render;
 
 import com.replaymod.core.versions.MCVer;
-import com.replaymod.gui.versions.Image;
-import com.replaymod.render.blend.Util.IOConsumer;
 import com.replaymod.render.frame.BitmapFrame;
 import com.replaymod.render.rendering.Channel;
 import com.replaymod.render.rendering.FrameConsumer;
 import com.replaymod.render.utils.ByteBufferPool;
+import com.replaymod.render.utils.PngEncoder;
 import de.johni0702.minecraft.gui.utils.lwjgl.ReadableDimension;
 import net.minecraft.crash.CrashReport;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Map;
 
 public class PNGWriter implements FrameConsumer<BitmapFrame> {
 
     private final Path outputFolder;
+    private final int firstFrame;
+    private final PngEncoder encoder;
 
-    public PNGWriter(Path outputFolder) throws IOException {
+    /**
+     * @param firstFrame frame of the timeline with which the first frame written to this writer corresponds
+     */
+    public PNGWriter(Path outputFolder, int firstFrame) throws IOException {
         this.outputFolder = outputFolder;
+        this.firstFrame = firstFrame;
+        this.encoder = PngEncoder.fromSettings(ReplayModRender.instance.getCore().getSettingsRegistry());
 
         Files.createDirectories(outputFolder);
     }
 
+    @Override
+    public boolean isParallelCapable() {
+        // Every frame goes into its own file
+        return true;
+    }
+
     @Override
     public void consume(Map<Channel, BitmapFrame> channels) {
         BitmapFrame bgraFrame = channels.get(Channel.BRGA);
         BitmapFrame depthFrame = channels.get(Channel.DEPTH);
         try {
-            if (bgraFrame != null) {
-                withImage(bgraFrame, image ->
-                        image.writePNG(outputFolder.resolve(bgraFrame.getFrameId() + ".png").toFile()));
-            }
+            // Depth first, an existing color image marks the whole frame as done when an interrupted render is resumed
             if (depthFrame != null) {
-                withImage(depthFrame, image ->
-                        image.writePNG(outputFolder.resolve(depthFrame.getFrameId() + ".depth.png").toFile()));
+                ReadableDimension size = depthFrame.getSize();
+                Path path = outputFolder.resolve(firstFrame + depthFrame.getFrameId() + ".depth.png");
+                Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+                encoder.writeDepth(depthFrame.getByteBuffer(), size.getWidth(), size.getHeight(), tmpPath.toFile());
+                Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (bgraFrame != null) {
+                ReadableDimension size = bgraFrame.getSize();
+                Path path = outputFolder.resolve(firstFrame + bgraFrame.getFrameId() + ".png");
+                Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+                encoder.writeBgra(bgraFrame.getByteBuffer(), size.getWidth(), size.getHeight(), true, tmpPath.toFile());
+                Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
             }
         } catch (Throwable t) {
             MCVer.getMinecraft().crashed(CrashReport.makeCrashReport(t, "Exporting EXR frame"));
@@ -46,25 +65,6 @@ public class PNGWriter implements FrameConsumer<BitmapFrame> {
         }
     }
 
-    private void withImage(BitmapFrame frame, IOConsumer<Image> consumer) throws IOException {
-        ByteBuffer buffer = frame.getByteBuffer();
-        ReadableDimension size = frame.getSize();
-        int width = size.getWidth();
-        int height = size.getHeight();
-        try (Image image = new Image(width, height)) {
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    byte b = buffer.get();
-                    byte g = buffer.get();
-                    byte r = buffer.get();
-                    byte a = buffer.get();
-                    image.setRGBA(x, y, r, g, b, a);
-                }
-            }
-            consumer.accept(image);
-        }
-    }
-
     @Override
     public void close() {
     }
@@ -0,0 +1,241 @@
+package com.replaymod.render;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.replaymod.render.ReplayModRender.LOGGER;
+
+/**
+ * Progress of a resumable render, stored next to its output for as long as the render has not been completed.
+ * <p>
+ * Completed frames are not listed one by one, the files which have been completely written are the checkpoint:
+ * image sequences only give each frame its final name once it has been written, and ffmpeg output is written in
+ * segments, each of which is complete once its encoder has moved on to the next one. This file records in which
+ * runs the ffmpeg output was written, so its segments can be found and joined once the last run has finished.
+ */
+public class RenderCheckpoint {
+    private List<Run> runs = new ArrayList<>();
+
+    /**
+     * Where this checkpoint is stored, {@code null} if it only tracks the segments of a single run in memory.
+     */
+    private transient File file;
+    /**
+     * Whether there was a checkpoint from an earlier, interrupted render.
+     */
+    private transient boolean resumed;
+
+    RenderCheckpoint() {
+    }
+
+    public static File getFile(RenderSettings settings) {
+        File outputFile = settings.getOutputFile();
+        return new File(outputFile.getParentFile(), outputFile.getName() + ".checkpoint");
+    }
+
+    /**
+     * Loads the checkpoint of the given output, or creates a new one if it has not been rendered before.
+     * The checkpoint file is only written by {@link #save()}.
+     */
+    public static RenderCheckpoint load(RenderSettings settings) throws IOException {
+        File file = getFile(settings);
+        RenderCheckpoint checkpoint = null;
+        if (file.exists()) {
+            String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            try {
+                checkpoint = new Gson().fromJson(json, RenderCheckpoint.class);
+            } catch (JsonParseException e) {
+                LOGGER.warn("Ignoring invalid render checkpoint {}:", file, e);
+            }
+        }
+        if (checkpoint == null) {
+            checkpoint = new RenderCheckpoint();
+        } else {
+            checkpoint.resumed = true;
+        }
+        if (checkpoint.runs == null) {
+            checkpoint.runs = new ArrayList<>();
+        }
+        checkpoint.file = file;
+        return checkpoint;
+    }
+
+    public boolean isPersistent() {
+        return file != null;
+    }
+
+    public synchronized void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        // Written to a temporary file first, a crash must never leave a truncated checkpoint behind
+        Path tmp = file.toPath().resolveSibling(file.getName() + ".tmp");
+        Files.write(tmp, new Gson().toJson(this).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Deletes the checkpoint file. Segments are left alone, see {@link #deleteSegments(File)}.
+     */
+    public void delete() {
+        if (file != null) {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * @return the first frame which has not yet been completely written by an earlier render of the given output,
+     * or its start frame if there is nothing to resume
+     */
+    public synchronized int getResumeFrame(RenderSettings settings) {
+        int startFrame = settings.getStartFrame();
+        if (!resumed) {
+            return startFrame;
+        }
+        switch (settings.getEncodingPreset()) {
+            case EXR:
+            case PNG:
+                File folder = settings.getOutputFile();
+                String extension = "." + settings.getEncodingPreset().getFileExtension();
+                int frame = startFrame;
+                while (new File(folder, frame + extension).exists()) {
+                    frame++;
+                }
+                return frame;
+            default:
+                if (runs.isEmpty()) {
+                    return startFrame;
+                }
+                Run run = runs.get(runs.size() - 1);
+                return run.firstFrame + run.countCompleteSegments(settings.getOutputFile()) * run.segmentFrames;
+        }
+    }
+
+    /**
+     * @return the latest frame not after the given one at which a new run may start without losing any of the
+     * segments before it
+     */
+    public synchronized int alignToSegment(int frame) {
+        for (int i = runs.size() - 1; i >= 0; i--) {
+            Run run = runs.get(i);
+            if (run.firstFrame <= frame) {
+                return run.firstFrame + (frame - run.firstFrame) / run.segmentFrames * run.segmentFrames;
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Starts a new run. Earlier runs which did not get as far as the new one starts are kept, the segments of all
+     * others are deleted.
+     */
+    public synchronized void addRun(Run run, File outputFile) throws IOException {
+        while (!runs.isEmpty() && runs.get(runs.size() - 1).firstFrame >= run.firstFrame) {
+            runs.remove(runs.size() - 1).deleteSegments(outputFile);
+        }
+        runs.add(run);
+        save();
+    }
+
+    /**
+     * @param framesInLastRun number of frames written in the last run
+     * @return all segments which make up the video, in order
+     */
+    public synchronized List<File> getSegments(File outputFile, int framesInLastRun) {
+        List<File> segments = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i++) {
+            Run run = runs.get(i);
+            int frames = i + 1 < runs.size() ? runs.get(i + 1).firstFrame - run.firstFrame : framesInLastRun;
+            for (int segment = 0; segment * run.segmentFrames < frames; segment++) {
+                segments.add(run.getSegmentFile(outputFile, segment));
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Deletes all segments of all runs, including incomplete ones.
+     */
+    public synchronized void deleteSegments(File outputFile) {
+        for (Run run : runs) {
+            run.deleteSegments(outputFile);
+        }
+    }
+
+    /**
+     * A single, possibly interrupted, attempt at encoding the video. Its frames are split into segments of
+     * {@link #getSegmentFrames()} frames which are handed to its encoders round-robin, each one producing every n-th
+     * segment as a separate file.
+     */
+    public static class Run {
+        private int firstFrame;
+        private int encoders;
+        private int segmentFrames;
+
+        public Run(int firstFrame, int encoders, int segmentFrames) {
+            this.firstFrame = firstFrame;
+            this.encoders = encoders;
+            this.segmentFrames = segmentFrames;
+        }
+
+        public int getFirstFrame() {
+            return firstFrame;
+        }
+
+        public int getEncoders() {
+            return encoders;
+        }
+
+        public int getSegmentFrames() {
+            return segmentFrames;
+        }
+
+        /**
+         * @return ffmpeg file name pattern for the segments produced by the given encoder
+         */
+        public String getSegmentPattern(String fileName, int encoder) {
+            String baseName = FilenameUtils.getBaseName(fileName).replace("%", "%%");
+            return baseName + ".from" + firstFrame + ".part" + encoder + ".%05d." + FilenameUtils.getExtension(fileName);
+        }
+
+        public File getSegmentFile(File outputFile, int segment) {
+            String pattern = getSegmentPattern(outputFile.getName(), segment % encoders);
+            return new File(outputFile.getParentFile(), String.format(pattern, segment / encoders));
+        }
+
+        /**
+         * @return number of segments at the start of this run which have been completely written. A segment is
+         * only known to be complete once its encoder has started with its next one.
+         */
+        int countCompleteSegments(File outputFile) {
+            int segment = 0;
+            while (getSegmentFile(outputFile, segment + encoders).exists()) {
+                segment++;
+            }
+            return segment;
+        }
+
+        void deleteSegments(File outputFile) {
+            for (int encoder = 0; encoder < encoders; encoder++) {
+                for (int segment = encoder; ; segment += encoders) {
+                    File file = getSegmentFile(outputFile, segment);
+                    if (!file.exists()) {
+                        break;
+                    }
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.replaymod.core.versions.MCVer;
 import de.johni0702.minecraft.gui.utils.lwjgl.ReadableColor;
 import net.minecraft.client.resources.I18n;
 import net.minecraft.util.Util;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.maven.artifact.versioning.ComparableVersion;
 
 import java.io.File;
@@ -15,7 +16,9 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
 
 import static com.replaymod.render.ReplayModRender.LOGGER;
@@ -115,6 +118,50 @@ public class RenderSettings {
         }
     }
 
+    public enum PixelFormat {
+        BGRA("bgra"),
+        YUV420P("yuv420p"),
+        NV12("nv12"),
+        YUV444P("yuv444p");
+
+        private final String ffmpegName;
+
+        PixelFormat(String ffmpegName) {
+            this.ffmpegName = ffmpegName;
+        }
+
+        public String getFFmpegName() {
+            return ffmpegName;
+        }
+
+        public String getInputArgument() {
+            return "-pix_fmt " + ffmpegName;
+        }
+
+        public boolean isSubsampled() {
+            return this == YUV420P || this == NV12;
+        }
+
+        /**
+         * @return size in bytes of a frame of the given size in this format
+         */
+        public int getFrameSize(int width, int height) {
+            switch (this) {
+                case BGRA:
+                    return width * height * 4;
+                case YUV444P:
+                    return width * height * 3;
+                default:
+                    return width * height * 3 / 2;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return I18n.format("replaymod.gui.rendersettings.pixelformat." + name().toLowerCase());
+        }
+    }
+
     public enum AntiAliasing {
         NONE(1), X2(2), X4(4), X8(8);
 
@@ -134,6 +181,52 @@ public class RenderSettings {
         }
     }
 
+    public enum ExrCompression {
+        NONE, RLE, ZIP, PIZ;
+
+        @Override
+        public String toString() {
+            return I18n.format("replaymod.gui.rendersettings.exrcompression." + name().toLowerCase());
+        }
+    }
+
+    /**
+     * An output which is produced from the frames rendered for the main output, optionally at a smaller size.
+     * Depth maps and camera path exports are only written for the main output.
+     */
+    public static class AdditionalOutput {
+        private final EncodingPreset encodingPreset;
+        private final int downscale;
+        private final int bitRate;
+
+        /**
+         * @param downscale factor by which width and height of the main output are divided
+         * @param bitRate   bit rate for presets with a bit rate setting, {@code 0} to use the one of the main output
+         */
+        public AdditionalOutput(EncodingPreset encodingPreset, int downscale, int bitRate) {
+            this.encodingPreset = encodingPreset;
+            this.downscale = downscale;
+            this.bitRate = bitRate;
+        }
+
+        public EncodingPreset getEncodingPreset() {
+            return encodingPreset;
+        }
+
+        public int getDownscale() {
+            return Math.max(1, downscale);
+        }
+
+        public int getBitRate() {
+            return bitRate;
+        }
+
+        @Override
+        public String toString() {
+            return encodingPreset.name() + "/" + getDownscale();
+        }
+    }
+
     private final RenderMethod renderMethod;
     private final EncodingPreset encodingPreset;
     private final int videoWidth;
@@ -166,6 +259,17 @@ public class RenderSettings {
 
     private final boolean highPerformance;
 
+    private final int processingThreads;
+    private final int frameQueueDepth;
+    private final int pboRingDepth;
+    private final PixelFormat pixelFormat;
+    private final boolean spool;
+    private final ExrCompression exrCompression;
+    private final List<AdditionalOutput> additionalOutputs;
+    private final int startFrame;
+    private final int endFrame;
+    private final boolean resumable;
+
     public RenderSettings(
             RenderMethod renderMethod,
             EncodingPreset encodingPreset,
@@ -187,7 +291,17 @@ public class RenderSettings {
             AntiAliasing antiAliasing,
             String exportCommand,
             String exportArguments,
-            boolean highPerformance
+            boolean highPerformance,
+            int processingThreads,
+            int frameQueueDepth,
+            int pboRingDepth,
+            PixelFormat pixelFormat,
+            boolean spool,
+            ExrCompression exrCompression,
+            List<AdditionalOutput> additionalOutputs,
+            int startFrame,
+            int endFrame,
+            boolean resumable
     ) {
         this.renderMethod = renderMethod;
         this.encodingPreset = encodingPreset;
@@ -210,6 +324,16 @@ public class RenderSettings {
         this.exportCommand = exportCommand;
         this.exportArguments = exportArguments;
         this.highPerformance = highPerformance;
+        this.processingThreads = processingThreads;
+        this.frameQueueDepth = frameQueueDepth;
+        this.pboRingDepth = pboRingDepth;
+        this.pixelFormat = pixelFormat;
+        this.spool = spool;
+        this.exrCompression = exrCompression;
+        this.additionalOutputs = additionalOutputs;
+        this.startFrame = startFrame;
+        this.endFrame = endFrame;
+        this.resumable = resumable;
     }
 
     public RenderSettings withEncodingPreset(EncodingPreset encodingPreset) {
@@ -234,7 +358,17 @@ public class RenderSettings {
                 antiAliasing,
                 exportCommand,
                 exportArguments,
-                highPerformance
+                highPerformance,
+                processingThreads,
+                frameQueueDepth,
+                pboRingDepth,
+                pixelFormat,
+                spool,
+                exrCompression,
+                additionalOutputs,
+                startFrame,
+                endFrame,
+                resumable
         );
     }
 
@@ -266,15 +400,12 @@ public class RenderSettings {
         return videoHeight;
     }
 
+    /**
+     * @return additional ffmpeg arguments for the {@code %FILTERS%} placeholder. Anti-aliasing used to be resolved
+     * here via a scale filter but is now done in the rendering pipeline, so there are currently none.
+     */
     public String getVideoFilters() {
-        StringBuilder filters = new StringBuilder();
-
-        if (antiAliasing != AntiAliasing.NONE) {
-            double factor = 1.0 / antiAliasing.getFactor();
-            filters.append(String.format("-filter:v scale=iw*%1$s:ih*%1$s ", factor));
-        }
-
-        return filters.toString();
+        return "";
     }
 
     public String getExportCommandOrDefault() {
@@ -429,6 +560,183 @@ public class RenderSettings {
         return highPerformance;
     }
 
+    /**
+     * @return the number of threads which process frames in parallel, or {@code 0} to choose based on the cpu count
+     */
+    public int getProcessingThreads() {
+        return processingThreads;
+    }
+
+    /**
+     * @return the maximum number of frames which may be in flight between capturing and consuming them,
+     * or {@code 0} to choose based on the number of processing threads
+     */
+    public int getFrameQueueDepth() {
+        return frameQueueDepth;
+    }
+
+    /**
+     * @return the number of pixel buffer objects frames are read back into, or {@code 0} to choose based on the
+     * frame size
+     */
+    public int getPboRingDepth() {
+        return pboRingDepth;
+    }
+
+    /**
+     * @return the pixel format chosen by the user for piping frames into ffmpeg,
+     * see {@link #getFFmpegInputFormat()} for the one which is actually used
+     */
+    public PixelFormat getPixelFormat() {
+        return pixelFormat == null ? PixelFormat.BGRA : pixelFormat;
+    }
+
+    /**
+     * @return whether frames are only written to a spool file during rendering and encoded in the background
+     * afterwards, see {@link SpoolWriter}
+     */
+    public boolean isSpool() {
+        return spool;
+    }
+
+    /**
+     * @return compression of EXR frames, no compression if unset
+     */
+    public ExrCompression getExrCompression() {
+        return exrCompression == null ? ExrCompression.NONE : exrCompression;
+    }
+
+    /**
+     * @return outputs which are produced from the same rendered frames in addition to the main output
+     */
+    public List<AdditionalOutput> getAdditionalOutputs() {
+        return additionalOutputs == null ? Collections.emptyList() : additionalOutputs;
+    }
+
+    /**
+     * @return the first frame to render, counted from the start of the timeline
+     */
+    public int getStartFrame() {
+        return startFrame;
+    }
+
+    /**
+     * @return the frame at which to stop rendering (exclusive), {@code 0} to render until the end of the timeline
+     */
+    public int getEndFrame() {
+        return endFrame;
+    }
+
+    /**
+     * @return whether an interrupted render continues where it left off when it is started again, see
+     * {@link RenderCheckpoint}
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * @return the settings with which the given additional output is written. It is placed next to the main output
+     * and named after it and its own size.
+     */
+    public RenderSettings forAdditionalOutput(AdditionalOutput output) {
+        int width = videoWidth / output.getDownscale();
+        int height = videoHeight / output.getDownscale();
+        EncodingPreset preset = output.getEncodingPreset();
+        String name = FilenameUtils.getBaseName(outputFile.getName()) + "_" + width + "x" + height
+                + "." + preset.getFileExtension();
+        return new RenderSettings(
+                renderMethod,
+                preset,
+                width,
+                height,
+                framesPerSecond,
+                output.getBitRate() > 0 ? output.getBitRate() : bitRate,
+                new File(outputFile.getParentFile(), name),
+                renderNameTags,
+                stabilizeYaw,
+                stabilizePitch,
+                stabilizeRoll,
+                chromaKeyingColor,
+                sphericalFovX,
+                sphericalFovY,
+                injectSphericalMetadata,
+                false,
+                false,
+                antiAliasing,
+                exportCommand,
+                preset.getValue(),
+                highPerformance,
+                processingThreads,
+                frameQueueDepth,
+                pboRingDepth,
+                pixelFormat,
+                false,
+                exrCompression,
+                Collections.emptyList(),
+                startFrame,
+                endFrame,
+                resumable
+        );
+    }
+
+    /**
+     * @return the settings with which a render farm worker renders the given frames of this job into the given file.
+     * Only the main output is rendered, and ffmpeg is always taken from the worker's own installation. The export
+     * arguments are the default ones of the encoding preset, the worker never runs arguments sent to it.
+     */
+    public RenderSettings forFrameRange(File outputFile, int startFrame, int endFrame) {
+        return new RenderSettings(
+                renderMethod,
+                encodingPreset,
+                videoWidth,
+                videoHeight,
+                framesPerSecond,
+                bitRate,
+                outputFile,
+                renderNameTags,
+                stabilizeYaw,
+                stabilizePitch,
+                stabilizeRoll,
+                chromaKeyingColor,
+                sphericalFovX,
+                sphericalFovY,
+                false,
+                depthMap,
+                false,
+                antiAliasing,
+                "",
+                encodingPreset.getValue(),
+                highPerformance,
+                processingThreads,
+                frameQueueDepth,
+                pboRingDepth,
+                pixelFormat,
+                false,
+                exrCompression,
+                Collections.emptyList(),
+                startFrame,
+                endFrame,
+                false
+        );
+    }
+
+    /**
+     * @return the pixel format in which frames are actually piped into ffmpeg. This falls back to BGRA if the export
+     * arguments do not declare raw BGRA input (which we would need to substitute), and for odd frame sizes with
+     * subsampled formats (which most encoders cannot handle anyway).
+     */
+    public PixelFormat getFFmpegInputFormat() {
+        PixelFormat format = getPixelFormat();
+        if (format == PixelFormat.BGRA || exportArguments == null || !exportArguments.contains(PixelFormat.BGRA.getInputArgument())) {
+            return PixelFormat.BGRA;
+        }
+        if (format.isSubsampled() && (getTargetVideoWidth() % 2 != 0 || getTargetVideoHeight() % 2 != 0)) {
+            return PixelFormat.BGRA;
+        }
+        return format;
+    }
+
     @Override
     public String toString() {
         return "RenderSettings{" +
@@ -454,6 +762,16 @@ public class RenderSettings {
                 ", exportArgumentsPreBgra='" + exportArgumentsPreBgra + '\'' +
                 ", exportArguments='" + exportArguments + '\'' +
                 ", highPerformance=" + highPerformance +
+                ", processingThreads=" + processingThreads +
+                ", frameQueueDepth=" + frameQueueDepth +
+                ", pboRingDepth=" + pboRingDepth +
+                ", pixelFormat=" + pixelFormat +
+                ", spool=" + spool +
+                ", exrCompression=" + exrCompression +
+                ", additionalOutputs=" + additionalOutputs +
+                ", startFrame=" + startFrame +
+                ", endFrame=" + endFrame +
+                ", resumable=" + resumable +
                 '}';
     }
 }
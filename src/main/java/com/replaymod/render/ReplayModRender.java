@@ -5,6 +5,7 @@ import com.replaymod.core.ReplayMod;
 import com.replaymod.core.utils.Utils;
 import com.replaymod.gui.container.VanillaGuiScreen;
 import com.replaymod.gui.utils.EventRegistrations;
+import com.replaymod.render.farm.RenderFarmWorker;
 import com.replaymod.render.utils.RenderJob;
 import com.replaymod.replay.ReplayHandler;
 import com.replaymod.replay.events.ReplayClosedCallback;
@@ -49,6 +50,12 @@ public class ReplayModRender extends EventRegistrations implements Module {
     @Override
     public void initClient() {
         register();
+
+        String farmCoordinator = core.getSettingsRegistry().get(Setting.RENDER_FARM_COORDINATOR);
+        if (!farmCoordinator.isEmpty()) {
+            String farmToken = core.getSettingsRegistry().get(Setting.RENDER_FARM_TOKEN);
+            core.runPostStartup(() -> new RenderFarmWorker(core, farmCoordinator, farmToken).start());
+        }
     }
 
     public File getVideoFolder() {
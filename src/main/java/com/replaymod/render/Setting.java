@@ -1,10 +1,36 @@
 package com.replaymod.render;
 
 import com.replaymod.core.SettingsRegistry;
+import com.replaymod.render.utils.PngEncoder;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
 
 public final class Setting<T> {
     public static final SettingsRegistry.SettingKey<String> RENDER_PATH =
             new SettingsRegistry.SettingKeys<>("advanced", "renderPath", null, "./replay_videos/");
     public static final SettingsRegistry.SettingKey<Boolean> SKIP_POST_RENDER_GUI =
             new SettingsRegistry.SettingKeys<>("advanced", "skipPostRenderGui", null, false);
+    public static final SettingsRegistry.SettingKey<Integer> PNG_COMPRESSION_LEVEL =
+            new SettingsRegistry.SettingKeys<>("advanced", "pngCompressionLevel", null, 1);
+    public static final SettingsRegistry.SettingKey<Integer> PREVIEW_FPS =
+            new SettingsRegistry.SettingKeys<>("advanced", "renderPreviewFps", null, 5);
+    public static final SettingsRegistry.SettingKey<Boolean> RENDER_CAMERAS_TOGETHER =
+            new SettingsRegistry.SettingKeys<>("advanced", "renderCamerasTogether", null, true);
+    public static final SettingsRegistry.SettingKey<Integer> RENDER_FARM_PORT =
+            new SettingsRegistry.SettingKeys<>("advanced", "renderFarmPort", null, 0);
+    public static final SettingsRegistry.SettingKey<String> RENDER_FARM_BIND_ADDRESS =
+            new SettingsRegistry.SettingKeys<>("advanced", "renderFarmBindAddress", null, "127.0.0.1");
+    public static final SettingsRegistry.SettingKey<String> RENDER_FARM_TOKEN =
+            new SettingsRegistry.SettingKeys<>("advanced", "renderFarmToken", null, "");
+    public static final SettingsRegistry.SettingKey<Integer> RENDER_FARM_RANGES =
+            new SettingsRegistry.SettingKeys<>("advanced", "renderFarmRanges", null, 8);
+    public static final SettingsRegistry.SettingKey<String> RENDER_FARM_COORDINATOR =
+            new SettingsRegistry.SettingKeys<>("advanced", "renderFarmCoordinator", null, "");
+    public static final SettingsRegistry.MultipleChoiceSettingKeys<String> PNG_FILTER = new SettingsRegistry.MultipleChoiceSettingKeys<>(
+            "advanced", "pngFilter", "replaymod.gui.settings.pngfilter", PngEncoder.Filter.UP.toString());
+
+    static {
+        PNG_FILTER.setChoices(Arrays.stream(PngEncoder.Filter.values()).map(Object::toString).collect(Collectors.toList()));
+    }
 }
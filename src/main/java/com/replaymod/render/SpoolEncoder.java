@@ -0,0 +1,275 @@
+package com.replaymod.render;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.replaymod.core.ReplayMod;
+import com.replaymod.core.utils.Utils;
+import com.replaymod.gui.container.GuiPanel;
+import com.replaymod.gui.container.VanillaGuiScreen;
+import com.replaymod.gui.element.GuiLabel;
+import com.replaymod.gui.element.advanced.GuiProgressBar;
+import com.replaymod.gui.layout.VerticalLayout;
+import com.replaymod.gui.utils.Colors;
+import com.replaymod.render.frame.BitmapFrame;
+import com.replaymod.render.metadata.MetadataInjector;
+import com.replaymod.render.rendering.Channel;
+import com.replaymod.render.rendering.PipelineStatistics;
+import com.replaymod.render.utils.ByteBufferPool;
+import de.johni0702.minecraft.gui.utils.lwjgl.Color;
+import de.johni0702.minecraft.gui.utils.lwjgl.Dimension;
+import de.johni0702.minecraft.gui.utils.lwjgl.ReadableColor;
+import net.minecraft.crash.CrashReport;
+import net.minecraft.crash.ReportedException;
+import org.apache.commons.io.FileUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.replaymod.core.versions.MCVer.getMinecraft;
+import static com.replaymod.render.ReplayModRender.LOGGER;
+
+/**
+ * Encodes the frames of a spool file written by a {@link SpoolWriter} with ffmpeg.
+ * This does not depend on the replay or the game in any way, so it may run long after rendering has finished and the
+ * same spool file may be encoded several times with different settings (as long as the input pixel format matches).
+ */
+public class SpoolEncoder {
+    private static final long WINDOW_SIZE = 64 << 20;
+
+    private final File spoolFile;
+    private final RenderSettings settings;
+    private volatile Throwable failure;
+
+    public SpoolEncoder(File spoolFile, RenderSettings settings) {
+        this.spoolFile = spoolFile;
+        this.settings = settings;
+    }
+
+    /**
+     * Creates an encoder for a spool file which was left behind, e.g. because rendering failed or was cancelled,
+     * using the render settings stored next to it.
+     */
+    public static SpoolEncoder load(File spoolFile) throws IOException {
+        String json = new String(Files.readAllBytes(SpoolWriter.getSettingsFile(spoolFile).toPath()), StandardCharsets.UTF_8);
+        RenderSettings settings;
+        try {
+            settings = new GsonBuilder()
+                    .registerTypeAdapter(ReadableColor.class, new Gson().getAdapter(Color.class))
+                    .create().fromJson(json, RenderSettings.class);
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid render settings for " + spoolFile, e);
+        }
+        if (settings == null) {
+            throw new IOException("Missing render settings for " + spoolFile);
+        }
+        return new SpoolEncoder(spoolFile, settings);
+    }
+
+    /**
+     * Deletes the given spool file and its render settings.
+     */
+    public static void delete(File spoolFile) {
+        FileUtils.deleteQuietly(spoolFile);
+        FileUtils.deleteQuietly(SpoolWriter.getSettingsFile(spoolFile));
+    }
+
+    public File getSpoolFile() {
+        return spoolFile;
+    }
+
+    public RenderSettings getRenderSettings() {
+        return settings;
+    }
+
+    /**
+     * Encodes the spool file on a new thread, showing its progress in the background processes overlay.
+     *
+     * @param deleteSpool whether to delete the spool file once it has been encoded successfully
+     */
+    public void encodeInBackground(ReplayMod core, boolean deleteSpool) {
+        GuiLabel label = new GuiLabel().setI18nText("replaymod.gui.rendering.spool.encoding").setColor(Colors.BLACK);
+        GuiProgressBar progressBar = new GuiProgressBar().setHeight(14);
+        GuiPanel encodingProcess = new GuiPanel()
+                .setLayout(new VerticalLayout())
+                .addElements(new VerticalLayout.Data(0.5), label, progressBar);
+        new Thread(() -> {
+            core.runLater(() -> core.getBackgroundProcesses().addProcess(encodingProcess));
+            try {
+                File videoFile = encode(progressBar::setProgress);
+                if (deleteSpool) {
+                    delete(spoolFile);
+                }
+                core.runLater(() -> core.printInfoToChat("replaymod.chat.spoolencoded", videoFile.getName()));
+            } catch (Throwable t) {
+                CrashReport crashReport = t instanceof ReportedException
+                        ? ((ReportedException) t).getCrashReport()
+                        : CrashReport.makeCrashReport(t, "Encoding spooled frames");
+                core.runLater(() -> Utils.error(LOGGER, VanillaGuiScreen.wrap(getMinecraft().currentScreen), crashReport, () -> {
+                }));
+            } finally {
+                core.runLater(() -> core.getBackgroundProcesses().removeProcess(encodingProcess));
+            }
+        }, "replaymod-spool-encoder").start();
+    }
+
+    /**
+     * Encodes the spool file, blocking until done.
+     *
+     * @param progress called with the fraction of frames encoded so far
+     * @return the video file
+     */
+    public File encode(Consumer<Float> progress) throws Throwable {
+        try (FileChannel channel = FileChannel.open(spoolFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SpoolWriter.HEADER_SIZE);
+            if (header.getInt() != SpoolWriter.MAGIC) {
+                throw new IOException(spoolFile + " is not a spool file");
+            }
+            int version = header.getInt();
+            if (version != SpoolWriter.VERSION) {
+                throw new IOException("Unsupported spool file version " + version);
+            }
+            RenderSettings.PixelFormat format = RenderSettings.PixelFormat.values()[header.getInt()];
+            int width = header.getInt();
+            int height = header.getInt();
+            int frames = header.getInt();
+            long indexOffset = header.getLong();
+            if (format != settings.getFFmpegInputFormat()
+                    || width != settings.getTargetVideoWidth() || height != settings.getTargetVideoHeight()) {
+                throw new IOException("Spool file contains " + width + "x" + height + " " + format.getFFmpegName()
+                        + " frames but " + settings.getTargetVideoWidth() + "x" + settings.getTargetVideoHeight()
+                        + " " + settings.getFFmpegInputFormat().getFFmpegName() + " frames are required");
+            }
+
+            long[][] index;
+            long dataEnd;
+            if (indexOffset == 0) {
+                // Rendering was interrupted before the index could be written
+                index = recoverIndex(channel);
+                frames = index.length;
+                dataEnd = channel.size();
+                LOGGER.warn("Spool file {} has no index, recovered {} frames", spoolFile, frames);
+            } else {
+                MappedByteBuffer indexBuffer = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                        (long) frames * SpoolWriter.INDEX_ENTRY_SIZE);
+                index = new long[frames][];
+                for (int i = 0; i < frames; i++) {
+                    index[i] = new long[]{indexBuffer.getInt(), indexBuffer.getLong(), indexBuffer.getInt()};
+                }
+                dataEnd = indexOffset;
+            }
+            // Frames may have been spooled out of order
+            Arrays.sort(index, (a, b) -> Long.compare(a[0], b[0]));
+
+            int frameSize = format.getFrameSize(width, height);
+            // Same as the frames produced by YuvConversionProcessor, planes are stacked below each other
+            int bytesPerPixel = format == RenderSettings.PixelFormat.BGRA ? 4 : 1;
+            Dimension frameDimension = new Dimension(width, frameSize / (width * bytesPerPixel));
+
+            FFmpegWriter writer = new FFmpegWriter(settings, new PipelineStatistics(), cause -> failure = cause);
+            Inflater inflater = new Inflater(true);
+            byte[] input = new byte[0];
+            byte[] output = new byte[frameSize];
+            MappedByteBuffer window = null;
+            long windowStart = 0;
+            try {
+                for (int i = 0; i < frames && failure == null; i++) {
+                    long offset = index[i][1];
+                    int length = (int) index[i][2];
+                    if (window == null || offset < windowStart || offset + length > windowStart + window.capacity()) {
+                        windowStart = offset;
+                        window = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                                Math.min(Math.max(WINDOW_SIZE, length), dataEnd - offset));
+                    }
+                    if (input.length < length + 1) {
+                        input = new byte[length + 1];
+                    }
+                    ByteBuffer compressed = window.duplicate();
+                    compressed.position((int) (offset - windowStart));
+                    compressed.get(input, 0, length);
+
+                    inflater.reset();
+                    // Inflater requires an extra dummy byte when used without zlib header
+                    inflater.setInput(input, 0, length + 1);
+                    int inflated = 0;
+                    while (inflated < frameSize && !inflater.finished()) {
+                        int n = inflater.inflate(output, inflated, frameSize - inflated);
+                        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        inflated += n;
+                    }
+                    if (inflated != frameSize) {
+                        throw new IOException("Frame " + index[i][0] + " is truncated");
+                    }
+
+                    ByteBuffer frameBuffer = ByteBufferPool.allocate(frameSize);
+                    frameBuffer.put(output, 0, frameSize);
+                    frameBuffer.rewind();
+                    BitmapFrame frame = new BitmapFrame((int) index[i][0], frameDimension, bytesPerPixel, frameBuffer);
+                    writer.consume(Collections.singletonMap(Channel.BRGA, frame));
+
+                    progress.accept((float) (i + 1) / frames);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Spool file is corrupted", e);
+            } finally {
+                inflater.end();
+                writer.close();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            writer.joinSegments();
+
+            File videoFile = writer.getVideoFile();
+            if (settings.isInjectSphericalMetadata()) {
+                MetadataInjector.injectMetadata(settings.getRenderMethod(), videoFile,
+                        settings.getTargetVideoWidth(), settings.getTargetVideoHeight(),
+                        settings.getSphericalFovX(), settings.getSphericalFovY());
+            }
+            return videoFile;
+        }
+    }
+
+    /**
+     * Rebuilds the index from the records preceding each frame. A frame which was only partially written is dropped.
+     */
+    private static long[][] recoverIndex(FileChannel channel) throws IOException {
+        List<long[]> index = new ArrayList<>();
+        ByteBuffer record = ByteBuffer.allocate(SpoolWriter.RECORD_HEADER_SIZE);
+        long size = channel.size();
+        long position = SpoolWriter.HEADER_SIZE;
+        while (position + SpoolWriter.RECORD_HEADER_SIZE <= size) {
+            record.clear();
+            while (record.hasRemaining()) {
+                if (channel.read(record, position + record.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            int frameId = record.getInt(0);
+            int length = record.getInt(4);
+            long offset = position + SpoolWriter.RECORD_HEADER_SIZE;
+            if (length <= 0 || offset + length > size) {
+                break;
+            }
+            index.add(new long[]{frameId, offset, length});
+            position = offset + length;
+        }
+        return index.toArray(new long[0][]);
+    }
+}
@@ -0,0 +1,225 @@
+package com.replaymod.render;
+
+import com.google.gson.Gson;
+import com.replaymod.core.versions.MCVer;
+import com.replaymod.render.frame.BitmapFrame;
+import com.replaymod.render.rendering.Channel;
+import com.replaymod.render.rendering.FrameConsumer;
+import com.replaymod.render.utils.ByteBufferPool;
+import net.minecraft.crash.CrashReport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import static org.apache.commons.lang3.Validate.isTrue;
+
+/**
+ * Writes frames into a spool file instead of encoding them right away, so rendering is not limited by the speed of
+ * the encoder. The spool file is encoded afterwards by a {@link SpoolEncoder}.
+ * <p>
+ * Frames are stored exactly as they would have been piped into ffmpeg, each one compressed separately with the
+ * fastest deflate level.
+ * The file starts with a header of {@link #HEADER_SIZE} bytes (magic, version, pixel format, width, height, number of
+ * frames and the offset of the index) followed by the frame data and finally the index, which holds frame id,
+ * offset and compressed length of every frame.
+ * Each frame in the data is preceded by its id and compressed length ({@link #RECORD_HEADER_SIZE} bytes). The header
+ * is written right away with an index offset of 0 and only completed once the index has been written, so if rendering
+ * is interrupted before that, the index can still be recovered from these records.
+ * <p>
+ * The render settings are stored next to the spool file (see {@link #getSettingsFile(File)}), so it can still be
+ * encoded when rendering failed or was cancelled, see {@link com.replaymod.render.gui.GuiSpoolFiles}.
+ * Only the color channel is spooled, depth maps are not supported.
+ */
+public class SpoolWriter implements FrameConsumer<BitmapFrame> {
+    static final int MAGIC = 0x524d5350; // RMSP
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private final File file;
+    private final RenderSettings settings;
+    private final RenderSettings.PixelFormat format;
+    private final int width;
+    private final int height;
+    private final int frameSize;
+    private final FileChannel channel;
+    private final List<Compressor> allCompressors = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<Compressor> compressors = ThreadLocal.withInitial(Compressor::new);
+    private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    private final DataOutputStream indexOut = new DataOutputStream(index);
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    private long position = HEADER_SIZE;
+    private int frames;
+
+    public SpoolWriter(File file, RenderSettings settings) throws IOException {
+        isTrue(!settings.isDepthMap(), "Depth maps cannot be spooled");
+        this.file = file;
+        this.settings = settings;
+        this.format = settings.getFFmpegInputFormat();
+        this.width = settings.getTargetVideoWidth();
+        this.height = settings.getTargetVideoHeight();
+        this.frameSize = format.getFrameSize(width, height);
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        try {
+            writeHeader(0, 0);
+            Files.write(getSettingsFile(file).toPath(), new Gson().toJson(settings).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the spool file used for rendering with the given settings
+     */
+    public static File getSpoolFile(RenderSettings settings) {
+        return new File(settings.getOutputFile().getPath() + ".spool");
+    }
+
+    /**
+     * @return the file which holds the render settings of the given spool file
+     */
+    public static File getSettingsFile(File spoolFile) {
+        return new File(spoolFile.getPath() + ".json");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public RenderSettings getRenderSettings() {
+        return settings;
+    }
+
+    @Override
+    public boolean isParallelCapable() {
+        // Frames are compressed concurrently and only appended in order of arrival, the index knows their ids
+        return true;
+    }
+
+    @Override
+    public void consume(Map<Channel, BitmapFrame> channels) {
+        try {
+            write(channels.get(Channel.BRGA));
+        } catch (Throwable t) {
+            MCVer.getMinecraft().crashed(CrashReport.makeCrashReport(t, "Spooling frame"));
+        } finally {
+            channels.values().forEach(it -> ByteBufferPool.release(it.getByteBuffer()));
+        }
+    }
+
+    private void write(BitmapFrame frame) throws IOException {
+        ByteBuffer buffer = frame.getByteBuffer().duplicate();
+        int size = buffer.remaining();
+        isTrue(size == frameSize, "Frame has to be %d bytes but was %d", frameSize, size);
+
+        Compressor compressor = compressors.get();
+        int length = compressor.compress(buffer);
+
+        synchronized (this) {
+            recordHeader.clear();
+            recordHeader.putInt(frame.getFrameId()).putInt(length).flip();
+            put(recordHeader);
+            long offset = position;
+            put(ByteBuffer.wrap(compressor.output, 0, length));
+            indexOut.writeInt(frame.getFrameId());
+            indexOut.writeLong(offset);
+            indexOut.writeInt(length);
+            frames++;
+        }
+    }
+
+    private void put(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void writeHeader(int frames, long indexOffset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(format.ordinal());
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(frames);
+        header.putLong(indexOffset);
+        header.flip();
+        long headerPosition = 0;
+        while (header.hasRemaining()) {
+            headerPosition += channel.write(header, headerPosition);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            long indexOffset = position;
+            put(ByteBuffer.wrap(index.toByteArray()));
+            // The index has to be complete on disk before the header points to it
+            channel.force(false);
+            writeHeader(frames, indexOffset);
+        } finally {
+            // Compressors are only reachable through the threads which used them, drop their large arrays now
+            allCompressors.forEach(Compressor::release);
+            allCompressors.clear();
+            channel.close();
+        }
+    }
+
+    private class Compressor {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private byte[] input = new byte[0];
+        private byte[] output = new byte[0];
+
+        Compressor() {
+            allCompressors.add(this);
+        }
+
+        void release() {
+            deflater.end();
+            input = new byte[0];
+            output = new byte[0];
+        }
+
+        /**
+         * @return number of bytes in {@link #output}
+         */
+        int compress(ByteBuffer buffer) {
+            int size = buffer.remaining();
+            if (input.length < size) {
+                input = new byte[size];
+                output = new byte[Math.max(4096, size / 2)];
+            }
+            buffer.get(input, 0, size);
+
+            deflater.reset();
+            deflater.setInput(input, 0, size);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            return length;
+        }
+    }
+}
@@ -9,9 +9,17 @@ public class CubicPboOpenGlFrameCapturer extends
     private final int frameSize;
 
     public CubicPboOpenGlFrameCapturer(WorldRenderer worldRenderer, RenderInfo renderInfo, int frameSize) {
+        this(worldRenderer, renderInfo, frameSize, null);
+    }
+
+    /**
+     * @param usedRegions the regions of each face which are used by the processor, see {@link #setCaptureRegions}
+     */
+    public CubicPboOpenGlFrameCapturer(WorldRenderer worldRenderer, RenderInfo renderInfo, int frameSize, int[][] usedRegions) {
         super(worldRenderer, renderInfo, CubicOpenGlFrameCapturer.Data.class, frameSize * frameSize);
         this.frameSize = frameSize;
         worldRenderer.setOmnidirectional(true);
+        setCaptureRegions(usedRegions);
     }
 
     @Override
@@ -9,6 +9,7 @@ import com.replaymod.render.hooks.FogStateCallback;
 import com.replaymod.render.hooks.Texture2DStateCallback;
 import com.replaymod.render.rendering.Channel;
 import com.replaymod.render.rendering.FrameCapturer;
+import com.replaymod.render.rendering.PipelineStatistics;
 import com.replaymod.render.shader.Program;
 import de.johni0702.minecraft.gui.utils.lwjgl.ReadableDimension;
 import net.minecraft.crash.CrashReport;
@@ -36,6 +37,10 @@ public class ODSFrameCapturer implements FrameCapturer<ODSOpenGlFrame> {
     private EventRegistrations renderStateEvents;
 
     public ODSFrameCapturer(WorldRenderer worldRenderer, final RenderInfo renderInfo, int frameSize) {
+        this(worldRenderer, renderInfo, frameSize, null);
+    }
+
+    public ODSFrameCapturer(WorldRenderer worldRenderer, final RenderInfo renderInfo, int frameSize, int[][] usedRegions) {
         RenderInfo fakeInfo = new RenderInfo() {
             private int call;
             private float partialTicks;
@@ -69,9 +74,14 @@ public class ODSFrameCapturer implements FrameCapturer<ODSOpenGlFrame> {
             public RenderSettings getRenderSettings() {
                 return renderInfo.getRenderSettings();
             }
+
+            @Override
+            public PipelineStatistics getStatistics() {
+                return renderInfo.getStatistics();
+            }
         };
-        left = new CubicStereoFrameCapturer(worldRenderer, fakeInfo, frameSize);
-        right = new CubicStereoFrameCapturer(worldRenderer, fakeInfo, frameSize);
+        left = new CubicStereoFrameCapturer(worldRenderer, fakeInfo, frameSize, usedRegions);
+        right = new CubicStereoFrameCapturer(worldRenderer, fakeInfo, frameSize, usedRegions);
         try {
             shaderProgram = new Program(vertexResource, fragmentResource);
             leftEyeVariable = shaderProgram.getUniformVariable("leftEye");
@@ -150,8 +160,8 @@ public class ODSFrameCapturer implements FrameCapturer<ODSOpenGlFrame> {
     }
 
     private class CubicStereoFrameCapturer extends CubicPboOpenGlFrameCapturer {
-        public CubicStereoFrameCapturer(WorldRenderer worldRenderer, RenderInfo renderInfo, int frameSize) {
-            super(worldRenderer, renderInfo, frameSize);
+        public CubicStereoFrameCapturer(WorldRenderer worldRenderer, RenderInfo renderInfo, int frameSize, int[][] usedRegions) {
+            super(worldRenderer, renderInfo, frameSize, usedRegions);
         }
 
         @Override
@@ -1,56 +1,136 @@
 package com.replaymod.render.capturer;
 
+import com.replaymod.core.versions.MCVer;
+import com.replaymod.mixin.MinecraftAccessor;
 import com.replaymod.render.frame.OpenGlFrame;
 import com.replaymod.render.rendering.Channel;
 import com.replaymod.render.rendering.Frame;
+import com.replaymod.render.rendering.PipelineStatistics;
 import com.replaymod.render.utils.ByteBufferPool;
 import com.replaymod.render.utils.PixelBufferObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lwjgl.glfw.GLFW;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL32;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Reads frames back through a ring of pixel buffer objects, so the GPU can copy the pixels of one frame while the
+ * next ones are already being rendered.
+ * <p>
+ * If supported, the buffers are persistently mapped and frames are handed downstream as views into the mapped
+ * memory, without any copy on the render thread. A buffer is only reused once all views into it have been
+ * {@link ByteBufferPool#release(ByteBuffer) released}. Otherwise each buffer is mapped once it is the oldest one in
+ * the ring and its content is copied into pooled buffers.
+ */
 public abstract class PboOpenGlFrameCapturer<F extends Frame, D extends Enum<D> & CaptureData>
         extends OpenGlFrameCapturer<F, D> {
+    /**
+     * Memory the ring may use at most when its depth is chosen automatically.
+     */
+    private static final long AUTO_RING_BYTES = 512 << 20;
+    private static final int MAX_AUTO_RING_DEPTH = 8;
+    private static final long WARN_RELEASE_WAIT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final Logger LOGGER = LogManager.getLogger();
+
     private final boolean withDepth;
     private final D[] data;
-    private PixelBufferObject pbo, otherPBO;
+    private final int bufferSize;
+    private final boolean persistent;
+    private final Slot[] ring;
+    private Slot writeSlot;
+    private int[][] captureRegions;
 
     public PboOpenGlFrameCapturer(WorldRenderer worldRenderer, RenderInfo renderInfo, Class<D> type, int framePixels) {
         super(worldRenderer, renderInfo);
 
         withDepth = renderInfo.getRenderSettings().isDepthMap();
         data = type.getEnumConstants();
-        int bufferSize = framePixels * (4 /* bgra */ + (withDepth ? 4 /* float */ : 0)) * data.length;
-        pbo = new PixelBufferObject(bufferSize, PixelBufferObject.Usage.READ);
-        otherPBO = new PixelBufferObject(bufferSize, PixelBufferObject.Usage.READ);
+        bufferSize = framePixels * (4 /* bgra */ + (withDepth ? 4 /* float */ : 0)) * data.length;
+        persistent = PixelBufferObject.PERSISTENT_SUPPORTED;
+
+        int depth = renderInfo.getRenderSettings().getPboRingDepth();
+        if (depth <= 0) {
+            depth = (int) Math.min(MAX_AUTO_RING_DEPTH, AUTO_RING_BYTES / bufferSize);
+        }
+        // We always need one buffer to render into while reading from another one
+        ring = new Slot[Math.max(2, depth)];
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Slot(new PixelBufferObject(bufferSize, PixelBufferObject.Usage.READ, persistent));
+        }
     }
 
     protected abstract F create(OpenGlFrame[] from);
 
-    private void swapPBOs() {
-        PixelBufferObject old = pbo;
-        pbo = otherPBO;
-        otherPBO = old;
+    /**
+     * Restricts rendering and readback to the parts of each frame which are actually used downstream.
+     * Content outside of those regions is undefined.
+     *
+     * @param regions for each capture data (by ordinal) the region to capture as {@code {x, y, width, height}} in
+     *                OpenGL coordinates or {@code null} to skip it entirely; {@code null} to capture everything
+     */
+    protected void setCaptureRegions(int[][] regions) {
+        if (regions != null && regions.length != data.length) {
+            throw new IllegalArgumentException("Expected " + data.length + " regions but got " + regions.length);
+        }
+        this.captureRegions = regions;
+    }
+
+    private boolean isCaptured(D captureData) {
+        return captureRegions == null || captureRegions[captureData.ordinal()] != null;
+    }
+
+    /**
+     * @return number of calls to {@link #process()} between rendering a frame and returning it
+     */
+    private int getLatency() {
+        // Persistent buffers are read right after the next frame has been submitted, that is enough time for the
+        // copy to finish and we do not want to hold the slot any longer than necessary.
+        return persistent ? 1 : ring.length;
     }
 
     @Override
     public boolean isDone() {
-        return framesDone >= renderInfo.getTotalFrames() + 2;
+        return framesDone >= renderInfo.getTotalFrames() + getLatency();
     }
 
-    private F readFromPbo(ByteBuffer pboBuffer, int bytesPerPixel) {
+    private F readFromPbo(ByteBuffer pboBuffer, int frameId, int bytesPerPixel) {
         OpenGlFrame[] frames = new OpenGlFrame[data.length];
         int frameBufferSize = getFrameWidth() * getFrameHeight() * bytesPerPixel;
         for (int i = 0; i < frames.length; i++) {
             ByteBuffer frameBuffer = ByteBufferPool.allocate(frameBufferSize);
             pboBuffer.limit(pboBuffer.position() + frameBufferSize);
-            frameBuffer.put(pboBuffer);
+            if (isCaptured(data[i])) {
+                frameBuffer.put(pboBuffer);
+            } else {
+                // Nobody is going to look at this one
+                pboBuffer.position(pboBuffer.limit());
+            }
             frameBuffer.rewind();
-            frames[i] = new OpenGlFrame(framesDone - 2, frameSize, bytesPerPixel, frameBuffer);
+            frames[i] = new OpenGlFrame(frameId, frameSize, bytesPerPixel, frameBuffer);
+        }
+        return create(frames);
+    }
+
+    private F viewPbo(Slot slot, int offset, int frameId, int bytesPerPixel) {
+        OpenGlFrame[] frames = new OpenGlFrame[data.length];
+        int frameBufferSize = getFrameWidth() * getFrameHeight() * bytesPerPixel;
+        for (int i = 0; i < frames.length; i++) {
+            ByteBuffer view = slot.mapping.duplicate();
+            view.limit(offset + frameBufferSize);
+            view.position(offset);
+            view = view.slice().order(ByteOrder.nativeOrder());
+            ByteBufferPool.registerView(view, slot::release);
+            frames[i] = new OpenGlFrame(frameId, frameSize, bytesPerPixel, view);
+            offset += frameBufferSize;
         }
         return create(frames);
     }
@@ -58,48 +138,107 @@ public abstract class PboOpenGlFrameCapturer<F extends Frame, D extends Enum<D>
     @Override
     public Map<Channel, F> process() {
         Map<Channel, F> channels = null;
+        int totalFrames = renderInfo.getTotalFrames();
+
+        if (persistent) {
+            if (framesDone < totalFrames) {
+                writeSlot = ring[framesDone % ring.length];
+                // Only blocks if downstream still holds views into all buffers
+                if (!writeSlot.awaitReleased()) {
+                    return null; // Rendering is being aborted, the pipeline will notice on its own
+                }
+                renderFrames();
+                writeSlot.fence = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            }
 
-        if (framesDone > 1) {
-            // Read pbo to memory
-            pbo.bind();
-            ByteBuffer pboBuffer = pbo.mapReadOnly();
+            if (framesDone >= 1) {
+                long readbackStart = System.nanoTime();
+                Slot slot = ring[(framesDone - 1) % ring.length];
+                slot.awaitFence();
 
-            channels = new HashMap<>();
-            channels.put(Channel.BRGA, readFromPbo(pboBuffer, 4));
-            if (withDepth) {
-                channels.put(Channel.DEPTH, readFromPbo(pboBuffer, 4));
+                int frameId = framesDone - 1;
+                slot.retain(data.length * (withDepth ? 2 : 1));
+                channels = new HashMap<>();
+                channels.put(Channel.BRGA, viewPbo(slot, 0, frameId, 4));
+                if (withDepth) {
+                    channels.put(Channel.DEPTH, viewPbo(slot, bufferSize / 2, frameId, 4));
+                }
+
+                renderInfo.getStatistics().record(PipelineStatistics.Stage.READBACK,
+                        System.nanoTime() - readbackStart, bufferSize);
             }
+        } else {
+            writeSlot = ring[framesDone % ring.length];
+            if (framesDone >= ring.length) {
+                long readbackStart = System.nanoTime();
 
-            pbo.unmap();
-            pbo.unbind();
-        }
+                // Read pbo to memory
+                PixelBufferObject pbo = writeSlot.pbo;
+                pbo.bind();
+                ByteBuffer pboBuffer = pbo.mapReadOnly();
 
-        if (framesDone < renderInfo.getTotalFrames()) {
-            float partialTicks = renderInfo.updateForNextFrame();
-            // Then fill it again
-            for (D data : this.data) {
-                renderFrame(framesDone, partialTicks, data);
+                int frameId = framesDone - ring.length;
+                channels = new HashMap<>();
+                channels.put(Channel.BRGA, readFromPbo(pboBuffer, frameId, 4));
+                if (withDepth) {
+                    channels.put(Channel.DEPTH, readFromPbo(pboBuffer, frameId, 4));
+                }
+
+                pbo.unmap();
+                pbo.unbind();
+
+                renderInfo.getStatistics().record(PipelineStatistics.Stage.READBACK,
+                        System.nanoTime() - readbackStart, bufferSize);
+            }
+
+            if (framesDone < totalFrames) {
+                // Then fill it again
+                renderFrames();
             }
         }
 
         framesDone++;
-        swapPBOs();
         return channels;
     }
 
+    private void renderFrames() {
+        float partialTicks = renderInfo.updateForNextFrame();
+        for (D data : this.data) {
+            if (isCaptured(data)) {
+                renderFrame(framesDone, partialTicks, data);
+            }
+        }
+    }
+
     @Override
     protected OpenGlFrame captureFrame(int frameId, D captureData) {
+        PixelBufferObject pbo = writeSlot.pbo;
         pbo.bind();
 
-        int offset = captureData.ordinal() * getFrameWidth() * getFrameHeight() * 4;
+        int x = 0, y = 0, width = getFrameWidth(), height = getFrameHeight();
+        int[] region = captureRegions == null ? null : captureRegions[captureData.ordinal()];
+        if (region != null) {
+            x = region[0];
+            y = region[1];
+            width = region[2];
+            height = region[3];
+            // Rows still need to end up at their place in the full frame
+            GL11.glPixelStorei(GL11.GL_PACK_ROW_LENGTH, getFrameWidth());
+        }
+
+        int offset = (captureData.ordinal() * getFrameWidth() * getFrameHeight() + y * getFrameWidth() + x) * 4;
         frameBuffer().bindFramebuffer(true);
-        GL11.glReadPixels(0, 0, getFrameWidth(), getFrameHeight(), GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, offset);
+        GL11.glReadPixels(x, y, width, height, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, offset);
         if (withDepth) {
             offset += data.length * getFrameWidth() * getFrameHeight() * 4;
-            GL11.glReadPixels(0, 0, getFrameWidth(), getFrameHeight(), GL11.GL_DEPTH_COMPONENT, GL11.GL_FLOAT, offset);
+            GL11.glReadPixels(x, y, width, height, GL11.GL_DEPTH_COMPONENT, GL11.GL_FLOAT, offset);
         }
         frameBuffer().unbindFramebuffer();
 
+        if (region != null) {
+            GL11.glPixelStorei(GL11.GL_PACK_ROW_LENGTH, 0);
+        }
+
         pbo.unbind();
         return null;
     }
@@ -107,7 +246,92 @@ public abstract class PboOpenGlFrameCapturer<F extends Frame, D extends Enum<D>
     @Override
     public void close() throws IOException {
         super.close();
-        pbo.delete();
-        otherPBO.delete();
+        for (Slot slot : ring) {
+            slot.deleteFence();
+            slot.pbo.delete();
+        }
+    }
+
+    private static class Slot {
+        private final PixelBufferObject pbo;
+        private final ByteBuffer mapping;
+        private long fence;
+        private int views;
+
+        Slot(PixelBufferObject pbo) {
+            this.pbo = pbo;
+            this.mapping = pbo.isPersistentlyMapped() ? pbo.getPersistentMapping() : null;
+        }
+
+        synchronized void retain(int count) {
+            views += count;
+        }
+
+        synchronized void release() {
+            if (views <= 0) {
+                LOGGER.warn("PBO view released more often than it was handed out.");
+                return;
+            }
+            if (--views == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until all views into this slot have been released. Never gives up on its own, the content of the
+         * buffer may still be read by whoever holds a view.
+         *
+         * @return {@code false} if rendering is being aborted (the game has crashed, the window was closed or the
+         * thread was interrupted) before all views were released
+         */
+        synchronized boolean awaitReleased() {
+            long start = System.nanoTime();
+            boolean warned = false;
+            while (views > 0) {
+                if (isAborted()) {
+                    return false;
+                }
+                if (!warned && System.nanoTime() - start >= WARN_RELEASE_WAIT_NANOS) {
+                    warned = true;
+                    LOGGER.warn("Still waiting for {} frame views into PBO to be released.", views);
+                }
+                try {
+                    // Releases notify us, the timeout is only to check for aborts
+                    wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isAborted() {
+            // Same conditions under which the pipeline stops capturing
+            return GLFW.glfwWindowShouldClose(MCVer.getMinecraft().getMainWindow().getHandle())
+                    || ((MinecraftAccessor) MCVer.getMinecraft()).getCrashReporter() != null;
+        }
+
+        void awaitFence() {
+            int flags = GL32.GL_SYNC_FLUSH_COMMANDS_BIT;
+            while (true) {
+                int result = GL32.glClientWaitSync(fence, flags, 1_000_000_000L);
+                if (result == GL32.GL_ALREADY_SIGNALED || result == GL32.GL_CONDITION_SATISFIED) {
+                    break;
+                }
+                if (result == GL32.GL_WAIT_FAILED) {
+                    throw new IllegalStateException("Failed to wait for frame readback.");
+                }
+                flags = 0; // only need to flush once
+            }
+            deleteFence();
+        }
+
+        void deleteFence() {
+            if (fence != 0) {
+                GL32.glDeleteSync(fence);
+                fence = 0;
+            }
+        }
     }
 }
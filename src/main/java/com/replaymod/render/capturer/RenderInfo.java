@@ -1,6 +1,7 @@
 package com.replaymod.render.capturer;
 
 import com.replaymod.render.RenderSettings;
+import com.replaymod.render.rendering.PipelineStatistics;
 import de.johni0702.minecraft.gui.utils.lwjgl.ReadableDimension;
 
 public interface RenderInfo {
@@ -13,4 +14,6 @@ public interface RenderInfo {
     float updateForNextFrame();
 
     RenderSettings getRenderSettings();
+
+    PipelineStatistics getStatistics();
 }
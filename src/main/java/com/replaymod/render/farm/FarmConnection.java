@@ -0,0 +1,149 @@
+package com.replaymod.render.farm;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Connection between render farm coordinator and worker.
+ * <p>
+ * The worker starts with a hello of fixed size, consisting of {@link #HELLO_MAGIC} and the SHA-256 hash of the shared
+ * token, so the coordinator can authenticate it before reading anything of variable size.
+ * All further messages are JSON objects with a {@code type}, each preceded by its length. A {@code file} message is
+ * followed by the raw content of the file.
+ */
+class FarmConnection implements Closeable {
+    private static final int MAX_MESSAGE_BYTES = 64 << 20;
+    private static final int HELLO_MAGIC = 0x524d4631; // RMF1
+    private static final int TOKEN_HASH_BYTES = 32;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    FarmConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+    }
+
+    static JsonObject message(String type) {
+        JsonObject message = new JsonObject();
+        message.addProperty("type", type);
+        return message;
+    }
+
+    static String getType(JsonObject message) {
+        return message.has("type") ? message.get("type").getAsString() : "";
+    }
+
+    void sendHello(String token) throws IOException {
+        out.writeInt(HELLO_MAGIC);
+        out.write(hashToken(token));
+        out.flush();
+    }
+
+    /**
+     * Reads the hello of a worker, waiting at most the given time for it.
+     *
+     * @return whether the worker sent the given token
+     */
+    boolean receiveHello(String token, int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+        int magic = in.readInt();
+        byte[] hash = new byte[TOKEN_HASH_BYTES];
+        in.readFully(hash);
+        socket.setSoTimeout(0);
+        return magic == HELLO_MAGIC && MessageDigest.isEqual(hash, hashToken(token));
+    }
+
+    private static byte[] hashToken(String token) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has to support SHA-256
+        }
+    }
+
+    String getRemoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    synchronized void send(JsonObject message) throws IOException {
+        byte[] bytes = message.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    JsonObject receive() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_MESSAGE_BYTES) {
+            throw new IOException("Invalid message length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        try {
+            return new JsonParser().parse(new String(bytes, StandardCharsets.UTF_8)).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Invalid message", e);
+        }
+    }
+
+    synchronized void sendFile(File file) throws IOException {
+        JsonObject header = message("file");
+        header.addProperty("name", file.getName());
+        header.addProperty("size", file.length());
+        byte[] bytes = header.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        Files.copy(file.toPath(), out);
+        out.flush();
+    }
+
+    /**
+     * @return name of the file as sent by the other side, checked to not contain any path
+     */
+    static String getFileName(JsonObject header) throws IOException {
+        String name = header.get("name").getAsString();
+        if (name.isEmpty() || !new File(name).getName().equals(name) || name.equals("..")) {
+            throw new IOException("Invalid file name " + name);
+        }
+        return name;
+    }
+
+    /**
+     * Receives the content of the file announced by the given message into the given file.
+     */
+    void receiveFile(JsonObject header, File target) throws IOException {
+        long size = header.get("size").getAsLong();
+        try (OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(target), 1 << 16)) {
+            if (IOUtils.copyLarge(in, fileOut, 0, size) != size) {
+                throw new EOFException("Connection closed while receiving " + target.getName());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
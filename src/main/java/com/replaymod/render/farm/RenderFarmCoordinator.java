@@ -0,0 +1,397 @@
+package com.replaymod.render.farm;
+
+import com.google.gson.JsonObject;
+import com.replaymod.core.ReplayMod;
+import com.replaymod.core.utils.Utils;
+import com.replaymod.gui.container.GuiPanel;
+import com.replaymod.gui.container.VanillaGuiScreen;
+import com.replaymod.gui.element.GuiLabel;
+import com.replaymod.gui.element.advanced.GuiProgressBar;
+import com.replaymod.gui.layout.VerticalLayout;
+import com.replaymod.gui.utils.Colors;
+import com.replaymod.render.FFmpegWriter;
+import com.replaymod.render.RenderSettings;
+import com.replaymod.render.metadata.MetadataInjector;
+import com.replaymod.render.utils.RenderJob;
+import com.replaymod.replaystudio.lib.viaversion.util.Pair;
+import net.minecraft.crash.CrashReport;
+import net.minecraft.crash.ReportedException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.replaymod.core.versions.MCVer.getMinecraft;
+import static com.replaymod.render.ReplayModRender.LOGGER;
+
+/**
+ * Splits render jobs into frame ranges and hands them to the {@link RenderFarmWorker}s which connect to it, so a job
+ * is rendered by several clients (e.g. on different machines) at the same time.
+ * <p>
+ * Workers need the replay in their own replay folder. They send back what they have rendered: frames of image
+ * sequences are put into the output folder right away, the videos of all ranges of a job are joined without
+ * re-encoding once the last one has arrived. A range is handed to another worker if one fails or disconnects.
+ * <p>
+ * Workers have to present the shared token in their hello, see {@link FarmConnection}. The coordinator only listens
+ * on the given bind address, it refuses to listen on anything but loopback without a token. At most
+ * {@link #MAX_CONNECTIONS} connections are served at once.
+ * <p>
+ * Workers encode with the default arguments of the job's encoding preset, jobs with custom export arguments are
+ * refused so a farm render never silently differs from a local one.
+ */
+public class RenderFarmCoordinator {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int BACKLOG = 50;
+    private static final int MAX_CONNECTIONS = 64;
+    private static final int HELLO_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+
+    private final String bindAddress;
+    private final int port;
+    private final String token;
+    private final int rangesPerJob;
+    private final List<Job> jobs = new ArrayList<>();
+    private final LinkedList<Range> pending = new LinkedList<>();
+    private final int totalFrames;
+    private int framesDone;
+    private int jobsRemaining;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private ServerSocket serverSocket;
+    private final Semaphore connectionPermits = new Semaphore(MAX_CONNECTIONS);
+    private volatile Consumer<Float> progressListener = progress -> {};
+
+    /**
+     * @param replays       replay files with the jobs to render for each one
+     * @param bindAddress   address of the interface to listen on
+     * @param token         shared secret which workers have to present
+     * @param rangesPerJob  number of frame ranges each job is split into, should be at least the number of workers
+     */
+    public RenderFarmCoordinator(List<Pair<File, List<RenderJob>>> replays, String bindAddress, int port, String token,
+                                 int rangesPerJob) {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.token = token;
+        this.rangesPerJob = Math.max(1, rangesPerJob);
+        int totalFrames = 0;
+        for (Pair<File, List<RenderJob>> replay : replays) {
+            for (RenderJob renderJob : replay.getValue()) {
+                Job job = new Job(replay.getKey().getName(), renderJob);
+                if (job.ranges.isEmpty()) {
+                    LOGGER.warn("Skipping {}, it has no frames to render", renderJob.getName());
+                    continue;
+                }
+                jobs.add(job);
+                pending.addAll(job.ranges);
+                totalFrames += renderJob.getFrameCount();
+            }
+        }
+        this.totalFrames = totalFrames;
+        this.jobsRemaining = jobs.size();
+    }
+
+    /**
+     * Accepts workers until all jobs are done, in the background.
+     */
+    public CompletableFuture<Void> start() throws IOException {
+        for (Job job : jobs) {
+            if (job.hasCustomExportArguments()) {
+                throw new IOException("Render job " + job.renderJob.getName() + " uses custom export arguments."
+                        + " Render farm workers only encode with the defaults of the encoding preset,"
+                        + " render it locally or reset its export arguments.");
+            }
+        }
+        InetAddress address = InetAddress.getByName(bindAddress);
+        if (token.isEmpty() && !address.isLoopbackAddress()) {
+            throw new IOException("Render farm coordinator requires a token to listen on " + bindAddress);
+        }
+        serverSocket = new ServerSocket(port, BACKLOG, address);
+        LOGGER.info("Render farm coordinator listening on {}:{} with {} frame ranges", bindAddress, port, pending.size());
+        if (jobs.isEmpty()) {
+            complete();
+        }
+        Thread acceptThread = new Thread(() -> {
+            int connections = 0;
+            while (!future.isDone()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (!future.isDone()) {
+                        fail(e);
+                    }
+                    return;
+                }
+                if (!connectionPermits.tryAcquire()) {
+                    LOGGER.warn("Refusing render farm connection from {}, already serving {} connections",
+                            socket.getRemoteSocketAddress(), MAX_CONNECTIONS);
+                    IOUtils.closeQuietly(socket);
+                    continue;
+                }
+                new Thread(() -> {
+                    try {
+                        serve(socket);
+                    } finally {
+                        connectionPermits.release();
+                    }
+                }, "replaymod-farm-connection-" + connections++).start();
+            }
+        }, "replaymod-farm-coordinator");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return future;
+    }
+
+    /**
+     * Runs this coordinator, showing its progress in the background process list.
+     */
+    public void startInBackground(ReplayMod core) {
+        GuiLabel label = new GuiLabel().setI18nText("replaymod.gui.rendering.farm", port).setColor(Colors.BLACK);
+        GuiProgressBar progressBar = new GuiProgressBar().setHeight(14);
+        GuiPanel farmProcess = new GuiPanel()
+                .setLayout(new VerticalLayout())
+                .addElements(new VerticalLayout.Data(0.5), label, progressBar);
+        progressListener = progress -> core.runLater(() -> progressBar.setProgress(progress));
+        new Thread(() -> {
+            core.runLater(() -> core.getBackgroundProcesses().addProcess(farmProcess));
+            try {
+                start().get();
+                core.runLater(() -> core.printInfoToChat("replaymod.chat.farmdone", jobs.size()));
+            } catch (Throwable t) {
+                Throwable cause = t instanceof ExecutionException ? t.getCause() : t;
+                CrashReport crashReport = cause instanceof ReportedException
+                        ? ((ReportedException) cause).getCrashReport()
+                        : CrashReport.makeCrashReport(cause, "Coordinating render farm");
+                core.runLater(() -> Utils.error(LOGGER, VanillaGuiScreen.wrap(getMinecraft().currentScreen), crashReport, () -> {
+                }));
+            } finally {
+                core.runLater(() -> core.getBackgroundProcesses().removeProcess(farmProcess));
+            }
+        }, "replaymod-farm").start();
+    }
+
+    private void serve(Socket socket) {
+        try (FarmConnection connection = new FarmConnection(socket)) {
+            if (!connection.receiveHello(token, HELLO_TIMEOUT_MILLIS)) {
+                throw new IOException("Worker " + connection.getRemoteAddress() + " sent an invalid hello or token");
+            }
+            LOGGER.info("Render farm worker {} connected", connection.getRemoteAddress());
+            while (true) {
+                Range range = takeRange();
+                if (range == null) {
+                    connection.send(FarmConnection.message("done"));
+                    return;
+                }
+                try {
+                    render(connection, range);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.warn("Worker {} failed to render {}:", connection.getRemoteAddress(), range, e);
+                    failed(range, e);
+                    return;
+                }
+                completed(range);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Render farm connection failed:", e);
+        }
+    }
+
+    private void render(FarmConnection connection, Range range) throws IOException {
+        Job job = range.job;
+        JsonObject assignment = FarmConnection.message("assign");
+        assignment.addProperty("replay", job.replayName);
+        assignment.addProperty("job", RenderJob.toJson(job.renderJob));
+        assignment.addProperty("range", range.index);
+        assignment.addProperty("startFrame", range.startFrame);
+        assignment.addProperty("endFrame", range.endFrame);
+        connection.send(assignment);
+        LOGGER.info("Rendering {} on worker {}", range, connection.getRemoteAddress());
+
+        while (true) {
+            JsonObject message = connection.receive();
+            switch (FarmConnection.getType(message)) {
+                case "file":
+                    File target = job.getTarget(range, FarmConnection.getFileName(message));
+                    connection.receiveFile(message, target);
+                    break;
+                case "finished":
+                    return;
+                case "failed":
+                    throw new IOException("Worker failed: " + message.get("message").getAsString());
+                default:
+                    throw new IOException("Unexpected message " + message);
+            }
+        }
+    }
+
+    private synchronized Range takeRange() {
+        while (pending.isEmpty() && !future.isDone()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return future.isDone() ? null : pending.removeFirst();
+    }
+
+    private void completed(Range range) {
+        Job job = range.job;
+        boolean jobDone;
+        synchronized (this) {
+            framesDone += range.endFrame - range.startFrame;
+            jobDone = --job.rangesRemaining == 0;
+        }
+        progressListener.accept(totalFrames == 0 ? 1 : (float) framesDone / totalFrames);
+        if (!jobDone) {
+            return;
+        }
+        try {
+            job.stitch();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            return;
+        }
+        synchronized (this) {
+            if (--jobsRemaining > 0) {
+                return;
+            }
+        }
+        complete();
+    }
+
+    private synchronized void failed(Range range, Throwable cause) {
+        if (++range.attempts >= MAX_ATTEMPTS) {
+            fail(cause);
+        } else {
+            pending.addFirst(range);
+            notifyAll();
+        }
+    }
+
+    private synchronized void complete() {
+        future.complete(null);
+        close();
+    }
+
+    private synchronized void fail(Throwable cause) {
+        future.completeExceptionally(cause);
+        close();
+    }
+
+    private synchronized void close() {
+        IOUtils.closeQuietly(serverSocket);
+        notifyAll();
+    }
+
+    private class Job {
+        private final String replayName;
+        private final RenderJob renderJob;
+        private final RenderSettings settings;
+        private final List<Range> ranges = new ArrayList<>();
+        private final File[] parts;
+        private int rangesRemaining;
+
+        Job(String replayName, RenderJob renderJob) {
+            this.replayName = replayName;
+            this.renderJob = renderJob;
+            this.settings = renderJob.getSettings();
+
+            // Whole seconds per range, so joined videos have no odd frame timestamps at the seams
+            int fps = settings.getFramesPerSecond();
+            int frames = renderJob.getFrameCount();
+            int framesPerRange = Math.max(1, (frames / rangesPerJob + fps - 1) / fps) * fps;
+            int startFrame = settings.getStartFrame();
+            for (int from = 0; from < frames; from += framesPerRange) {
+                ranges.add(new Range(this, ranges.size(), startFrame + from, startFrame + Math.min(frames, from + framesPerRange)));
+            }
+            parts = new File[ranges.size()];
+            rangesRemaining = ranges.size();
+        }
+
+        boolean hasCustomExportArguments() {
+            if (isImageSequence()) {
+                return false; // Not encoded with ffmpeg
+            }
+            String arguments = settings.getExportArguments();
+            return arguments != null && !arguments.trim().equals(settings.getEncodingPreset().getValue().trim());
+        }
+
+        boolean isImageSequence() {
+            return settings.getEncodingPreset() == RenderSettings.EncodingPreset.EXR
+                    || settings.getEncodingPreset() == RenderSettings.EncodingPreset.PNG;
+        }
+
+        /**
+         * @return where a file rendered for the given range is stored
+         */
+        File getTarget(Range range, String name) throws IOException {
+            File outputFile = settings.getOutputFile();
+            if (isImageSequence()) {
+                // Frames are named after their number, so they are simply collected in the output folder
+                FileUtils.forceMkdir(outputFile);
+                return new File(outputFile, name);
+            }
+            FileUtils.forceMkdir(outputFile.getParentFile());
+            File part = new File(outputFile.getParentFile(), FilenameUtils.getBaseName(outputFile.getName())
+                    + ".range" + range.index + "." + FilenameUtils.getExtension(outputFile.getName()));
+            synchronized (parts) {
+                parts[range.index] = part;
+            }
+            return part;
+        }
+
+        void stitch() throws IOException {
+            if (isImageSequence()) {
+                return;
+            }
+            List<File> parts;
+            synchronized (this.parts) {
+                parts = Arrays.asList(this.parts);
+            }
+            if (parts.contains(null)) {
+                throw new IOException("Missing video of at least one range of " + settings.getOutputFile().getName());
+            }
+            FFmpegWriter.join(settings, parts);
+            parts.forEach(FileUtils::deleteQuietly);
+            if (settings.isInjectSphericalMetadata()) {
+                MetadataInjector.injectMetadata(settings.getRenderMethod(), settings.getOutputFile(),
+                        settings.getTargetVideoWidth(), settings.getTargetVideoHeight(),
+                        settings.getSphericalFovX(), settings.getSphericalFovY());
+            }
+        }
+    }
+
+    private static class Range {
+        private final Job job;
+        private final int index;
+        private final int startFrame;
+        private final int endFrame;
+        private int attempts;
+
+        Range(Job job, int index, int startFrame, int endFrame) {
+            this.job = job;
+            this.index = index;
+            this.startFrame = startFrame;
+            this.endFrame = endFrame;
+        }
+
+        @Override
+        public String toString() {
+            return job.settings.getOutputFile().getName() + " frames " + startFrame + "-" + endFrame;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.replaymod.render.farm;
+
+import com.google.gson.JsonObject;
+import com.replaymod.core.ReplayMod;
+import com.replaymod.core.versions.MCVer;
+import com.replaymod.render.RenderSettings;
+import com.replaymod.render.ReplayModRender;
+import com.replaymod.render.rendering.VideoRenderer;
+import com.replaymod.render.utils.RenderJob;
+import com.replaymod.replay.ReplayHandler;
+import com.replaymod.replay.ReplayModReplay;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import net.minecraft.client.Minecraft;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.replaymod.render.ReplayModRender.LOGGER;
+
+/**
+ * Renders frame ranges handed out by a {@link RenderFarmCoordinator} and sends the results back to it.
+ * <p>
+ * Keeps trying to connect to the coordinator, so workers can be started before it and are reused for later farm
+ * renders. The replay has to be in the replay folder of the worker, it stays open between ranges.
+ */
+public class RenderFarmWorker {
+    private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final ReplayMod core;
+    private final String host;
+    private final int port;
+    private final String token;
+    /**
+     * Name of the replay opened for the last range, only accessed on the main thread.
+     */
+    private String openReplay;
+
+    /**
+     * @param coordinator host and port of the coordinator, separated by a colon
+     * @param token       shared secret the coordinator expects from its workers
+     */
+    public RenderFarmWorker(ReplayMod core, String coordinator, String token) {
+        this.core = core;
+        this.token = token;
+        int separator = coordinator.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Render farm coordinator must be given as host:port but was " + coordinator);
+        }
+        this.host = coordinator.substring(0, separator);
+        this.port = Integer.parseInt(coordinator.substring(separator + 1));
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::run, "replaymod-farm-worker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try (FarmConnection connection = new FarmConnection(new Socket(host, port))) {
+                LOGGER.info("Connected to render farm coordinator {}:{}", host, port);
+                serve(connection);
+            } catch (IOException e) {
+                LOGGER.debug("Render farm coordinator {}:{} not available:", host, port, e);
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(FarmConnection connection) throws IOException {
+        connection.sendHello(token);
+        while (true) {
+            JsonObject message = connection.receive();
+            switch (FarmConnection.getType(message)) {
+                case "done":
+                    return;
+                case "assign":
+                    break;
+                default:
+                    throw new IOException("Unexpected message " + message);
+            }
+
+            CompletableFuture<File> rendered = new CompletableFuture<>();
+            core.runLaterWithoutLock(() -> {
+                try {
+                    rendered.complete(render(message));
+                } catch (Throwable t) {
+                    rendered.completeExceptionally(t);
+                }
+            });
+            File output;
+            try {
+                output = rendered.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rendering");
+            } catch (ExecutionException e) {
+                LOGGER.error("Rendering frame range for render farm:", e.getCause());
+                JsonObject failed = FarmConnection.message("failed");
+                failed.addProperty("message", String.valueOf(e.getCause()));
+                connection.send(failed);
+                continue;
+            }
+
+            try {
+                if (output.isDirectory()) {
+                    File[] files = output.listFiles(File::isFile);
+                    if (files != null) {
+                        Arrays.sort(files);
+                        for (File file : files) {
+                            connection.sendFile(file);
+                        }
+                    }
+                } else {
+                    connection.sendFile(output);
+                }
+            } finally {
+                FileUtils.deleteQuietly(output);
+            }
+            connection.send(FarmConnection.message("finished"));
+        }
+    }
+
+    /**
+     * Renders the assigned range, must be called on the main thread.
+     *
+     * @return the rendered video, or the folder with the rendered frames
+     */
+    private File render(JsonObject assignment) throws Throwable {
+        String replayName = assignment.get("replay").getAsString();
+        RenderJob job = RenderJob.fromJson(assignment.get("job").getAsString());
+        int index = assignment.get("range").getAsInt();
+        int startFrame = assignment.get("startFrame").getAsInt();
+        int endFrame = assignment.get("endFrame").getAsInt();
+
+        ReplayHandler replayHandler = openReplay(replayName);
+
+        RenderSettings settings = job.getSettings();
+        String name = FilenameUtils.getBaseName(settings.getOutputFile().getName()) + ".range" + index
+                + "." + settings.getEncodingPreset().getFileExtension();
+        File output = new File(new File(ReplayModRender.instance.getVideoFolder(), "farm"), name);
+        FileUtils.deleteQuietly(output);
+        FileUtils.forceMkdir(output.getParentFile());
+
+        LOGGER.info("Rendering frames {} to {} of {} for render farm", startFrame, endFrame, job.getName());
+        VideoRenderer videoRenderer = new VideoRenderer(settings.forFrameRange(output, startFrame, endFrame),
+                replayHandler, job.getTimeline());
+        if (!videoRenderer.renderVideo()) {
+            throw new IOException("Rendering was cancelled");
+        }
+        return output;
+    }
+
+    private ReplayHandler openReplay(String name) throws IOException {
+        ReplayModReplay mod = ReplayModReplay.instance;
+        ReplayHandler replayHandler = mod.getReplayHandler();
+        if (replayHandler != null && name.equals(openReplay)) {
+            return replayHandler;
+        }
+
+        Path folder = core.getReplayFolder();
+        Path path = folder.resolve(name);
+        if (!path.getParent().equals(folder) || !Files.exists(path)) {
+            throw new FileNotFoundException("Replay " + name + " not found in " + folder);
+        }
+        LOGGER.info("Opening replay {} for render farm", path);
+        ReplayFile replayFile = core.openReplay(path);
+        try {
+            replayHandler = mod.startReplay(replayFile, false, false);
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeQuietly(replayFile);
+            throw e;
+        }
+        openReplay = name;
+
+        Minecraft mc = MCVer.getMinecraft();
+        int jumpTo = 1000;
+        while (mc.world == null && jumpTo < replayHandler.getReplayDuration()) {
+            replayHandler.getReplaySender().sendPacketsTill(jumpTo);
+            jumpTo += 1000;
+        }
+        if (mc.world == null) {
+            throw new IOException("Replay " + name + " failed to load world");
+        }
+        return replayHandler;
+    }
+}
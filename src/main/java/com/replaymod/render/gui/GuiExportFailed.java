@@ -102,7 +102,17 @@ public class GuiExportFailed extends GuiScreen {
                     oldSettings.getAntiAliasing(),
                     oldSettings.getExportCommand(),
                     oldSettings.getEncodingPreset().getValue(),
-                    oldSettings.isHighPerformance()
+                    oldSettings.isHighPerformance(),
+                    oldSettings.getProcessingThreads(),
+                    oldSettings.getFrameQueueDepth(),
+                    oldSettings.getPboRingDepth(),
+                    oldSettings.getPixelFormat(),
+                    oldSettings.isSpool(),
+                    oldSettings.getExrCompression(),
+                    oldSettings.getAdditionalOutputs(),
+                    oldSettings.getStartFrame(),
+                    oldSettings.getEndFrame(),
+                    oldSettings.isResumable()
             ));
         }));
 
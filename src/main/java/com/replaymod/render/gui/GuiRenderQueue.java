@@ -20,6 +20,7 @@ import com.replaymod.gui.utils.Colors;
 import com.replaymod.render.FFmpegWriter;
 import com.replaymod.render.RenderSettings;
 import com.replaymod.render.ReplayModRender;
+import com.replaymod.render.Setting;
 import com.replaymod.render.rendering.VideoRenderer;
 import com.replaymod.render.utils.RenderJob;
 import com.replaymod.replay.ReplayHandler;
@@ -53,6 +54,7 @@ public class GuiRenderQueue extends AbstractGuiPopup<GuiRenderQueue> implements
     private final GuiButton removeButton = new GuiButton().setI18nLabel("replaymod.gui.remove").setSize(73, 20);
     private final GuiButton renderButton = new GuiButton().setSize(150, 20);
     private final GuiButton closeButton = new GuiButton().setI18nLabel("replaymod.gui.close").setSize(150, 20).onClick(this::close);
+    private final GuiButton spoolFilesButton = new GuiButton().setI18nLabel("replaymod.gui.spoolfiles.title").setSize(150, 20);
 
     /*
 
@@ -60,6 +62,8 @@ public class GuiRenderQueue extends AbstractGuiPopup<GuiRenderQueue> implements
     |       Add       |     Render    |
     |---------------------------------|
     |  Edit  | Remove |     Close     |
+    |---------------------------------|
+    |   Spool files   |               |
     |---------------------------------|
 
      */
@@ -70,7 +74,9 @@ public class GuiRenderQueue extends AbstractGuiPopup<GuiRenderQueue> implements
                     renderButton,
                     new GuiPanel().setLayout(new HorizontalLayout().setSpacing(4)).addElements(null,
                             editButton, removeButton),
-                    closeButton);
+                    closeButton,
+                    spoolFilesButton,
+                    new GuiLabel());
 
     private final AbstractGuiScreen<?> container;
     private final ReplayHandler replayHandler;
@@ -150,6 +156,9 @@ public class GuiRenderQueue extends AbstractGuiPopup<GuiRenderQueue> implements
             }));
         });
 
+        spoolFilesButton.onClick(() -> new GuiSpoolFiles(container).open());
+        spoolFilesButton.setEnabled(!GuiSpoolFiles.findSpoolFiles(mod.getVideoFolder()).isEmpty());
+
         updateButtons();
     }
 
@@ -159,11 +168,22 @@ public class GuiRenderQueue extends AbstractGuiPopup<GuiRenderQueue> implements
         // Close all GUIs (so settings in GuiRenderSettings are saved)
         mc.displayGuiScreen(null);
         // Start rendering
+        boolean renderCamerasTogether = ReplayModRender.instance.getCore().getSettingsRegistry().get(Setting.RENDER_CAMERAS_TOGETHER);
         int jobsDone = 0;
-        for (RenderJob renderJob : queue) {
-            LOGGER.info("Starting render job {}", renderJob);
+        Iterator<RenderJob> iter = queue.iterator();
+        RenderJob next = iter.hasNext() ? iter.next() : null;
+        while (next != null) {
+            RenderJob renderJob = next;
+            next = iter.hasNext() ? iter.next() : null;
+            // Consecutive jobs which only differ in their camera are rendered in a single pass over the replay
+            List<RenderJob> additionalCameras = new ArrayList<>();
+            while (renderCamerasTogether && next != null && renderJob.canRenderTogether(next)) {
+                additionalCameras.add(next);
+                next = iter.hasNext() ? iter.next() : null;
+            }
+            LOGGER.info("Starting render job {} with {} additional cameras", renderJob, additionalCameras.size());
             try {
-                VideoRenderer videoRenderer = new VideoRenderer(renderJob.getSettings(), replayHandler, renderJob.getTimeline());
+                VideoRenderer videoRenderer = new VideoRenderer(renderJob.getSettings(), replayHandler, renderJob.getTimeline(), additionalCameras);
                 videoRenderer.renderVideo();
             } catch (FFmpegWriter.NoFFmpegException e) {
                 LOGGER.error("Rendering video:", e);
@@ -176,9 +196,11 @@ public class GuiRenderQueue extends AbstractGuiPopup<GuiRenderQueue> implements
                 return;
             } catch (FFmpegWriter.FFmpegStartupException e) {
                 int jobsToSkip = jobsDone;
+                RenderJob failedJob = additionalCameras.stream().filter(it -> it.getSettings() == e.getSettings())
+                        .findFirst().orElse(renderJob);
                 GuiExportFailed.tryToRecover(e, newSettings -> {
-                    // Update current job with fixed ffmpeg arguments
-                    renderJob.setSettings(newSettings);
+                    // Update failed job with fixed ffmpeg arguments
+                    failedJob.setSettings(newSettings);
                     // Restart queue, skipping the already completed jobs
                     ReplayMod.instance.runLaterWithoutLock(() -> processQueue(container, replayHandler, Iterables.skip(queue, jobsToSkip), done));
                 });
@@ -189,7 +211,7 @@ public class GuiRenderQueue extends AbstractGuiPopup<GuiRenderQueue> implements
                 container.display(); // Re-show the queue popup and the new error popup
                 return;
             }
-            jobsDone++;
+            jobsDone += 1 + additionalCameras.size();
         }
         done.run();
     }
@@ -43,6 +43,7 @@ import java.nio.file.InvalidPathException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
 
@@ -183,9 +184,28 @@ public class GuiRenderSettings extends AbstractGuiPopup<GuiRenderSettings> {
     public final com.replaymod.gui.element.GuiCheckbox cameraPathExport = new com.replaymod.gui.element.GuiCheckbox()
             .setI18nLabel("replaymod.gui.rendersettings.camerapath");
 
+    public final com.replaymod.gui.element.GuiCheckbox spoolCheckbox = new com.replaymod.gui.element.GuiCheckbox()
+            .setI18nLabel("replaymod.gui.rendersettings.spool");
+
+    public final com.replaymod.gui.element.GuiCheckbox resumableCheckbox = new com.replaymod.gui.element.GuiCheckbox()
+            .setI18nLabel("replaymod.gui.rendersettings.resumable");
+
+    public final com.replaymod.gui.element.GuiNumberField startFrameField = new com.replaymod.gui.element.GuiNumberField()
+            .setSize(50, 20).setMinValue(0).setValue(0).setValidateOnFocusChange(true);
+    public final com.replaymod.gui.element.GuiNumberField endFrameField = new com.replaymod.gui.element.GuiNumberField()
+            .setSize(50, 20).setMinValue(0).setValue(0).setValidateOnFocusChange(true);
+    public final GuiPanel frameRangePanel = new GuiPanel().setLayout(new HorizontalLayout(HorizontalLayout.Alignment.RIGHT).setSpacing(3))
+            .addElements(new HorizontalLayout.Data(0.5), startFrameField, new com.replaymod.gui.element.GuiLabel().setText("-"), endFrameField);
+
     public final GuiDropdownMenu<RenderSettings.AntiAliasing> antiAliasingDropdown = new GuiDropdownMenu<RenderSettings.AntiAliasing>()
             .setSize(200, 20).setValues(RenderSettings.AntiAliasing.values()).setSelected(RenderSettings.AntiAliasing.NONE);
 
+    public final GuiDropdownMenu<RenderSettings.PixelFormat> pixelFormatDropdown = new GuiDropdownMenu<RenderSettings.PixelFormat>()
+            .setSize(200, 20).setValues(RenderSettings.PixelFormat.values()).setSelected(RenderSettings.PixelFormat.BGRA);
+
+    public final GuiDropdownMenu<RenderSettings.ExrCompression> exrCompressionDropdown = new GuiDropdownMenu<RenderSettings.ExrCompression>()
+            .setSize(200, 20).setValues(RenderSettings.ExrCompression.values()).setSelected(RenderSettings.ExrCompression.ZIP);
+
     public final GuiPanel advancedPanel = new GuiPanel().setLayout(new VerticalLayout().setSpacing(15))
             .addElements(null, nametagCheckbox, new GuiPanel().setLayout(
                     new GridLayout().setCellsEqualSize(false).setColumns(2).setSpacingX(5).setSpacingY(15))
@@ -195,7 +215,12 @@ public class GuiRenderSettings extends AbstractGuiPopup<GuiRenderSettings> {
                             injectSphericalMetadata, sphericalFovSlider,
                             depthMap, new com.replaymod.gui.element.GuiLabel(),
                             cameraPathExport, new com.replaymod.gui.element.GuiLabel(),
-                            new com.replaymod.gui.element.GuiLabel().setI18nText("replaymod.gui.rendersettings.antialiasing"), antiAliasingDropdown));
+                            spoolCheckbox, new com.replaymod.gui.element.GuiLabel(),
+                            resumableCheckbox, new com.replaymod.gui.element.GuiLabel(),
+                            new com.replaymod.gui.element.GuiLabel().setI18nText("replaymod.gui.rendersettings.framerange"), frameRangePanel,
+                            new com.replaymod.gui.element.GuiLabel().setI18nText("replaymod.gui.rendersettings.antialiasing"), antiAliasingDropdown,
+                            new com.replaymod.gui.element.GuiLabel().setI18nText("replaymod.gui.rendersettings.pixelformat"), pixelFormatDropdown,
+                            new com.replaymod.gui.element.GuiLabel().setI18nText("replaymod.gui.rendersettings.exrcompression"), exrCompressionDropdown));
 
     public final com.replaymod.gui.element.GuiTextField exportCommand = new com.replaymod.gui.element.GuiTextField().setI18nHint("replaymod.gui.rendersettings.command")
             .setSize(55, 20).setMaxLength(100).onTextChanged((old) -> updateInputs());
@@ -307,6 +332,8 @@ public class GuiRenderSettings extends AbstractGuiPopup<GuiRenderSettings> {
     private final Timeline timeline;
     private File outputFile;
     private boolean userDefinedOutputFileName;
+    // Settings without an input in this GUI are passed through unchanged
+    private RenderSettings loadedSettings;
 
     public GuiRenderSettings(AbstractGuiScreen<?> container, ReplayHandler replayHandler, Timeline timeline) {
         super(container);
@@ -408,7 +435,11 @@ public class GuiRenderSettings extends AbstractGuiPopup<GuiRenderSettings> {
         encodingPresetDropdown.setEnabled(!isBlend);
         exportCommand.setEnabled(isFFmpeg);
         exportArguments.setEnabled(isFFmpeg);
-        antiAliasingDropdown.setEnabled(isFFmpeg);
+        antiAliasingDropdown.setEnabled(!isBlend);
+        pixelFormatDropdown.setEnabled(isFFmpeg);
+        spoolCheckbox.setEnabled(isFFmpeg);
+        resumableCheckbox.setEnabled(!isBlend);
+        exrCompressionDropdown.setEnabled(isEXR);
 
         if (isEXR || isPNG) {
             depthMap.setEnabled().setTooltip(null);
@@ -493,6 +524,7 @@ public class GuiRenderSettings extends AbstractGuiPopup<GuiRenderSettings> {
     }
 
     public void load(RenderSettings settings) {
+        loadedSettings = settings;
         if (settings.getRenderMethod().isSupported()) {
             renderMethodDropdown.setSelected(settings.getRenderMethod());
         }
@@ -546,6 +578,12 @@ public class GuiRenderSettings extends AbstractGuiPopup<GuiRenderSettings> {
         depthMap.setChecked(settings.isDepthMap());
         cameraPathExport.setChecked(settings.isCameraPathExport());
         antiAliasingDropdown.setSelected(settings.getAntiAliasing());
+        pixelFormatDropdown.setSelected(settings.getPixelFormat());
+        spoolCheckbox.setChecked(settings.isSpool());
+        resumableCheckbox.setChecked(settings.isResumable());
+        startFrameField.setValue(settings.getStartFrame());
+        endFrameField.setValue(settings.getEndFrame());
+        exrCompressionDropdown.setSelected(settings.getExrCompression());
         exportCommand.setText(settings.getExportCommand());
         String exportArguments = settings.getExportArguments();
         if (exportArguments == null || settings.getEncodingPreset() == null || invalidEncodingPreset) {
@@ -580,7 +618,18 @@ public class GuiRenderSettings extends AbstractGuiPopup<GuiRenderSettings> {
                 serialize || antiAliasingDropdown.isEnabled() ? antiAliasingDropdown.getSelectedValue() : RenderSettings.AntiAliasing.NONE,
                 exportCommand.getText(),
                 exportArguments.getText(),
-                net.minecraft.client.gui.screen.Screen.hasControlDown()
+                net.minecraft.client.gui.screen.Screen.hasControlDown(),
+                loadedSettings.getProcessingThreads(),
+                loadedSettings.getFrameQueueDepth(),
+                loadedSettings.getPboRingDepth(),
+                serialize || pixelFormatDropdown.isEnabled() ? pixelFormatDropdown.getSelectedValue() : RenderSettings.PixelFormat.BGRA,
+                spoolCheckbox.isChecked() && (serialize || spoolCheckbox.isEnabled()),
+                exrCompressionDropdown.getSelectedValue(),
+                loadedSettings.getAdditionalOutputs(),
+                // The range is specific to the current timeline, so it is not kept as default for future renders
+                serialize ? 0 : startFrameField.getInteger(),
+                serialize ? 0 : endFrameField.getInteger(),
+                resumableCheckbox.isChecked() && (serialize || resumableCheckbox.isEnabled())
         );
     }
 
@@ -622,7 +671,7 @@ public class GuiRenderSettings extends AbstractGuiPopup<GuiRenderSettings> {
 
     private RenderSettings getDefaultRenderSettings() {
         return new RenderSettings(RenderSettings.RenderMethod.DEFAULT, RenderSettings.EncodingPreset.MP4_CUSTOM, 1920, 1080, 60, 20 << 20, null,
-                false, false, false, false, null, 360, 180, false, false, false, RenderSettings.AntiAliasing.NONE, "", RenderSettings.EncodingPreset.MP4_CUSTOM.getValue(), false);
+                false, false, false, false, null, 360, 180, false, false, false, RenderSettings.AntiAliasing.NONE, "", RenderSettings.EncodingPreset.MP4_CUSTOM.getValue(), false, 0, 0, 0, RenderSettings.PixelFormat.BGRA, false, RenderSettings.ExrCompression.ZIP, Collections.emptyList(), 0, 0, false);
     }
 
     @Override
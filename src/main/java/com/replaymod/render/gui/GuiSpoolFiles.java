@@ -0,0 +1,174 @@
+package com.replaymod.render.gui;
+
+import com.replaymod.core.utils.Utils;
+import com.replaymod.gui.GuiRenderer;
+import com.replaymod.gui.RenderInfo;
+import com.replaymod.gui.container.AbstractGuiClickableContainer;
+import com.replaymod.gui.container.AbstractGuiScreen;
+import com.replaymod.gui.container.GuiContainer;
+import com.replaymod.gui.container.GuiPanel;
+import com.replaymod.gui.container.GuiVerticalList;
+import com.replaymod.gui.element.GuiButton;
+import com.replaymod.gui.element.GuiLabel;
+import com.replaymod.gui.layout.CustomLayout;
+import com.replaymod.gui.layout.GridLayout;
+import com.replaymod.gui.popup.AbstractGuiPopup;
+import com.replaymod.gui.utils.Colors;
+import com.replaymod.render.ReplayModRender;
+import com.replaymod.render.SpoolEncoder;
+import com.replaymod.render.SpoolWriter;
+import de.johni0702.minecraft.gui.utils.lwjgl.Dimension;
+import de.johni0702.minecraft.gui.utils.lwjgl.ReadableDimension;
+import net.minecraft.crash.CrashReport;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.replaymod.render.ReplayModRender.LOGGER;
+
+/**
+ * Lists the spool files in the video folder which have not been encoded (e.g. because rendering failed or was
+ * cancelled) and allows encoding or deleting them.
+ * Spool files are kept after being encoded from here, so they can be encoded again.
+ */
+public class GuiSpoolFiles extends AbstractGuiPopup<GuiSpoolFiles> {
+    private final GuiLabel title = new GuiLabel().setI18nText("replaymod.gui.spoolfiles.title").setColor(Colors.BLACK);
+    private final GuiVerticalList list = new GuiVerticalList().setDrawShadow(true).setDrawSlider(true);
+    private final GuiButton encodeButton = new GuiButton().setI18nLabel("replaymod.gui.spoolfiles.encode").setSize(150, 20);
+    private final GuiButton deleteButton = new GuiButton().setI18nLabel("replaymod.gui.delete").setSize(150, 20);
+    private final GuiButton closeButton = new GuiButton().setI18nLabel("replaymod.gui.close").setSize(150, 20).onClick(this::close);
+
+    private final GuiPanel buttonPanel = new GuiPanel()
+            .setLayout(new GridLayout().setSpacingX(5).setSpacingY(5).setColumns(3))
+            .addElements(null, encodeButton, deleteButton, closeButton);
+
+    private final AbstractGuiScreen<?> container;
+    private Entry selectedEntry;
+
+    {
+        popup.setLayout(new CustomLayout<GuiPanel>() {
+            @Override
+            protected void layout(GuiPanel container, int width, int height) {
+                pos(title, width / 2 - width(title) / 2, 0);
+                pos(list, 0, y(title) + height(title) + 5);
+                pos(buttonPanel, width / 2 - width(buttonPanel) / 2, height - height(buttonPanel));
+                size(list, width, y(buttonPanel) - y(list) - 10);
+            }
+
+            @Override
+            public ReadableDimension calcMinSize(GuiContainer<?> container) {
+                ReadableDimension screenSize = GuiSpoolFiles.this.container.getMinSize();
+                return new Dimension(screenSize.getWidth() - 40,
+                        screenSize.getHeight() - 20 - buttonPanel.getMinSize().getHeight() - title.getMinSize().getHeight());
+            }
+        }).addElements(null, title, list, buttonPanel);
+    }
+
+    public GuiSpoolFiles(AbstractGuiScreen<?> container) {
+        super(container);
+        this.container = container;
+
+        setBackgroundColor(Colors.DARK_TRANSPARENT);
+
+        for (File file : findSpoolFiles(ReplayModRender.instance.getVideoFolder())) {
+            list.getListPanel().addElements(null, new Entry(file));
+        }
+
+        encodeButton.onClick(() -> {
+            File file = selectedEntry.file;
+            LOGGER.info("Encoding spool file {}", file);
+            try {
+                SpoolEncoder.load(file).encodeInBackground(ReplayModRender.instance.getCore(), false);
+            } catch (IOException e) {
+                Utils.error(LOGGER, container, CrashReport.makeCrashReport(e, "Loading spool file"), () -> {
+                });
+                return;
+            }
+            close();
+        });
+
+        deleteButton.onClick(() -> {
+            LOGGER.info("Deleting spool file {}", selectedEntry.file);
+            SpoolEncoder.delete(selectedEntry.file);
+            list.getListPanel().removeElement(selectedEntry);
+            selectedEntry = null;
+            updateButtons();
+        });
+
+        updateButtons();
+    }
+
+    /**
+     * @return all spool files in the given folder which still have their render settings next to them
+     */
+    public static List<File> findSpoolFiles(File folder) {
+        List<File> files = new ArrayList<>();
+        for (File file : FileUtils.listFiles(folder, new String[]{"spool"}, true)) {
+            if (SpoolWriter.getSettingsFile(file).exists()) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    @Override
+    public void open() {
+        super.open();
+    }
+
+    @Override
+    protected GuiSpoolFiles getThis() {
+        return this;
+    }
+
+    private void updateButtons() {
+        encodeButton.setEnabled(selectedEntry != null);
+        deleteButton.setEnabled(selectedEntry != null);
+    }
+
+    private class Entry extends AbstractGuiClickableContainer<Entry> {
+        private final GuiLabel label = new GuiLabel(this);
+        private final File file;
+
+        Entry(File file) {
+            this.file = file;
+
+            setLayout(new CustomLayout<Entry>() {
+                @Override
+                protected void layout(Entry container, int width, int height) {
+                    pos(label, 5, height / 2 - height(label) / 2);
+                }
+
+                @Override
+                public ReadableDimension calcMinSize(GuiContainer<?> container) {
+                    return new Dimension(buttonPanel.calcMinSize().getWidth(), 16);
+                }
+            });
+            label.setText(file.getName() + " (" + FileUtils.byteCountToDisplaySize(file.length()) + ")");
+        }
+
+        @Override
+        protected void onClick() {
+            selectedEntry = selectedEntry == this ? null : this;
+            updateButtons();
+        }
+
+        @Override
+        public void draw(GuiRenderer renderer, ReadableDimension size, RenderInfo renderInfo) {
+            if (selectedEntry == this) {
+                renderer.drawRect(0, 0, size.getWidth(), size.getHeight(), Colors.BLACK);
+                renderer.drawRect(0, 0, 2, size.getHeight(), Colors.WHITE);
+            }
+            super.draw(renderer, size, renderInfo);
+        }
+
+        @Override
+        protected Entry getThis() {
+            return this;
+        }
+    }
+}
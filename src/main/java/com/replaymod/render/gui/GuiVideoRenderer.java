@@ -1,6 +1,7 @@
 package com.replaymod.render.gui;
 
 import com.replaymod.core.utils.Utils;
+import com.replaymod.core.versions.MCVer;
 import com.replaymod.gui.GuiRenderer;
 import com.replaymod.gui.RenderInfo;
 import com.replaymod.gui.container.GuiPanel;
@@ -12,6 +13,10 @@ import com.replaymod.gui.element.advanced.GuiProgressBar;
 import com.replaymod.gui.function.Tickable;
 import com.replaymod.gui.layout.CustomLayout;
 import com.replaymod.gui.layout.HorizontalLayout;
+import com.replaymod.render.RenderSettings;
+import com.replaymod.render.ReplayModRender;
+import com.replaymod.render.Setting;
+import com.replaymod.render.rendering.PipelineStatistics;
 import com.replaymod.render.rendering.VideoRenderer;
 import de.johni0702.minecraft.gui.utils.lwjgl.Dimension;
 import de.johni0702.minecraft.gui.utils.lwjgl.ReadableDimension;
@@ -22,6 +27,10 @@ import net.minecraft.client.resources.I18n;
 import net.minecraft.util.ResourceLocation;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class GuiVideoRenderer extends GuiScreen implements Tickable {
     private static final ResourceLocation NO_PREVIEW_TEXTURE = new ResourceLocation("replaymod", "logo.jpg");
@@ -40,6 +49,8 @@ public class GuiVideoRenderer extends GuiScreen implements Tickable {
         }
     }.setSize(Integer.MAX_VALUE, Integer.MAX_VALUE);
     public final GuiCheckbox previewCheckbox = new GuiCheckbox().setI18nLabel("replaymod.gui.rendering.preview");
+    public final GuiLabel statistics = new GuiLabel();
+    public final GuiLabel encoderStatistics = new GuiLabel();
     public final GuiLabel renderTime = new GuiLabel();
     public final GuiLabel remainingTime = new GuiLabel();
     public final GuiProgressBar progressBar = new GuiProgressBar();
@@ -84,6 +95,17 @@ public class GuiVideoRenderer extends GuiScreen implements Tickable {
 
     private DynamicTexture previewTexture;
     private boolean previewTextureDirty;
+    /**
+     * Latest sampled preview frame in ABGR, guarded by this.
+     */
+    private int[] previewPixels;
+    private int previewPixelsWidth, previewPixelsHeight;
+    /**
+     * Size of the preview on screen in pixels, frames are downsampled to this size.
+     */
+    private volatile int previewWidth, previewHeight;
+    private final long previewIntervalNanos;
+    private final AtomicLong nextPreviewSample = new AtomicLong(System.nanoTime());
 
     {
         final GuiPanel contentPanel = new GuiPanel(this).setLayout(new CustomLayout<GuiPanel>() {
@@ -96,10 +118,12 @@ public class GuiVideoRenderer extends GuiScreen implements Tickable {
                 pos(progressBar, width / 2 - width(progressBar) / 2, y(buttonPanel) - 5 - height(progressBar));
                 pos(renderTime, 0, y(progressBar) - 2 - height(renderTime));
                 pos(remainingTime, width - width(remainingTime), y(progressBar) - 2 - height(renderTime));
-                pos(previewCheckbox, width / 2 - width(previewCheckbox) / 2, y(renderTime) - 10 - height(previewCheckbox));
+                pos(statistics, 0, y(renderTime) - 2 - height(statistics));
+                pos(encoderStatistics, 0, y(statistics) - 2 - height(encoderStatistics));
+                pos(previewCheckbox, width / 2 - width(previewCheckbox) / 2, y(encoderStatistics) - 10 - height(previewCheckbox));
                 size(imagePanel, width, y(previewCheckbox) - 5 - y(imagePanel));
             }
-        }).addElements(null, title, imagePanel, previewCheckbox, renderTime, remainingTime, progressBar, buttonPanel);
+        }).addElements(null, title, imagePanel, previewCheckbox, statistics, encoderStatistics, renderTime, remainingTime, progressBar, buttonPanel);
         setLayout(new CustomLayout<GuiScreen>() {
             @Override
             protected void layout(GuiScreen container, int width, int height) {
@@ -113,6 +137,9 @@ public class GuiVideoRenderer extends GuiScreen implements Tickable {
 
     public GuiVideoRenderer(VideoRenderer renderer) {
         this.renderer = renderer;
+
+        int previewFps = ReplayModRender.instance.getCore().getSettingsRegistry().get(Setting.PREVIEW_FPS);
+        this.previewIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, previewFps);
     }
 
     //the total render time
@@ -204,11 +231,34 @@ public class GuiVideoRenderer extends GuiScreen implements Tickable {
         renderTime.setText(I18n.format("replaymod.gui.rendering.timetaken") + ": " + secToString(renderTimeTaken / 1000));
         remainingTime.setText(I18n.format("replaymod.gui.rendering.timeleft") + ": " + secToString(renderTimeLeft));
 
+        PipelineStatistics stats = renderer.getStatistics();
+        statistics.setI18nText("replaymod.gui.rendering.statistics",
+                millis(stats.get(PipelineStatistics.Stage.CAPTURE)),
+                millis(stats.get(PipelineStatistics.Stage.READBACK)),
+                millis(stats.get(PipelineStatistics.Stage.PROCESS)),
+                millis(stats.get(PipelineStatistics.Stage.CONSUME)),
+                millis(stats.get(PipelineStatistics.Stage.STALL)),
+                Math.round(stats.getQueueDepth(PipelineStatistics.Queue.FRAMES).getRecent()),
+                stats.getQueueCapacity(PipelineStatistics.Queue.FRAMES));
+        PipelineStatistics.Histogram writes = stats.get(PipelineStatistics.Stage.WRITE);
+        if (writes.getCount() > 0) {
+            double seconds = stats.getElapsedNanos() / 1e9;
+            encoderStatistics.setI18nText("replaymod.gui.rendering.statistics.encoder",
+                    Math.round(stats.getQueueDepth(PipelineStatistics.Queue.ENCODER).getRecent()),
+                    stats.getQueueCapacity(PipelineStatistics.Queue.ENCODER),
+                    String.format("%.1f", writes.getBytes() / seconds / (1 << 20)),
+                    millis(stats.get(PipelineStatistics.Stage.ENCODER_STALL)));
+        }
+
         int framesDone = renderer.getFramesDone(), framesTotal = renderer.getTotalFrames();
         progressBar.setI18nLabel("replaymod.gui.rendering.progress", framesDone, framesTotal);
         progressBar.setProgress((float) framesDone / framesTotal);
     }
 
+    private static String millis(PipelineStatistics.Histogram histogram) {
+        return String.format("%.1f", histogram.getRecent() / 1_000_000);
+    }
+
     private String secToString(int seconds) {
         int hours = seconds / (60 * 60);
         int min = seconds / 60 - hours * 60;
@@ -222,22 +272,48 @@ public class GuiVideoRenderer extends GuiScreen implements Tickable {
         return builder.toString();
     }
 
-    private synchronized void renderPreview(GuiRenderer guiRenderer, ReadableDimension size) {
-        ReadableDimension videoSize = renderer.getFrameSize();
-        final int videoWidth = videoSize.getWidth();
-        final int videoHeight = videoSize.getHeight();
-
-        if (previewTexture == null) {
-            previewTexture = new DynamicTexture(videoWidth, videoHeight, true);
+    private void renderPreview(GuiRenderer guiRenderer, ReadableDimension size) {
+        // Frames are downscaled to the target size before they reach the preview
+        RenderSettings settings = renderer.getRenderSettings();
+        final int videoWidth = settings.getTargetVideoWidth();
+        final int videoHeight = settings.getTargetVideoHeight();
+
+        // Let the processing threads know how large the preview actually is on screen
+        Dimension fitted = Utils.fitIntoBounds(new Dimension(videoWidth, videoHeight), size);
+        double scale = MCVer.getMinecraft().getMainWindow().getGuiScaleFactor();
+        previewWidth = Math.max(1, Math.min(videoWidth, (int) (fitted.getWidth() * scale)));
+        previewHeight = Math.max(1, Math.min(videoHeight, (int) (fitted.getHeight() * scale)));
+
+        synchronized (this) {
+            if (previewTextureDirty) {
+                NativeImage data = previewTexture == null ? null : previewTexture.getTextureData();
+                if (data == null || data.getWidth() != previewPixelsWidth || data.getHeight() != previewPixelsHeight) {
+                    if (previewTexture != null) {
+                        previewTexture.close();
+                    }
+                    previewTexture = new DynamicTexture(previewPixelsWidth, previewPixelsHeight, true);
+                    data = previewTexture.getTextureData();
+                    assert data != null;
+                }
+                int i = 0;
+                for (int y = 0; y < previewPixelsHeight; y++) {
+                    for (int x = 0; x < previewPixelsWidth; x++) {
+                        data.setPixelRGBA(x, y, previewPixels[i++]); // actually takes ABGR, not RGBA
+                    }
+                }
+                previewTexture.updateDynamicTexture();
+                previewTextureDirty = false;
+            }
         }
 
-        if (previewTextureDirty) {
-            previewTexture.updateDynamicTexture();
-            previewTextureDirty = false;
+        if (previewTexture == null) {
+            renderNoPreview(guiRenderer, size);
+            return;
         }
-
+        NativeImage data = previewTexture.getTextureData();
+        assert data != null;
         guiRenderer.bindTexture(previewTexture.getGlTextureId());
-        renderPreviewTexture(guiRenderer, size, videoWidth, videoHeight);
+        renderPreviewTexture(guiRenderer, size, data.getWidth(), data.getHeight());
     }
 
     private void renderNoPreview(GuiRenderer guiRenderer, ReadableDimension size) {
@@ -257,29 +333,40 @@ public class GuiVideoRenderer extends GuiScreen implements Tickable {
         guiRenderer.drawTexturedRect(x, y, 0, 0, width, height, videoWidth, videoHeight, videoWidth, videoHeight);
     }
 
+    /**
+     * Samples the given frame for the preview, downsampled to the size at which the preview is shown.
+     * Called on the processing threads, frames which arrive before the next sample is due are ignored.
+     */
     public void updatePreview(ByteBuffer buffer, ReadableDimension size) {
-        if (previewCheckbox.isChecked() && previewTexture != null) {
-            buffer.mark();
-            synchronized (this) {
-                NativeImage data = previewTexture.getTextureData();
-                assert data != null;
-                // Note: Optifine changes the texture data array to be three times as long (for use by shaders),
-                //       we only want to initialize the first third and since we use our frame size, not the array size,
-                //       we're good to go.
-                int width = size.getWidth();
-                for (int y = 0; y < size.getHeight(); y++) {
-                    for (int x = 0; x < width; x++) {
-                        int b = buffer.get() & 0xff;
-                        int g = buffer.get() & 0xff;
-                        int r = buffer.get() & 0xff;
-                        buffer.get(); // alpha
-                        int value = 0xff << 24 | b << 16 | g << 8 | r;
-                        data.setPixelRGBA(x, y, value); // actually takes ABGR, not RGBA
-                    }
-                }
-                previewTextureDirty = true;
+        int width = Math.min(previewWidth, size.getWidth());
+        int height = Math.min(previewHeight, size.getHeight());
+        if (!previewCheckbox.isChecked() || width == 0 || height == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long next = nextPreviewSample.get();
+        if (now - next < 0 || !nextPreviewSample.compareAndSet(next, now + previewIntervalNanos)) {
+            return;
+        }
+
+        int sourceWidth = size.getWidth();
+        int sourceHeight = size.getHeight();
+        IntBuffer source = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        int[] pixels = new int[width * height];
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            int rowOffset = y * sourceHeight / height * sourceWidth;
+            for (int x = 0; x < width; x++) {
+                int bgra = source.get(rowOffset + x * sourceWidth / width);
+                // To opaque ABGR
+                pixels[i++] = 0xff << 24 | (bgra & 0xff) << 16 | (bgra & 0xff00) | (bgra >>> 16 & 0xff);
             }
-            buffer.reset();
+        }
+        synchronized (this) {
+            previewPixels = pixels;
+            previewPixelsWidth = width;
+            previewPixelsHeight = height;
+            previewTextureDirty = true;
         }
     }
 }
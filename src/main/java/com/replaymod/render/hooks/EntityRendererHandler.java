@@ -38,6 +38,8 @@ public class EntityRendererHandler extends EventRegistrations implements WorldRe
     @Override
     public void renderWorld(final float partialTicks, CaptureData data) {
         this.data = data;
+        // There may be multiple handlers when rendering from multiple cameras, the one rendering is the active one
+        ((IEntityRenderer) mc.gameRenderer).replayModRender_setHandler(this);
         renderWorld(partialTicks, 0);
     }
 
@@ -53,7 +55,10 @@ public class EntityRendererHandler extends EventRegistrations implements WorldRe
 
     @Override
     public void close() throws IOException {
-        ((IEntityRenderer) mc.gameRenderer).replayModRender_setHandler(null);
+        IEntityRenderer gameRenderer = (IEntityRenderer) mc.gameRenderer;
+        if (gameRenderer.replayModRender_getHandler() == this) {
+            gameRenderer.replayModRender_setHandler(null);
+        }
         unregister();
     }
 
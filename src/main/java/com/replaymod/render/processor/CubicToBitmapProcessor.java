@@ -2,34 +2,53 @@ package com.replaymod.render.processor;
 
 import com.replaymod.render.frame.BitmapFrame;
 import com.replaymod.render.frame.CubicOpenGlFrame;
-import com.replaymod.render.utils.ByteBufferPool;
 import de.johni0702.minecraft.gui.utils.lwjgl.Dimension;
+import org.apache.commons.lang3.Validate;
 
 import java.nio.ByteBuffer;
 
-import static com.replaymod.render.utils.Utils.openGlBytesToBitmap;
+import static com.replaymod.render.processor.EquirectangularToBitmapProcessor.faces;
+import static com.replaymod.render.processor.EquirectangularToBitmapProcessor.releaseFaces;
 
 public class CubicToBitmapProcessor extends AbstractFrameProcessor<CubicOpenGlFrame, BitmapFrame> {
+    // Position of each face (in the order of EquirectangularToBitmapProcessor.faces) in the 4x3 cube map layout
+    private static final int[][] LAYOUT = {
+            {3, 1}, // back
+            {1, 1}, // front
+            {0, 1}, // left
+            {2, 1}, // right
+            {1, 0}, // top
+            {1, 2}, // bottom
+    };
+
+    private RemapTable table;
+
+    private synchronized RemapTable getTable(int size) {
+        if (table == null || table.getWidth() != size * 4) {
+            RemapTable table = new RemapTable(size * 4, size * 3, LAYOUT.length, size * size);
+            for (int face = 0; face < LAYOUT.length; face++) {
+                int xOffset = LAYOUT[face][0] * size;
+                int yOffset = LAYOUT[face][1] * size;
+                for (int y = 0; y < size; y++) {
+                    int row = (size - y - 1) * size; // The OpenGl buffer contains data flipped vertically
+                    for (int x = 0; x < size; x++) {
+                        table.set(xOffset + x, yOffset + y, face, row + x);
+                    }
+                }
+            }
+            this.table = table;
+        }
+        return table;
+    }
 
     @Override
     public BitmapFrame process(CubicOpenGlFrame rawFrame) {
         int size = rawFrame.getLeft().getSize().getWidth();
         int bpp = rawFrame.getLeft().getBytesPerPixel();
-        int width = size * 4;
-        int height = size * 3;
-        ByteBuffer result = ByteBufferPool.allocate(width * height * bpp);
-        openGlBytesToBitmap(rawFrame.getLeft(), 0, size, result, width);
-        openGlBytesToBitmap(rawFrame.getFront(), size, size, result, width);
-        openGlBytesToBitmap(rawFrame.getRight(), size * 2, size, result, width);
-        openGlBytesToBitmap(rawFrame.getBack(), size * 3, size, result, width);
-        openGlBytesToBitmap(rawFrame.getTop(), size, 0, result, width);
-        openGlBytesToBitmap(rawFrame.getBottom(), size, size * 2, result, width);
-        ByteBufferPool.release(rawFrame.getLeft().getByteBuffer());
-        ByteBufferPool.release(rawFrame.getRight().getByteBuffer());
-        ByteBufferPool.release(rawFrame.getFront().getByteBuffer());
-        ByteBufferPool.release(rawFrame.getBack().getByteBuffer());
-        ByteBufferPool.release(rawFrame.getTop().getByteBuffer());
-        ByteBufferPool.release(rawFrame.getBottom().getByteBuffer());
-        return new BitmapFrame(rawFrame.getFrameId(), new Dimension(width, height), bpp, result);
+        Validate.isTrue(bpp == 4, "Only 4 bytes per pixel are supported but got %d", bpp);
+        RemapTable table = getTable(size);
+        ByteBuffer result = table.remap(faces(rawFrame));
+        releaseFaces(rawFrame);
+        return new BitmapFrame(rawFrame.getFrameId(), new Dimension(table.getWidth(), table.getHeight()), bpp, result);
     }
 }
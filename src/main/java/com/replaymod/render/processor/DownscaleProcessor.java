@@ -0,0 +1,131 @@
+package com.replaymod.render.processor;
+
+import com.replaymod.render.frame.BitmapFrame;
+import com.replaymod.render.utils.ByteBufferPool;
+import com.replaymod.render.utils.TileExecutor;
+import de.johni0702.minecraft.gui.utils.lwjgl.Dimension;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Shrinks frames by an integer factor using a box filter, i.e. every output pixel is the average of a
+ * {@code factor x factor} block of input pixels. Used to resolve anti-aliasing supersampling.
+ * <p>
+ * Depth frames are not averaged (that would create surfaces where there are none), instead the nearest depth of
+ * each block is kept.
+ * Tiles of output rows are computed in parallel by the {@link TileExecutor}.
+ */
+public class DownscaleProcessor extends AbstractFrameProcessor<BitmapFrame, BitmapFrame> {
+    private static final int TILE_ROWS = 16;
+
+    private final int factor;
+    private final boolean depth;
+
+    /**
+     * @param factor the factor by which width and height are divided
+     * @param depth  whether frames are float depth values rather than BGRA colors
+     */
+    public DownscaleProcessor(int factor, boolean depth) {
+        Validate.isTrue(factor >= 1, "Factor must be positive but was %d", factor);
+        this.factor = factor;
+        this.depth = depth;
+    }
+
+    @Override
+    public BitmapFrame process(BitmapFrame frame) {
+        if (factor == 1) {
+            return frame;
+        }
+        int bpp = frame.getBytesPerPixel();
+        Validate.isTrue(bpp == 4, "Only 4 bytes per pixel are supported but got %d", bpp);
+        int inWidth = frame.getSize().getWidth();
+        int width = inWidth / factor;
+        int height = frame.getSize().getHeight() / factor;
+
+        ByteBuffer source = frame.getByteBuffer();
+        ByteBuffer result = ByteBufferPool.allocate(width * height * bpp);
+        // Keep the byte order of the source, consumers of depth frames rely on it
+        ByteOrder order = source.order();
+        result.order(order);
+        ByteBuffer in = source.duplicate().order(order);
+        ByteBuffer out = result.duplicate().order(order);
+        // Rows are only accessed by absolute index, so all tiles can share the same buffers
+        FloatBuffer inFloats = depth ? in.asFloatBuffer() : null;
+        FloatBuffer outFloats = depth ? out.asFloatBuffer() : null;
+        int tiles = (height + TILE_ROWS - 1) / TILE_ROWS;
+        TileExecutor.forEach(tiles, tile -> {
+            int endY = Math.min(height, (tile + 1) * TILE_ROWS);
+            for (int y = tile * TILE_ROWS; y < endY; y++) {
+                if (depth) {
+                    downscaleDepthRow(inFloats, inWidth, outFloats, width, y);
+                } else {
+                    downscaleColorRow(in, inWidth, out, width, y);
+                }
+            }
+        });
+        result.rewind();
+
+        ByteBufferPool.release(source);
+        return new BitmapFrame(frame.getFrameId(), new Dimension(width, height), bpp, result);
+    }
+
+    private void downscaleColorRow(ByteBuffer in, int inWidth, ByteBuffer out, int width, int y) {
+        int factor = this.factor;
+        int shift = Integer.numberOfTrailingZeros(factor) * 2;
+        boolean powerOfTwo = Integer.bitCount(factor) == 1;
+        int area = factor * factor;
+        int rowStart = y * factor * inWidth;
+        int outOffset = y * width * 4;
+        for (int x = 0; x < width; x++) {
+            int b = 0, g = 0, r = 0, a = 0;
+            int blockStart = (rowStart + x * factor) * 4;
+            for (int dy = 0; dy < factor; dy++) {
+                int offset = blockStart + dy * inWidth * 4;
+                for (int dx = 0; dx < factor; dx++, offset += 4) {
+                    int pixel = in.getInt(offset);
+                    // Byte order does not matter here as long as we write it back the same way
+                    b += pixel & 0xff;
+                    g += (pixel >>> 8) & 0xff;
+                    r += (pixel >>> 16) & 0xff;
+                    a += pixel >>> 24;
+                }
+            }
+            if (powerOfTwo) {
+                b >>>= shift;
+                g >>>= shift;
+                r >>>= shift;
+                a >>>= shift;
+            } else {
+                b /= area;
+                g /= area;
+                r /= area;
+                a /= area;
+            }
+            out.putInt(outOffset + x * 4, a << 24 | r << 16 | g << 8 | b);
+        }
+    }
+
+    private void downscaleDepthRow(FloatBuffer in, int inWidth, FloatBuffer out, int width, int y) {
+        int factor = this.factor;
+        int rowStart = y * factor * inWidth;
+        int outOffset = y * width;
+        for (int x = 0; x < width; x++) {
+            float nearest = Float.POSITIVE_INFINITY;
+            int blockStart = rowStart + x * factor;
+            for (int dy = 0; dy < factor; dy++) {
+                int offset = blockStart + dy * inWidth;
+                for (int dx = 0; dx < factor; dx++) {
+                    nearest = Math.min(nearest, in.get(offset + dx));
+                }
+            }
+            out.put(outOffset + x, nearest);
+        }
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+}
@@ -22,9 +22,7 @@ public class EquirectangularToBitmapProcessor extends AbstractFrameProcessor<Cub
     private final int width;
     private final int height;
 
-    private final byte[][] image;
-    private final int[][] imageX;
-    private final int[][] imageY;
+    private final RemapTable table;
 
     public EquirectangularToBitmapProcessor(int outputWidth, int outputHeight, int sphericalFovX) {
         // calculate the dimensions of the original equirectangular projection
@@ -43,9 +41,7 @@ public class EquirectangularToBitmapProcessor extends AbstractFrameProcessor<Cub
 
         frameSize = fullWidth / 4;
 
-        image = new byte[height][width];
-        imageX = new int[height][width];
-        imageY = new int[height][width];
+        table = new RemapTable(width, height, 6, frameSize * frameSize);
 
         int xOffset = (fullWidth - width) / 2;
         int yOffset = (fullHeight - height) / 2;
@@ -95,9 +91,8 @@ public class EquirectangularToBitmapProcessor extends AbstractFrameProcessor<Cub
 
                 int imgX = (int) Math.min(frameSize - 1, (cXN * frameSize));
                 int imgY = (int) Math.min(frameSize - 1, (cYN * frameSize));
-                image[y][x] = pt;
-                imageX[y][x] = imgX;
-                imageY[y][x] = frameSize - imgY - 1; // The OpenGl buffer contains data flipped vertically
+                imgY = frameSize - imgY - 1; // The OpenGl buffer contains data flipped vertically
+                table.set(x, y, pt, imgX + imgY * frameSize);
             }
         }
     }
@@ -107,37 +102,51 @@ public class EquirectangularToBitmapProcessor extends AbstractFrameProcessor<Cub
         Validate.isTrue(rawFrame.getLeft().getSize().getWidth() == frameSize, "Frame size must be %d but was %d",
                 frameSize, rawFrame.getLeft().getSize().getWidth());
         int bpp = rawFrame.getLeft().getBytesPerPixel();
-        ByteBuffer result = ByteBufferPool.allocate(width * height * bpp);
-        ByteBuffer[] images = {
-                rawFrame.getBack().getByteBuffer(), rawFrame.getFront().getByteBuffer(),
-                rawFrame.getLeft().getByteBuffer(), rawFrame.getRight().getByteBuffer(),
-                rawFrame.getTop().getByteBuffer(), rawFrame.getBottom().getByteBuffer()
-        };
-        byte[] pixel = new byte[bpp];
-        byte[] image;
-        int[] imageX, imageY;
-        for (int y = 0; y < height; y++) {
-            image = this.image[y];
-            imageX = this.imageX[y];
-            imageY = this.imageY[y];
-            for (int x = 0; x < width; x++) {
-                ByteBuffer source = images[image[x]];
-                source.position((imageX[x] + imageY[x] * frameSize) * bpp);
-                source.get(pixel);
-                result.put(pixel);
-            }
-        }
-        result.rewind();
-
-        ByteBufferPool.release(rawFrame.getLeft().getByteBuffer());
-        ByteBufferPool.release(rawFrame.getRight().getByteBuffer());
-        ByteBufferPool.release(rawFrame.getFront().getByteBuffer());
-        ByteBufferPool.release(rawFrame.getBack().getByteBuffer());
-        ByteBufferPool.release(rawFrame.getTop().getByteBuffer());
-        ByteBufferPool.release(rawFrame.getBottom().getByteBuffer());
+        Validate.isTrue(bpp == 4, "Only 4 bytes per pixel are supported but got %d", bpp);
+        ByteBuffer result = table.remap(faces(rawFrame));
+        releaseFaces(rawFrame);
         return new BitmapFrame(rawFrame.getFrameId(), new Dimension(width, height), bpp, result);
     }
 
+    /**
+     * @return the faces of the given frame in the order used by the remap table
+     */
+    static ByteBuffer[] faces(CubicOpenGlFrame frame) {
+        return new ByteBuffer[]{
+                frame.getBack().getByteBuffer(), frame.getFront().getByteBuffer(),
+                frame.getLeft().getByteBuffer(), frame.getRight().getByteBuffer(),
+                frame.getTop().getByteBuffer(), frame.getBottom().getByteBuffer()
+        };
+    }
+
+    static void releaseFaces(CubicOpenGlFrame frame) {
+        ByteBufferPool.release(frame.getLeft().getByteBuffer());
+        ByteBufferPool.release(frame.getRight().getByteBuffer());
+        ByteBufferPool.release(frame.getFront().getByteBuffer());
+        ByteBufferPool.release(frame.getBack().getByteBuffer());
+        ByteBufferPool.release(frame.getTop().getByteBuffer());
+        ByteBufferPool.release(frame.getBottom().getByteBuffer());
+    }
+
+    /**
+     * Returns which parts of the cube faces are actually sampled. With a horizontal or vertical field of view below
+     * 360 / 180 degrees, some faces are not needed at all and others only partially.
+     *
+     * @return regions as {@code {x, y, width, height}} in OpenGL coordinates (i.e. bottom row first),
+     * in the order of the {@link CubicOpenGlFrame} constructor, {@code null} for faces which are never sampled
+     */
+    public int[][] getUsedRegions() {
+        int[][] regions = table.getUsedRegions(frameSize);
+        return new int[][]{
+                regions[IMAGE_LEFT], regions[IMAGE_RIGHT], regions[IMAGE_FRONT],
+                regions[IMAGE_BACK], regions[IMAGE_TOP], regions[IMAGE_BOTTOM]
+        };
+    }
+
+    RemapTable getTable() {
+        return table;
+    }
+
     public int getFrameSize() {
         return frameSize;
     }
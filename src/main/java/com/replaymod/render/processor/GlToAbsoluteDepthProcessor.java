@@ -1,10 +1,10 @@
 package com.replaymod.render.processor;
 
-import com.replaymod.render.frame.BitmapFrame;
-
-import java.nio.FloatBuffer;
-
-public class GlToAbsoluteDepthProcessor extends AbstractFrameProcessor<BitmapFrame, BitmapFrame> {
+/**
+ * Converts depth values as read from OpenGL into absolute distances from the camera.
+ * Runs as a per-pixel stage of a depth {@link ProcessorChain}.
+ */
+public class GlToAbsoluteDepthProcessor implements ProcessorChain.PixelStage {
     // absolute depth is 2 * near * far / (far + near - (far - near) * (2 * z - 1))
     // precomputed:     [      a       ]  [    b     ]  [    c     ]
     private final float a;
@@ -18,16 +18,9 @@ public class GlToAbsoluteDepthProcessor extends AbstractFrameProcessor<BitmapFra
     }
 
     @Override
-    public BitmapFrame process(BitmapFrame frame) {
-
-        FloatBuffer buffer = frame.getByteBuffer().asFloatBuffer();
-        int len = buffer.remaining();
-        for (int i = 0; i < len; i++) {
-            float z = buffer.get(i);
-            z = a / (b - c * (2 * z - 1));
-            buffer.put(i, z);
-        }
-
-        return frame;
+    public int apply(int x, int y, int bits) {
+        float z = Float.intBitsToFloat(bits);
+        z = a / (b - c * (2 * z - 1));
+        return Float.floatToRawIntBits(z);
     }
 }
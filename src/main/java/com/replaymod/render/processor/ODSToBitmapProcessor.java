@@ -2,41 +2,48 @@ package com.replaymod.render.processor;
 
 import com.replaymod.render.frame.BitmapFrame;
 import com.replaymod.render.frame.ODSOpenGlFrame;
-import com.replaymod.render.utils.ByteBufferPool;
 import de.johni0702.minecraft.gui.utils.lwjgl.Dimension;
-import de.johni0702.minecraft.gui.utils.lwjgl.ReadableDimension;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.Validate;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import static com.replaymod.render.processor.EquirectangularToBitmapProcessor.faces;
+import static com.replaymod.render.processor.EquirectangularToBitmapProcessor.releaseFaces;
+
 public class ODSToBitmapProcessor extends AbstractFrameProcessor<ODSOpenGlFrame, BitmapFrame> {
-    private final EquirectangularToBitmapProcessor processor;
+    private final int frameSize;
+    private final int[][] usedRegions;
+    private final RemapTable table;
 
     public ODSToBitmapProcessor(int outputWidth, int outputHeight, int sphericalFovX) {
-        processor = new EquirectangularToBitmapProcessor(outputWidth, outputHeight / 2, sphericalFovX);
+        EquirectangularToBitmapProcessor eye = new EquirectangularToBitmapProcessor(outputWidth, outputHeight / 2, sphericalFovX);
+        frameSize = eye.getFrameSize();
+        usedRegions = eye.getUsedRegions();
+        // Remap both eyes in one go, left one on top
+        table = RemapTable.stack(eye.getTable(), eye.getTable());
     }
 
     @Override
     public BitmapFrame process(ODSOpenGlFrame rawFrame) {
-        BitmapFrame leftFrame = processor.process(rawFrame.getLeft());
-        BitmapFrame rightFrame = processor.process(rawFrame.getRight());
-        ReadableDimension size = new Dimension(leftFrame.getSize().getWidth(), leftFrame.getSize().getHeight() * 2);
+        Validate.isTrue(rawFrame.getLeft().getLeft().getSize().getWidth() == frameSize, "Frame size must be %d but was %d",
+                frameSize, rawFrame.getLeft().getLeft().getSize().getWidth());
         int bpp = rawFrame.getLeft().getLeft().getBytesPerPixel();
-        ByteBuffer result = ByteBufferPool.allocate(size.getWidth() * size.getHeight() * bpp);
-        result.put(leftFrame.getByteBuffer());
-        result.put(rightFrame.getByteBuffer());
-        result.rewind();
-        ByteBufferPool.release(leftFrame.getByteBuffer());
-        ByteBufferPool.release(rightFrame.getByteBuffer());
-        return new BitmapFrame(rawFrame.getFrameId(), size, bpp, result);
+        Validate.isTrue(bpp == 4, "Only 4 bytes per pixel are supported but got %d", bpp);
+        ByteBuffer result = table.remap(ArrayUtils.addAll(faces(rawFrame.getLeft()), faces(rawFrame.getRight())));
+        releaseFaces(rawFrame.getLeft());
+        releaseFaces(rawFrame.getRight());
+        return new BitmapFrame(rawFrame.getFrameId(), new Dimension(table.getWidth(), table.getHeight()), bpp, result);
     }
 
-    @Override
-    public void close() throws IOException {
-        processor.close();
+    public int getFrameSize() {
+        return frameSize;
     }
 
-    public int getFrameSize() {
-        return processor.getFrameSize();
+    /**
+     * @see EquirectangularToBitmapProcessor#getUsedRegions()
+     */
+    public int[][] getUsedRegions() {
+        return usedRegions;
     }
 }
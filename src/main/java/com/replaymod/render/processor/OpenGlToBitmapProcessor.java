@@ -2,29 +2,33 @@ package com.replaymod.render.processor;
 
 import com.replaymod.render.frame.BitmapFrame;
 import com.replaymod.render.frame.OpenGlFrame;
+import com.replaymod.render.utils.ByteBufferPool;
 import de.johni0702.minecraft.gui.utils.lwjgl.ReadableDimension;
 
 import java.nio.ByteBuffer;
 
-public class OpenGlToBitmapProcessor extends AbstractFrameProcessor<OpenGlFrame, BitmapFrame> {
+import static com.replaymod.render.utils.Utils.openGlBytesToBitmap;
 
-    private byte[] row, rowSwap;
+public class OpenGlToBitmapProcessor extends AbstractFrameProcessor<OpenGlFrame, BitmapFrame> {
 
     @Override
     public BitmapFrame process(OpenGlFrame rawFrame) {
-        // Flip whole image in place
-
         ReadableDimension size = rawFrame.getSize();
         int bpp = rawFrame.getBytesPerPixel();
-        int rowSize = size.getWidth() * bpp;
-        if (row == null || row.length < rowSize) {
-            row = new byte[rowSize];
-            rowSwap = new byte[rowSize];
-        }
         ByteBuffer buffer = rawFrame.getByteBuffer();
+        if (ByteBufferPool.isView(buffer)) {
+            // Views into mapped GPU memory have to be given back as soon as possible, flip while copying
+            ByteBuffer result = ByteBufferPool.allocate(size.getWidth() * size.getHeight() * bpp);
+            openGlBytesToBitmap(rawFrame, 0, 0, result, size.getWidth());
+            ByteBufferPool.release(buffer);
+            return new BitmapFrame(rawFrame.getFrameId(), size, bpp, result);
+        }
+
+        // Flip whole image in place
+        int rowSize = size.getWidth() * bpp;
         int rows = size.getHeight();
-        byte[] row = this.row;
-        byte[] rowSwap = this.rowSwap;
+        byte[] row = new byte[rowSize];
+        byte[] rowSwap = new byte[rowSize];
         for (int i = 0; i < rows / 2; i++) {
             int from = rowSize * i;
             int to = rowSize * (rows - i - 1);
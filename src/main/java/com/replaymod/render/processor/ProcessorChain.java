@@ -0,0 +1,249 @@
+package com.replaymod.render.processor;
+
+import com.replaymod.render.frame.BitmapFrame;
+import com.replaymod.render.rendering.FrameProcessor;
+import com.replaymod.render.rendering.PipelineStatistics;
+import com.replaymod.render.utils.TileExecutor;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Runs a sequence of processing stages on frames with four bytes per pixel, either BGRA colors or float depth values.
+ * <p>
+ * Stages are either per-pixel ({@link PixelStage}), per-row ({@link RowStage}) or whole-frame ({@link FrameProcessor}).
+ * Consecutive pixel and row stages are fused into a single pass over the frame: it is processed in tiles of rows in
+ * parallel by the {@link TileExecutor} and every row is run through all of these stages while it is in cache, instead
+ * of each stage traversing the whole frame on its own. Whole-frame stages (e.g. those changing size or format of the
+ * frame) end such a pass.
+ * <p>
+ * If given statistics, the time of every pass is recorded as a processor named after its stages.
+ */
+public class ProcessorChain extends AbstractFrameProcessor<BitmapFrame, BitmapFrame> {
+    private static final int ROWS_PER_TASK = 16;
+
+    private final boolean depth;
+    private final PipelineStatistics statistics;
+    private final List<Pass> passes = new ArrayList<>();
+    private final List<FrameProcessor<BitmapFrame, BitmapFrame>> frameStages = new ArrayList<>();
+    private FusedPass currentPass;
+
+    /**
+     * @param statistics where to record the time of each pass, {@code null} to not record it
+     */
+    public ProcessorChain(PipelineStatistics statistics) {
+        this(false, statistics);
+    }
+
+    /**
+     * @param depth      whether frames are float depth values rather than BGRA colors, pixel and row stages then
+     *                   receive the raw bits of each float (see {@link Float#intBitsToFloat(int)})
+     * @param statistics where to record the time of each pass, {@code null} to not record it
+     */
+    public ProcessorChain(boolean depth, PipelineStatistics statistics) {
+        this.depth = depth;
+        this.statistics = statistics;
+    }
+
+    public ProcessorChain add(PixelStage stage) {
+        fusedPass().add(stage);
+        return this;
+    }
+
+    public ProcessorChain add(RowStage stage) {
+        fusedPass().add(stage);
+        return this;
+    }
+
+    /**
+     * Adds a whole-frame stage. The passes of another chain are added as they are, so each of them is still timed on
+     * its own; stages added to that chain afterwards are not.
+     */
+    public ProcessorChain add(FrameProcessor<BitmapFrame, BitmapFrame> stage) {
+        currentPass = null;
+        if (stage instanceof ProcessorChain) {
+            ProcessorChain chain = (ProcessorChain) stage;
+            passes.addAll(chain.passes);
+            frameStages.addAll(chain.frameStages);
+            return this;
+        }
+        frameStages.add(stage);
+        passes.add(new Pass(nameOf(stage), stage::process));
+        return this;
+    }
+
+    private FusedPass fusedPass() {
+        if (currentPass == null) {
+            currentPass = new FusedPass(depth);
+            passes.add(new Pass(null, currentPass));
+        }
+        return currentPass;
+    }
+
+    public boolean isEmpty() {
+        return passes.isEmpty();
+    }
+
+    @Override
+    public BitmapFrame process(BitmapFrame frame) {
+        for (Pass pass : passes) {
+            long start = System.nanoTime();
+            frame = pass.operator.apply(frame);
+            if (statistics != null) {
+                statistics.recordProcessor(pass.getName(), System.nanoTime() - start,
+                        frame.getByteBuffer().remaining());
+            }
+        }
+        return frame;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (FrameProcessor<BitmapFrame, BitmapFrame> stage : frameStages) {
+            stage.close();
+        }
+    }
+
+    /**
+     * @return name of the class of the given stage, without package and without the synthetic suffix of lambdas
+     */
+    private static String nameOf(Object stage) {
+        String name = stage.getClass().getName();
+        name = name.substring(name.lastIndexOf('.') + 1);
+        int lambda = name.indexOf("$$Lambda");
+        return lambda < 0 ? name : name.substring(0, lambda);
+    }
+
+    /**
+     * A stage which computes every pixel from only the same pixel of its input.
+     * Called concurrently for different pixels.
+     */
+    public interface PixelStage {
+        /**
+         * @param bgra the pixel with blue in the lowest and alpha in the highest byte, or the raw bits of the float
+         *             for depth frames
+         * @return the new value of the pixel, same layout
+         */
+        int apply(int x, int y, int bgra);
+    }
+
+    /**
+     * A stage which computes every row from only the same row of its input.
+     * Called concurrently for different rows.
+     */
+    public interface RowStage {
+        /**
+         * Modifies the given row in place.
+         *
+         * @param row the pixels of the row, same layout as for {@link PixelStage#apply(int, int, int)}
+         */
+        void apply(int y, int[] row);
+    }
+
+    private static class Pass {
+        /**
+         * {@code null} for fused passes, their name depends on the stages added to them later on.
+         */
+        private final String name;
+        private final UnaryOperator<BitmapFrame> operator;
+
+        Pass(String name, UnaryOperator<BitmapFrame> operator) {
+            this.name = name;
+            this.operator = operator;
+        }
+
+        String getName() {
+            return name != null ? name : ((FusedPass) operator).getName();
+        }
+    }
+
+    private static class FusedPass implements UnaryOperator<BitmapFrame> {
+        private final boolean depth;
+        private final List<RowStage> stages = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+        private PixelRun currentRun;
+
+        FusedPass(boolean depth) {
+            this.depth = depth;
+        }
+
+        void add(PixelStage stage) {
+            if (currentRun == null) {
+                currentRun = new PixelRun();
+                stages.add(currentRun);
+            }
+            currentRun.add(stage);
+            names.add(nameOf(stage));
+        }
+
+        void add(RowStage stage) {
+            currentRun = null;
+            stages.add(stage);
+            names.add(nameOf(stage));
+        }
+
+        String getName() {
+            return String.join("+", names);
+        }
+
+        @Override
+        public BitmapFrame apply(BitmapFrame frame) {
+            Validate.isTrue(frame.getBytesPerPixel() == 4, "Expected 4 bytes per pixel but got %d", frame.getBytesPerPixel());
+            int width = frame.getSize().getWidth();
+            int height = frame.getSize().getHeight();
+            ByteBuffer buffer = frame.getByteBuffer();
+            // Floats have to be read in the order they were written in, colors always have blue in the lowest byte
+            ByteOrder order = depth ? buffer.order() : ByteOrder.LITTLE_ENDIAN;
+            IntBuffer pixels = buffer.duplicate().order(order).asIntBuffer();
+            RowStage[] stages = this.stages.toArray(new RowStage[0]);
+
+            int tasks = (height + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+            TileExecutor.forEach(tasks, task -> {
+                IntBuffer view = pixels.duplicate();
+                int[] row = new int[width];
+                int to = Math.min(height, (task + 1) * ROWS_PER_TASK);
+                for (int y = task * ROWS_PER_TASK; y < to; y++) {
+                    view.position(y * width);
+                    view.get(row);
+                    for (RowStage stage : stages) {
+                        stage.apply(y, row);
+                    }
+                    view.position(y * width);
+                    view.put(row);
+                }
+            });
+            return frame;
+        }
+    }
+
+    /**
+     * Consecutive pixel stages, applied one after another to each pixel.
+     */
+    private static class PixelRun implements RowStage {
+        private PixelStage[] stages = new PixelStage[0];
+
+        void add(PixelStage stage) {
+            stages = Arrays.copyOf(stages, stages.length + 1);
+            stages[stages.length - 1] = stage;
+        }
+
+        @Override
+        public void apply(int y, int[] row) {
+            PixelStage[] stages = this.stages;
+            for (int x = 0; x < row.length; x++) {
+                int pixel = row[x];
+                for (PixelStage stage : stages) {
+                    pixel = stage.apply(x, y, pixel);
+                }
+                row[x] = pixel;
+            }
+        }
+    }
+}
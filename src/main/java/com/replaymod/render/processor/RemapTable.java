@@ -0,0 +1,174 @@
+package com.replaymod.render.processor;
+
+import com.replaymod.render.utils.ByteBufferPool;
+import com.replaymod.render.utils.TileExecutor;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Lookup table mapping every pixel of an output image to a pixel in one of several source images (faces).
+ * <p>
+ * The table is a single flat array with one entry per output pixel, holding the face index in its upper bits and
+ * the pixel index within that face in its lower bits (or {@link #EMPTY} for pixels which are left black).
+ * Pixels are always four bytes (BGRA or float depth) and are copied as ints. The output is split into tiles of rows
+ * which are remapped in parallel by the {@link TileExecutor}.
+ */
+public class RemapTable {
+    public static final int EMPTY = -1;
+    private static final int TILE_ROWS = 16;
+
+    private final int width;
+    private final int height;
+    private final int faces;
+    private final int facePixels;
+    private final int faceShift;
+    private final int pixelMask;
+    private final int[] table;
+
+    public RemapTable(int width, int height, int faces, int facePixels) {
+        this.width = width;
+        this.height = height;
+        this.faces = faces;
+        this.facePixels = facePixels;
+        this.faceShift = 32 - Integer.numberOfLeadingZeros(Math.max(1, facePixels - 1));
+        this.pixelMask = (1 << faceShift) - 1;
+        Validate.isTrue(32 - Integer.numberOfLeadingZeros(faces) + faceShift < 32,
+                "Too many faces (%d) of size %d", faces, facePixels);
+        this.table = new int[width * height];
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * Creates a table which places the output of {@code bottom} below the output of {@code top}.
+     * The faces of {@code bottom} follow after the ones of {@code top}.
+     */
+    public static RemapTable stack(RemapTable top, RemapTable bottom) {
+        Validate.isTrue(top.width == bottom.width && top.facePixels == bottom.facePixels);
+        RemapTable result = new RemapTable(top.width, top.height + bottom.height,
+                top.faces + bottom.faces, top.facePixels);
+        for (int i = 0; i < top.table.length; i++) {
+            int entry = top.table[i];
+            if (entry != EMPTY) {
+                result.table[i] = result.entry(entry >>> top.faceShift, entry & top.pixelMask);
+            }
+        }
+        int offset = top.table.length;
+        for (int i = 0; i < bottom.table.length; i++) {
+            int entry = bottom.table[i];
+            if (entry != EMPTY) {
+                result.table[offset + i] = result.entry(top.faces + (entry >>> bottom.faceShift), entry & bottom.pixelMask);
+            }
+        }
+        return result;
+    }
+
+    private int entry(int face, int pixel) {
+        return face << faceShift | pixel;
+    }
+
+    /**
+     * @param x     x coordinate in the output image
+     * @param y     y coordinate in the output image
+     * @param face  index of the source face
+     * @param pixel index of the pixel within the source face, i.e. {@code x + y * faceWidth}
+     */
+    public void set(int x, int y, int face, int pixel) {
+        table[x + y * width] = entry(face, pixel);
+    }
+
+    /**
+     * Computes which part of each face is referenced by this table.
+     *
+     * @param faceWidth width of each face in pixels
+     * @return for each face its bounding box as {@code {x, y, width, height}} in pixels of the source face,
+     * or {@code null} if the face is not referenced at all
+     */
+    public int[][] getUsedRegions(int faceWidth) {
+        int[][] bounds = new int[faces][];
+        for (int entry : table) {
+            if (entry == EMPTY) {
+                continue;
+            }
+            int face = entry >>> faceShift;
+            int pixel = entry & pixelMask;
+            int x = pixel % faceWidth;
+            int y = pixel / faceWidth;
+            int[] box = bounds[face];
+            if (box == null) {
+                bounds[face] = new int[]{x, y, x, y};
+            } else {
+                box[0] = Math.min(box[0], x);
+                box[1] = Math.min(box[1], y);
+                box[2] = Math.max(box[2], x);
+                box[3] = Math.max(box[3], y);
+            }
+        }
+        for (int[] box : bounds) {
+            if (box != null) {
+                box[2] = box[2] - box[0] + 1;
+                box[3] = box[3] - box[1] + 1;
+            }
+        }
+        return bounds;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Remaps the given faces into a new buffer obtained from the {@link ByteBufferPool}.
+     * The source buffers are left untouched (and are not released).
+     *
+     * @param sources one buffer per face, each four bytes per pixel
+     * @return the output image, four bytes per pixel
+     */
+    public ByteBuffer remap(ByteBuffer... sources) {
+        Validate.isTrue(sources.length == faces, "Expected %d faces but got %d", faces, sources.length);
+        IntBuffer[] faceInts = new IntBuffer[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            Validate.isTrue(sources[i].capacity() >= facePixels * 4, "Face %d is too small", i);
+            faceInts[i] = asInts(sources[i]);
+        }
+        ByteBuffer result = ByteBufferPool.allocate(width * height * 4);
+        IntBuffer resultInts = asInts(result);
+
+        int tiles = (height + TILE_ROWS - 1) / TILE_ROWS;
+        TileExecutor.forEach(tiles, tile -> {
+            IntBuffer out = resultInts.duplicate();
+            int[] row = new int[width];
+            int[] table = this.table;
+            int shift = faceShift;
+            int mask = pixelMask;
+            int endY = Math.min(height, (tile + 1) * TILE_ROWS);
+            for (int y = tile * TILE_ROWS; y < endY; y++) {
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    int entry = table[offset + x];
+                    row[x] = entry == EMPTY ? 0 : faceInts[entry >>> shift].get(entry & mask);
+                }
+                out.position(offset);
+                out.put(row);
+            }
+        });
+
+        result.rewind();
+        return result;
+    }
+
+    private static IntBuffer asInts(ByteBuffer buffer) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(0);
+        duplicate.limit(duplicate.capacity());
+        // Byte order does not matter as long as it is the same for reading and writing, so use the fast one
+        return duplicate.order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+}
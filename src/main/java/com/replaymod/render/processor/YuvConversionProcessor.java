@@ -0,0 +1,154 @@
+package com.replaymod.render.processor;
+
+import com.replaymod.render.RenderSettings.PixelFormat;
+import com.replaymod.render.frame.BitmapFrame;
+import com.replaymod.render.utils.ByteBufferPool;
+import com.replaymod.render.utils.TileExecutor;
+import de.johni0702.minecraft.gui.utils.lwjgl.Dimension;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts BGRA frames to planar YUV (BT.601, limited range, same as ffmpeg's default conversion), so ffmpeg does
+ * not have to and less data needs to go through its pipe.
+ * <p>
+ * The result is a frame with one byte per pixel containing all planes one after another, i.e. its height is
+ * 1.5 (4:2:0, NV12) or 3 (4:4:4) times the height of the image. For 4:2:0 formats, width and height must be even.
+ * Tiles of rows are converted in parallel by the {@link TileExecutor}.
+ */
+public class YuvConversionProcessor extends AbstractFrameProcessor<BitmapFrame, BitmapFrame> {
+    private static final int ROWS_PER_TILE = 16;
+
+    private final PixelFormat format;
+
+    public YuvConversionProcessor(PixelFormat format) {
+        Validate.isTrue(format != PixelFormat.BGRA, "Target format must be a YUV format");
+        this.format = format;
+    }
+
+    @Override
+    public BitmapFrame process(BitmapFrame frame) {
+        Validate.isTrue(frame.getBytesPerPixel() == 4, "Expected BGRA frame but got %d bytes per pixel", frame.getBytesPerPixel());
+        int width = frame.getSize().getWidth();
+        int height = frame.getSize().getHeight();
+        boolean subsampled = format.isSubsampled();
+        if (subsampled) {
+            Validate.isTrue(width % 2 == 0 && height % 2 == 0, "Frame size must be even but was %dx%d", width, height);
+        }
+
+        ByteBuffer source = frame.getByteBuffer().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer result = ByteBufferPool.allocate(format.getFrameSize(width, height));
+
+        // Subsampled formats are processed in pairs of rows which share their chroma samples
+        int rowsPerStep = subsampled ? 2 : 1;
+        int steps = height / rowsPerStep;
+        int tiles = (steps + ROWS_PER_TILE - 1) / ROWS_PER_TILE;
+        TileExecutor.forEach(tiles, tile -> {
+            ByteBuffer out = result.duplicate();
+            int from = tile * ROWS_PER_TILE;
+            int to = Math.min(steps, from + ROWS_PER_TILE);
+            if (subsampled) {
+                convert420(source, out, width, height, from, to);
+            } else {
+                convert444(source, out, width, height, from, to);
+            }
+        });
+        result.rewind();
+
+        ByteBufferPool.release(frame.getByteBuffer());
+        int outputHeight = format.getFrameSize(width, height) / width;
+        return new BitmapFrame(frame.getFrameId(), new Dimension(width, outputHeight), 1, result);
+    }
+
+    private void convert444(ByteBuffer source, ByteBuffer out, int width, int height, int fromRow, int toRow) {
+        byte[] y = new byte[width];
+        byte[] u = new byte[width];
+        byte[] v = new byte[width];
+        int planeSize = width * height;
+        for (int row = fromRow; row < toRow; row++) {
+            int offset = row * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = source.getInt((offset + x) * 4);
+                int b = pixel & 0xff;
+                int g = (pixel >>> 8) & 0xff;
+                int r = (pixel >>> 16) & 0xff;
+                y[x] = luma(r, g, b);
+                u[x] = chromaU(r, g, b);
+                v[x] = chromaV(r, g, b);
+            }
+            out.position(offset);
+            out.put(y);
+            out.position(planeSize + offset);
+            out.put(u);
+            out.position(planeSize * 2 + offset);
+            out.put(v);
+        }
+    }
+
+    private void convert420(ByteBuffer source, ByteBuffer out, int width, int height, int fromPair, int toPair) {
+        int chromaWidth = width / 2;
+        byte[] y0 = new byte[width];
+        byte[] y1 = new byte[width];
+        byte[] u = new byte[chromaWidth];
+        byte[] v = new byte[chromaWidth];
+        byte[] uv = format == PixelFormat.NV12 ? new byte[width] : null;
+        int planeSize = width * height;
+        int chromaPlaneSize = planeSize / 4;
+        for (int pair = fromPair; pair < toPair; pair++) {
+            int offset0 = pair * 2 * width;
+            int offset1 = offset0 + width;
+            for (int x = 0; x < width; x += 2) {
+                int p00 = source.getInt((offset0 + x) * 4);
+                int p01 = source.getInt((offset0 + x + 1) * 4);
+                int p10 = source.getInt((offset1 + x) * 4);
+                int p11 = source.getInt((offset1 + x + 1) * 4);
+                y0[x] = luma(p00);
+                y0[x + 1] = luma(p01);
+                y1[x] = luma(p10);
+                y1[x + 1] = luma(p11);
+                // Average the 2x2 block for the chroma sample
+                int b = ((p00 & 0xff) + (p01 & 0xff) + (p10 & 0xff) + (p11 & 0xff) + 2) >> 2;
+                int g = ((p00 >>> 8 & 0xff) + (p01 >>> 8 & 0xff) + (p10 >>> 8 & 0xff) + (p11 >>> 8 & 0xff) + 2) >> 2;
+                int r = ((p00 >>> 16 & 0xff) + (p01 >>> 16 & 0xff) + (p10 >>> 16 & 0xff) + (p11 >>> 16 & 0xff) + 2) >> 2;
+                u[x / 2] = chromaU(r, g, b);
+                v[x / 2] = chromaV(r, g, b);
+            }
+            out.position(offset0);
+            out.put(y0);
+            out.put(y1);
+            int chromaOffset = pair * chromaWidth;
+            if (uv != null) {
+                // NV12: a single plane with interleaved U and V samples
+                for (int i = 0; i < chromaWidth; i++) {
+                    uv[i * 2] = u[i];
+                    uv[i * 2 + 1] = v[i];
+                }
+                out.position(planeSize + chromaOffset * 2);
+                out.put(uv);
+            } else {
+                out.position(planeSize + chromaOffset);
+                out.put(u);
+                out.position(planeSize + chromaPlaneSize + chromaOffset);
+                out.put(v);
+            }
+        }
+    }
+
+    private static byte luma(int bgra) {
+        return luma(bgra >>> 16 & 0xff, bgra >>> 8 & 0xff, bgra & 0xff);
+    }
+
+    private static byte luma(int r, int g, int b) {
+        return (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+    }
+
+    private static byte chromaU(int r, int g, int b) {
+        return (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+    }
+
+    private static byte chromaV(int r, int g, int b) {
+        return (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+    }
+}
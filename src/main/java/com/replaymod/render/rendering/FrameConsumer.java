@@ -7,4 +7,12 @@ public interface FrameConsumer<P extends Frame> extends Closeable {
 
     void consume(Map<Channel, P> channels);
 
+    /**
+     * Whether this consumer does not care about the order of frames and may be called concurrently from multiple
+     * threads. If so, frames are handed to it directly by the processing threads instead of a single consumer thread.
+     */
+    default boolean isParallelCapable() {
+        return false;
+    }
+
 }
@@ -2,89 +2,257 @@ package com.replaymod.render.rendering;
 
 import com.replaymod.core.versions.MCVer;
 import com.replaymod.mixin.MinecraftAccessor;
+import com.replaymod.render.RenderSettings;
+import com.replaymod.render.capturer.RenderInfo;
 import com.replaymod.render.capturer.WorldRenderer;
 import com.replaymod.render.frame.BitmapFrame;
+import com.replaymod.render.processor.DownscaleProcessor;
 import com.replaymod.render.processor.GlToAbsoluteDepthProcessor;
+import com.replaymod.render.processor.ProcessorChain;
+import com.replaymod.render.utils.ByteBufferPool;
+import com.replaymod.render.utils.Utils;
 import net.minecraft.client.Minecraft;
 import net.minecraft.crash.CrashReport;
 import net.minecraft.crash.ReportedException;
 import org.lwjgl.glfw.GLFW;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.replaymod.core.versions.MCVer.getMinecraft;
 
 public class Pipeline<R extends Frame, P extends Frame> implements Runnable {
 
+    private final RenderSettings settings;
+    private final PipelineStatistics statistics;
     private final WorldRenderer worldRenderer;
     private final FrameCapturer<R> capturer;
     private final FrameProcessor<R, P> processor;
-    private final GlToAbsoluteDepthProcessor depthProcessor;
-    private int consumerNextFrame;
-    private final Object consumerLock = new Object();
+    /**
+     * Built-in processing of bitmap frames, per channel, run right after {@link #processor}.
+     */
+    private final Map<Channel, ProcessorChain> chains = new EnumMap<>(Channel.class);
+    private final Map<Channel, List<FrameProcessor<P, P>>> postProcessors = new EnumMap<>(Channel.class);
     private final FrameConsumer<P> consumer;
 
+    /**
+     * Hands processed frames to the consumer thread in order. {@code null} if the consumer is
+     * {@link FrameConsumer#isParallelCapable() parallel capable}, it is then called directly by the processing
+     * threads and {@link #inFlight} limits the number of frames between capture and consumption instead.
+     */
+    private ReorderBuffer<Map<Channel, P>> reorderBuffer;
+    private Semaphore inFlight;
+    /**
+     * Sequence numbers of the frames currently being processed if there is no {@link #reorderBuffer}, so the
+     * processing thread of the oldest one can be identified.
+     */
+    private final ConcurrentSkipListSet<Long> inFlightSequences = new ConcurrentSkipListSet<>();
+    private long nextSequence;
+    private int queueDepth;
+    private ExecutorService processService;
+    private Thread consumerThread;
+
     private volatile boolean abort;
 
-    public Pipeline(WorldRenderer worldRenderer, FrameCapturer<R> capturer, FrameProcessor<R, P> processor, FrameConsumer<P> consumer) {
+    public Pipeline(RenderInfo renderInfo, WorldRenderer worldRenderer, FrameCapturer<R> capturer, FrameProcessor<R, P> processor, FrameConsumer<P> consumer) {
+        this.settings = renderInfo.getRenderSettings();
+        this.statistics = renderInfo.getStatistics();
         this.worldRenderer = worldRenderer;
         this.capturer = capturer;
         this.processor = processor;
         this.consumer = consumer;
 
+        ProcessorChain colorChain = new ProcessorChain(false, statistics);
+        ProcessorChain depthChain = new ProcessorChain(true, statistics);
         float near = 0.05f;
         float far = getMinecraft().gameSettings.renderDistanceChunks * 16 * 4;
-        this.depthProcessor = new GlToAbsoluteDepthProcessor(near, far);
+        depthChain.add(new GlToAbsoluteDepthProcessor(near, far));
+
+        // Resolve anti-aliasing supersampling right here, so consumers only ever see frames of the target size
+        int antiAliasingFactor = settings.getRenderMethod() == RenderSettings.RenderMethod.BLEND
+                ? 1 : settings.getAntiAliasing().getFactor();
+        if (antiAliasingFactor > 1) {
+            colorChain.add(new DownscaleProcessor(antiAliasingFactor, false));
+            depthChain.add(new DownscaleProcessor(antiAliasingFactor, true));
+        }
+        chains.put(Channel.BRGA, colorChain);
+        chains.put(Channel.DEPTH, depthChain);
+    }
+
+    /**
+     * Adds a processor which is run on frames of the given channel after all built-in processing, on the processing
+     * threads. Post processors of a channel are run in the order they were added.
+     * Must be called before {@link #run()}.
+     */
+    public void addPostProcessor(Channel channel, FrameProcessor<P, P> processor) {
+        postProcessors.computeIfAbsent(channel, key -> new ArrayList<>()).add(processor);
     }
 
     @Override
     public synchronized void run() {
-        consumerNextFrame = 0;
-        int processors = Runtime.getRuntime().availableProcessors();
-        int processThreads = Math.max(1, processors - 2); // One processor for the main thread and one for ffmpeg, sorry OS :(
-        ExecutorService processService = new ThreadPoolExecutor(processThreads, processThreads,
-                0L, TimeUnit.MILLISECONDS,
-                new ArrayBlockingQueue<Runnable>(2) {
-                    @Override
-                    public boolean offer(Runnable runnable) {
-                        try {
-                            put(runnable);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            return false;
-                        }
-                        return true;
-                    }
-                }, new ThreadPoolExecutor.DiscardPolicy());
-
-        Minecraft mc = MCVer.getMinecraft();
-        while (!capturer.isDone() && !abort) {
-            if (GLFW.glfwWindowShouldClose(mc.getMainWindow().getHandle()) || ((MinecraftAccessor) mc).getCrashReporter() != null) {
-                processService.shutdown();
+        start();
+        while (!isDone()) {
+            if (!captureNext()) {
+                abandon();
                 return;
             }
-            Map<Channel, R> rawFrame = capturer.process();
-            if (rawFrame != null) {
-                processService.submit(new ProcessTask(rawFrame));
+        }
+        finish();
+    }
+
+    /**
+     * Runs several pipelines on the current thread, capturing one frame with each of them in turn. Rendering ends
+     * once all pipelines are done, pipelines which are done before the others (e.g. because their capturer returns
+     * frames with less latency) are skipped from then on.
+     * This allows the same state of the world to be captured by multiple pipelines, e.g. from different cameras.
+     */
+    public static void runInterleaved(List<Pipeline<?, ?>> pipelines) {
+        for (Pipeline<?, ?> pipeline : pipelines) {
+            pipeline.start();
+        }
+        List<Pipeline<?, ?>> running = new ArrayList<>(pipelines);
+        while (!running.isEmpty()) {
+            for (Iterator<Pipeline<?, ?>> iter = running.iterator(); iter.hasNext(); ) {
+                Pipeline<?, ?> pipeline = iter.next();
+                if (pipeline.isDone()) {
+                    iter.remove();
+                    continue;
+                }
+                if (!pipeline.captureNext()) {
+                    pipelines.forEach(Pipeline::abandon);
+                    return;
+                }
             }
         }
+        for (Pipeline<?, ?> pipeline : pipelines) {
+            pipeline.finish();
+        }
+    }
 
+    private void start() {
+        int processThreads = settings.getProcessingThreads();
+        if (processThreads <= 0) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            processThreads = Math.max(1, processors - 2); // One processor for the main thread and one for ffmpeg, sorry OS :(
+        }
+        queueDepth = settings.getFrameQueueDepth();
+        if (queueDepth <= 0) {
+            // Allow every processing thread to work on one frame while another one is waiting for its turn
+            queueDepth = processThreads * 2;
+        }
+        if (consumer.isParallelCapable()) {
+            reorderBuffer = null;
+            inFlight = new Semaphore(queueDepth);
+        } else {
+            reorderBuffer = new ReorderBuffer<>(queueDepth);
+            inFlight = null;
+        }
+        statistics.setQueueCapacity(PipelineStatistics.Queue.FRAMES, queueDepth);
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        processService = Executors.newFixedThreadPool(processThreads, runnable ->
+                new Thread(runnable, "replaymod-frame-processor-" + threadCounter.incrementAndGet()));
+        consumerThread = null;
+        if (reorderBuffer != null) {
+            consumerThread = new Thread(new ConsumeTask(), "replaymod-frame-consumer");
+            consumerThread.start();
+        }
+    }
+
+    private boolean isDone() {
+        return capturer.isDone() || abort;
+    }
+
+    /**
+     * Captures the next frame and queues it for processing.
+     *
+     * @return {@code false} if the window has been closed or the game has crashed, in which case the pipeline has to
+     * be {@link #abandon() abandoned}
+     */
+    private boolean captureNext() {
+        Minecraft mc = MCVer.getMinecraft();
+        if (GLFW.glfwWindowShouldClose(mc.getMainWindow().getHandle()) || ((MinecraftAccessor) mc).getCrashReporter() != null) {
+            return false;
+        }
+        long captureStart = System.nanoTime();
+        Map<Channel, R> rawFrame = capturer.process();
+        long captureEnd = System.nanoTime();
+        statistics.record(PipelineStatistics.Stage.CAPTURE, captureEnd - captureStart);
+        if (rawFrame != null) {
+            long sequence = -1;
+            try {
+                if (reorderBuffer != null) {
+                    // Only blocks once the ring is full, i.e. when the oldest frame still hasn't been consumed
+                    sequence = reorderBuffer.reserve();
+                } else {
+                    inFlight.acquire();
+                    sequence = nextSequence++;
+                    inFlightSequences.add(sequence);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort = true;
+                // The frame will never be processed, its buffers (or views into the capturer's) have to go back
+                rawFrame.values().forEach(Utils::release);
+                return true;
+            }
+            statistics.record(PipelineStatistics.Stage.STALL, System.nanoTime() - captureEnd);
+            statistics.recordQueueDepth(PipelineStatistics.Queue.FRAMES, reorderBuffer != null
+                    ? reorderBuffer.size() : queueDepth - inFlight.availablePermits());
+            processService.execute(new ProcessTask(sequence, rawFrame));
+        }
+        return true;
+    }
+
+    /**
+     * Stops processing without waiting for queued frames or cleaning up, the game is going away anyway.
+     */
+    private void abandon() {
+        processService.shutdown();
+        if (reorderBuffer != null) {
+            reorderBuffer.close();
+        }
+    }
+
+    private void finish() {
         processService.shutdown();
         try {
             processService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        if (reorderBuffer != null) {
+            reorderBuffer.close();
+            try {
+                consumerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
         try {
             worldRenderer.close();
             capturer.close();
             processor.close();
+            for (ProcessorChain chain : chains.values()) {
+                chain.close();
+            }
+            for (List<FrameProcessor<P, P>> processors : postProcessors.values()) {
+                for (FrameProcessor<P, P> postProcessor : processors) {
+                    postProcessor.close();
+                }
+            }
             consumer.close();
         } catch (Throwable t) {
             CrashReport crashReport = CrashReport.makeCrashReport(t, "Cleaning up rendering pipeline");
@@ -96,45 +264,162 @@ public class Pipeline<R extends Frame, P extends Frame> implements Runnable {
         abort = true;
     }
 
+    private static long byteSize(Map<Channel, ? extends Frame> channels) {
+        long bytes = 0;
+        for (Frame frame : channels.values()) {
+            if (frame instanceof BitmapFrame) {
+                bytes += ((BitmapFrame) frame).getByteBuffer().remaining();
+            }
+        }
+        return bytes;
+    }
+
     private class ProcessTask implements Runnable {
+        private final long sequence;
         private final Map<Channel, R> rawChannels;
 
-        public ProcessTask(Map<Channel, R> rawChannels) {
+        public ProcessTask(long sequence, Map<Channel, R> rawChannels) {
+            this.sequence = sequence;
             this.rawChannels = rawChannels;
         }
 
+        /**
+         * Whether the consumer is waiting for this frame, i.e. all frames after it can only make progress once it is
+         * done. Its buffers are therefore allocated even if the pool is over budget.
+         */
+        private boolean isOldest() {
+            if (reorderBuffer != null) {
+                return reorderBuffer.isNext(sequence);
+            } else {
+                return inFlightSequences.first() == sequence;
+            }
+        }
+
         @Override
         public void run() {
+            ByteBufferPool.setOverBudgetCondition(this::isOldest);
+            try {
+                processAndConsume();
+            } finally {
+                ByteBufferPool.setOverBudgetCondition(null);
+            }
+        }
+
+        private void processAndConsume() {
+            Map<Channel, P> processedChannels = new HashMap<>();
+            // The frame of the channel currently being processed, as of its last completed step
+            Frame current = null;
             try {
-                Integer frameId = null;
-                Map<Channel, P> processedChannels = new HashMap<>();
+                long start = System.nanoTime();
                 for (Map.Entry<Channel, R> entry : rawChannels.entrySet()) {
-                    P processedFrame = processor.process(entry.getValue());
-                    if (entry.getKey() == Channel.DEPTH && processedFrame instanceof BitmapFrame) {
-                        depthProcessor.process((BitmapFrame) processedFrame);
+                    current = entry.getValue();
+                    P processedFrame = process(processor, entry.getValue());
+                    current = processedFrame;
+                    ProcessorChain chain = chains.get(entry.getKey());
+                    if (chain != null && !chain.isEmpty() && processedFrame instanceof BitmapFrame) {
+                        @SuppressWarnings("unchecked")
+                        P chainedFrame = (P) chain.process((BitmapFrame) processedFrame);
+                        processedFrame = chainedFrame;
+                        current = processedFrame;
                     }
-                    processedChannels.put(entry.getKey(), processedFrame);
-                    frameId = processedFrame.getFrameId();
-                }
-                if (frameId == null) {
-                    return;
-                }
-                synchronized (consumerLock) {
-                    while (consumerNextFrame != frameId) {
-                        try {
-                            consumerLock.wait();
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
+                    for (FrameProcessor<P, P> postProcessor : postProcessors.getOrDefault(entry.getKey(), Collections.emptyList())) {
+                        processedFrame = process(postProcessor, processedFrame);
+                        current = processedFrame;
                     }
-                    consumer.consume(processedChannels);
-                    consumerNextFrame++;
-                    consumerLock.notifyAll();
+                    processedChannels.put(entry.getKey(), processedFrame);
+                    current = null;
                 }
+                statistics.record(PipelineStatistics.Stage.PROCESS, System.nanoTime() - start, byteSize(processedChannels));
             } catch (Throwable t) {
                 CrashReport crashReport = CrashReport.makeCrashReport(t, "Processing frame");
                 MCVer.getMinecraft().crashed(crashReport);
+                // Return all buffers of this frame, later frames would otherwise wait for them in vain. The pool
+                // ignores buffers which the failed step has already released itself.
+                releaseAll(rawChannels, processedChannels, current);
+                // The consumer still needs to know that it should skip this frame
+                processedChannels = Collections.emptyMap();
             }
+            if (reorderBuffer != null) {
+                reorderBuffer.put(sequence, processedChannels);
+            } else {
+                try {
+                    if (!processedChannels.isEmpty()) {
+                        consume(processedChannels);
+                    }
+                } finally {
+                    inFlightSequences.remove(sequence);
+                    inFlight.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the given processor and records its timing, so the statistics show which processor is slow.
+     */
+    private <I extends Frame, O extends Frame> O process(FrameProcessor<I, O> processor, I frame) {
+        if (processor instanceof ProcessorChain) {
+            return processor.process(frame); // Records each of its passes on its own
+        }
+        long start = System.nanoTime();
+        O result = processor.process(frame);
+        long bytes = result instanceof BitmapFrame ? ((BitmapFrame) result).getByteBuffer().remaining() : 0;
+        statistics.recordProcessor(processor.getClass().getSimpleName(), System.nanoTime() - start, bytes);
+        return result;
+    }
+
+    /**
+     * Releases the frames of all channels of a frame whose processing failed.
+     *
+     * @param current the frame of the channel which failed, or {@code null}
+     */
+    private static <R extends Frame, P extends Frame> void releaseAll(Map<Channel, R> rawChannels,
+                                                                      Map<Channel, P> processedChannels,
+                                                                      Frame current) {
+        int started = processedChannels.size() + (current != null ? 1 : 0);
+        int index = 0;
+        for (R rawFrame : rawChannels.values()) {
+            if (index++ >= started) {
+                Utils.release(rawFrame);
+            }
+        }
+        if (current != null) {
+            Utils.release(current);
+        }
+        processedChannels.values().forEach(Utils::release);
+    }
+
+    private class ConsumeTask implements Runnable {
+        @Override
+        public void run() {
+            Map<Channel, P> processedChannels;
+            while (true) {
+                try {
+                    processedChannels = reorderBuffer.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (processedChannels == null) {
+                    return; // Pipeline has been closed and all frames have been consumed
+                }
+                if (processedChannels.isEmpty()) {
+                    continue;
+                }
+                consume(processedChannels);
+            }
+        }
+    }
+
+    private void consume(Map<Channel, P> processedChannels) {
+        try {
+            long bytes = byteSize(processedChannels);
+            long start = System.nanoTime();
+            consumer.consume(processedChannels);
+            statistics.record(PipelineStatistics.Stage.CONSUME, System.nanoTime() - start, bytes);
+        } catch (Throwable t) {
+            CrashReport crashReport = CrashReport.makeCrashReport(t, "Consuming frame");
+            MCVer.getMinecraft().crashed(crashReport);
         }
     }
 }
@@ -0,0 +1,274 @@
+package com.replaymod.render.rendering;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects per-stage and per-processor timings, byte counts and queue depths of a rendering {@link Pipeline}.
+ * All methods may be called concurrently from the render, processing and consumer threads.
+ */
+public class PipelineStatistics {
+    public enum Stage {
+        /** Rendering the world and capturing it from OpenGL, including {@link #READBACK}. */
+        CAPTURE,
+        /** Copying the captured pixels from the GPU into main memory. */
+        READBACK,
+        /** Time the render thread spent waiting for room in the frame queue. */
+        STALL,
+        /** Running all processors on a frame, see {@link #getProcessors()} for the individual ones. */
+        PROCESS,
+        /** Handing a frame to the {@link FrameConsumer}. */
+        CONSUME,
+        /** Time the consumer spent waiting for room in the encoder's write queue. */
+        ENCODER_STALL,
+        /** Writing frames into the encoder, done by its own I/O thread. */
+        WRITE,
+    }
+
+    public enum Queue {
+        /** Frames between capturing and consuming them. */
+        FRAMES,
+        /** Frames waiting to be written into the encoder. */
+        ENCODER,
+    }
+
+    private final Map<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+    private final Map<String, Histogram> processors = new ConcurrentHashMap<>();
+    private final long startTime = System.nanoTime();
+    private long endTime;
+    private final Map<Queue, Histogram> queueDepths = new EnumMap<>(Queue.class);
+    private final Map<Queue, Integer> queueCapacities = new EnumMap<>(Queue.class);
+
+    public PipelineStatistics() {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new Histogram());
+        }
+        for (Queue queue : Queue.values()) {
+            queueDepths.put(queue, new Histogram());
+            queueCapacities.put(queue, 0);
+        }
+    }
+
+    public void record(Stage stage, long nanos) {
+        record(stage, nanos, 0);
+    }
+
+    public void record(Stage stage, long nanos, long bytes) {
+        histograms.get(stage).record(nanos, bytes);
+    }
+
+    /**
+     * Records the time a single processor took for one frame, as part of {@link Stage#PROCESS}.
+     *
+     * @param processor name of the processor, e.g. its class name
+     * @param bytes     size of the frame it returned
+     */
+    public void recordProcessor(String processor, long nanos, long bytes) {
+        processors.computeIfAbsent(processor, key -> new Histogram()).record(nanos, bytes);
+    }
+
+    public void recordQueueDepth(Queue queue, int depth) {
+        queueDepths.get(queue).record(depth, 0);
+    }
+
+    public synchronized void setQueueCapacity(Queue queue, int capacity) {
+        queueCapacities.put(queue, capacity);
+    }
+
+    public synchronized int getQueueCapacity(Queue queue) {
+        return queueCapacities.get(queue);
+    }
+
+    public Histogram get(Stage stage) {
+        return histograms.get(stage);
+    }
+
+    /**
+     * @return histograms of all processors which have run so far, keyed and sorted by their name
+     */
+    public Map<String, Histogram> getProcessors() {
+        return new TreeMap<>(processors);
+    }
+
+    public Histogram getQueueDepth(Queue queue) {
+        return queueDepths.get(queue);
+    }
+
+    public synchronized void finish() {
+        if (endTime == 0) {
+            endTime = System.nanoTime();
+        }
+    }
+
+    public synchronized long getElapsedNanos() {
+        return (endTime == 0 ? System.nanoTime() : endTime) - startTime;
+    }
+
+    public JsonObject toJson() {
+        JsonObject root = new JsonObject();
+        root.addProperty("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(getElapsedNanos()));
+        JsonObject stages = new JsonObject();
+        for (Map.Entry<Stage, Histogram> entry : histograms.entrySet()) {
+            stages.add(entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue().toJson(1e-6));
+        }
+        root.add("stages", stages);
+        JsonObject processors = new JsonObject();
+        for (Map.Entry<String, Histogram> entry : getProcessors().entrySet()) {
+            processors.add(entry.getKey(), entry.getValue().toJson(1e-6));
+        }
+        root.add("processors", processors);
+        JsonObject queues = new JsonObject();
+        for (Queue queue : Queue.values()) {
+            JsonObject json = getQueueDepth(queue).toJson(1);
+            json.addProperty("capacity", getQueueCapacity(queue));
+            queues.add(queue.name().toLowerCase(Locale.ROOT), json);
+        }
+        root.add("queueDepths", queues);
+        return root;
+    }
+
+    /**
+     * Writes a JSON report and a CSV summary with one line per stage and one per processor (as
+     * {@code process/<name>}).
+     *
+     * @param basePath  path of the report without extension
+     * @param extraInfo additional entries for the JSON report, e.g. the render settings
+     */
+    public void writeReport(Path basePath, JsonObject extraInfo) throws IOException {
+        JsonObject json = toJson();
+        for (Map.Entry<String, JsonElement> entry : extraInfo.entrySet()) {
+            json.add(entry.getKey(), entry.getValue());
+        }
+        Path jsonPath = basePath.resolveSibling(basePath.getFileName() + ".json");
+        try (Writer writer = Files.newBufferedWriter(jsonPath, StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(json, writer);
+        }
+
+        Path csvPath = basePath.resolveSibling(basePath.getFileName() + ".csv");
+        try (Writer writer = Files.newBufferedWriter(csvPath, StandardCharsets.UTF_8)) {
+            writer.write("stage,count,total_ms,mean_ms,p50_ms,p90_ms,p99_ms,max_ms,bytes\n");
+            for (Map.Entry<Stage, Histogram> entry : histograms.entrySet()) {
+                writeCsvLine(writer, entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue());
+            }
+            for (Map.Entry<String, Histogram> entry : getProcessors().entrySet()) {
+                writeCsvLine(writer, "process/" + entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static void writeCsvLine(Writer writer, String name, Histogram histogram) throws IOException {
+        writer.write(String.format(Locale.ROOT, "%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%d\n",
+                name,
+                histogram.getCount(),
+                histogram.getTotal() * 1e-6,
+                histogram.getMean() * 1e-6,
+                histogram.getPercentile(0.5) * 1e-6,
+                histogram.getPercentile(0.9) * 1e-6,
+                histogram.getPercentile(0.99) * 1e-6,
+                histogram.getMax() * 1e-6,
+                histogram.getBytes()));
+    }
+
+    /**
+     * Histogram with power-of-two buckets, i.e. bucket {@code i} counts values in {@code [2^(i-1), 2^i)}.
+     * Additionally keeps an exponentially weighted moving average for live display.
+     */
+    public static class Histogram {
+        private static final double RECENT_WEIGHT = 0.05;
+
+        private final long[] buckets = new long[64];
+        private long count;
+        private long total;
+        private long max;
+        private long bytes;
+        private double recent = Double.NaN;
+
+        public synchronized void record(long value, long bytes) {
+            value = Math.max(0, value);
+            buckets[64 - Long.numberOfLeadingZeros(value)]++;
+            count++;
+            total += value;
+            max = Math.max(max, value);
+            this.bytes += bytes;
+            recent = Double.isNaN(recent) ? value : recent + (value - recent) * RECENT_WEIGHT;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getTotal() {
+            return total;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        public synchronized double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * @return moving average over (roughly) the last few dozen values
+         */
+        public synchronized double getRecent() {
+            return Double.isNaN(recent) ? 0 : recent;
+        }
+
+        /**
+         * @return upper bound of the bucket containing the given percentile
+         */
+        public synchronized long getPercentile(double percentile) {
+            long target = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        synchronized JsonObject toJson(double scale) {
+            JsonObject json = new JsonObject();
+            json.addProperty("count", count);
+            json.addProperty("total", total * scale);
+            json.addProperty("mean", getMean() * scale);
+            json.addProperty("p50", getPercentile(0.5) * scale);
+            json.addProperty("p90", getPercentile(0.9) * scale);
+            json.addProperty("p99", getPercentile(0.99) * scale);
+            json.addProperty("max", max * scale);
+            json.addProperty("bytes", bytes);
+            JsonArray histogram = new JsonArray();
+            int last = buckets.length - 1;
+            while (last > 0 && buckets[last] == 0) {
+                last--;
+            }
+            for (int i = 0; i <= last; i++) {
+                histogram.add(buckets[i]);
+            }
+            json.add("buckets", histogram);
+            return json;
+        }
+    }
+}
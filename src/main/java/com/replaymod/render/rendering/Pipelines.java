@@ -38,7 +38,7 @@ public class Pipelines {
         } else {
             capturer = new SimpleOpenGlFrameCapturer(worldRenderer, renderInfo);
         }
-        return new Pipeline<>(worldRenderer, capturer, new OpenGlToBitmapProcessor(), consumer);
+        return new Pipeline<>(renderInfo, worldRenderer, capturer, new OpenGlToBitmapProcessor(), consumer);
     }
 
     public static Pipeline<StereoscopicOpenGlFrame, BitmapFrame> newStereoscopicPipeline(RenderInfo renderInfo, FrameConsumer<BitmapFrame> consumer) {
@@ -50,7 +50,7 @@ public class Pipelines {
         } else {
             capturer = new StereoscopicOpenGlFrameCapturer(worldRenderer, renderInfo);
         }
-        return new Pipeline<>(worldRenderer, capturer, new StereoscopicToBitmapProcessor(), consumer);
+        return new Pipeline<>(renderInfo, worldRenderer, capturer, new StereoscopicToBitmapProcessor(), consumer);
     }
 
     public static Pipeline<CubicOpenGlFrame, BitmapFrame> newCubicPipeline(RenderInfo renderInfo, FrameConsumer<BitmapFrame> consumer) {
@@ -62,7 +62,7 @@ public class Pipelines {
         } else {
             capturer = new CubicOpenGlFrameCapturer(worldRenderer, renderInfo, settings.getVideoWidth() / 4);
         }
-        return new Pipeline<>(worldRenderer, capturer, new CubicToBitmapProcessor(), consumer);
+        return new Pipeline<>(renderInfo, worldRenderer, capturer, new CubicToBitmapProcessor(), consumer);
     }
 
     public static Pipeline<CubicOpenGlFrame, BitmapFrame> newEquirectangularPipeline(RenderInfo renderInfo, FrameConsumer<BitmapFrame> consumer) {
@@ -74,11 +74,13 @@ public class Pipelines {
 
         FrameCapturer<CubicOpenGlFrame> capturer;
         if (PixelBufferObject.SUPPORTED || settings.isDepthMap()) {
-            capturer = new CubicPboOpenGlFrameCapturer(worldRenderer, renderInfo, processor.getFrameSize());
+            // Faces (or parts of them) outside of the field of view are neither rendered nor read back
+            capturer = new CubicPboOpenGlFrameCapturer(worldRenderer, renderInfo, processor.getFrameSize(),
+                    processor.getUsedRegions());
         } else {
             capturer = new CubicOpenGlFrameCapturer(worldRenderer, renderInfo, processor.getFrameSize());
         }
-        return new Pipeline<>(worldRenderer, capturer, processor, consumer);
+        return new Pipeline<>(renderInfo, worldRenderer, capturer, processor, consumer);
     }
 
     public static Pipeline<ODSOpenGlFrame, BitmapFrame> newODSPipeline(RenderInfo renderInfo, FrameConsumer<BitmapFrame> consumer) {
@@ -89,8 +91,8 @@ public class Pipelines {
                 settings.getVideoHeight(), settings.getSphericalFovX());
 
         FrameCapturer<ODSOpenGlFrame> capturer =
-                new ODSFrameCapturer(worldRenderer, renderInfo, processor.getFrameSize());
-        return new Pipeline<>(worldRenderer, capturer, processor, consumer);
+                new ODSFrameCapturer(worldRenderer, renderInfo, processor.getFrameSize(), processor.getUsedRegions());
+        return new Pipeline<>(renderInfo, worldRenderer, capturer, processor, consumer);
     }
 
     public static Pipeline<BitmapFrame, BitmapFrame> newBlendPipeline(RenderInfo renderInfo) {
@@ -106,6 +108,6 @@ public class Pipelines {
             public void close() {
             }
         };
-        return new Pipeline<>(worldRenderer, capturer, new DummyProcessor<>(), consumer);
+        return new Pipeline<>(renderInfo, worldRenderer, capturer, new DummyProcessor<>(), consumer);
     }
 }
@@ -0,0 +1,140 @@
+package com.replaymod.render.rendering;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring of slots indexed by sequence number.
+ * Producers reserve a sequence number, fill the slot in any order and a single consumer takes them out strictly
+ * in sequence order. Reserving blocks only once the ring is full, i.e. when the oldest reserved slot has not yet
+ * been taken by the consumer.
+ */
+class ReorderBuffer<T> {
+    private final Object[] slots;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition nextReady = lock.newCondition();
+
+    /** Sequence number which will be handed out by the next call to {@link #reserve()}. */
+    private long reserved;
+    /** Sequence number which will be returned by the next call to {@link #take()}. Only written with the lock held. */
+    private volatile long taken;
+    private boolean closed;
+
+    ReorderBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive but was " + capacity);
+        }
+        this.slots = new Object[capacity];
+    }
+
+    /**
+     * Reserves the next slot, waiting for the consumer to free one if the ring is full.
+     *
+     * @return the sequence number of the reserved slot
+     */
+    long reserve() throws InterruptedException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Buffer already closed.");
+            }
+            while (reserved - taken >= slots.length) {
+                notFull.await();
+            }
+            return reserved++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fills a previously reserved slot.
+     *
+     * @param sequence sequence number as returned by {@link #reserve()}
+     * @param value    the value, must not be {@code null}
+     */
+    void put(long sequence, T value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (sequence < taken || sequence >= reserved) {
+                throw new IllegalArgumentException("Slot " + sequence + " has not been reserved.");
+            }
+            int index = (int) (sequence % slots.length);
+            if (slots[index] != null) {
+                throw new IllegalStateException("Slot " + sequence + " has already been filled.");
+            }
+            slots[index] = value;
+            if (sequence == taken) {
+                nextReady.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the value with the next sequence number, waiting for it to be filled if necessary.
+     *
+     * @return the value or {@code null} if the buffer has been closed and all reserved slots have been taken
+     */
+    @SuppressWarnings("unchecked")
+    T take() throws InterruptedException {
+        lock.lock();
+        try {
+            int index = (int) (taken % slots.length);
+            while (slots[index] == null) {
+                if (closed && taken == reserved) {
+                    return null;
+                }
+                nextReady.await();
+            }
+            T value = (T) slots[index];
+            slots[index] = null;
+            taken++;
+            notFull.signal();
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prevents any further reservations. Slots which have already been reserved may still be filled and taken.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            nextReady.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether the given sequence number is the one the consumer is currently waiting for
+     */
+    boolean isNext(long sequence) {
+        return sequence == taken;
+    }
+
+    /**
+     * @return the number of reserved slots which have not yet been taken
+     */
+    int size() {
+        lock.lock();
+        try {
+            return (int) (reserved - taken);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+}
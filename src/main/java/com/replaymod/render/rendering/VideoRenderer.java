@@ -1,5 +1,7 @@
 package com.replaymod.render.rendering;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import com.mojang.blaze3d.matrix.MatrixStack;
 import com.mojang.blaze3d.systems.RenderSystem;
 import com.replaymod.core.MinecraftMethodAccessor;
@@ -19,6 +21,12 @@ import com.replaymod.render.gui.GuiRenderingDone;
 import com.replaymod.render.gui.GuiVideoRenderer;
 import com.replaymod.render.hooks.ForceChunkLoadingHook;
 import com.replaymod.render.metadata.MetadataInjector;
+import com.replaymod.render.processor.AbstractFrameProcessor;
+import com.replaymod.render.processor.DownscaleProcessor;
+import com.replaymod.render.processor.ProcessorChain;
+import com.replaymod.render.processor.YuvConversionProcessor;
+import com.replaymod.render.utils.ByteBufferPool;
+import com.replaymod.render.utils.RenderJob;
 import com.replaymod.replay.ReplayHandler;
 import com.replaymod.replaystudio.pathing.path.Keyframe;
 import com.replaymod.replaystudio.pathing.path.Path;
@@ -38,13 +46,19 @@ import net.minecraft.util.Timer;
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.opengl.GL11;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.collect.Iterables.getLast;
 import static com.mojang.blaze3d.platform.GlStateManager.*;
@@ -55,13 +69,31 @@ import static org.lwjgl.opengl.GL11.GL_DEPTH_BUFFER_BIT;
 
 public class VideoRenderer implements RenderInfo {
     private static final ResourceLocation SOUND_RENDER_SUCCESS = new ResourceLocation("replaymod", "render_success");
+    /**
+     * The progress GUI is redrawn at most this often while rendering, as every redraw stalls the render thread.
+     */
+    private static final long GUI_FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 5;
     private final Minecraft mc = MCVer.getMinecraft();
     private final RenderSettings settings;
     private final ReplayHandler replayHandler;
     private final Timeline timeline;
     private final Pipeline renderingPipeline;
     private final FFmpegWriter ffmpegWriter;
+    private final SpoolWriter spoolWriter;
+    private final List<FFmpegWriter> additionalFFmpegWriters = new ArrayList<>();
+    private final List<SpoolWriter> additionalSpoolWriters = new ArrayList<>();
+    private final List<Pipeline<?, ?>> cameraPipelines = new ArrayList<>();
+    private final List<Timeline> cameraTimelines = new ArrayList<>();
     private final CameraPathExporter cameraPathExporter;
+    private final PipelineStatistics statistics = new PipelineStatistics();
+    /**
+     * Checkpoints of all outputs of a resumable render, by output file.
+     */
+    private final Map<File, RenderCheckpoint> checkpoints = new HashMap<>();
+    /**
+     * Frame of the timeline at which rendering starts, all other frame counts are relative to it.
+     */
+    private final int firstFrame;
 
     private int fps;
     private boolean mouseWasGrabbed;
@@ -82,43 +114,63 @@ public class VideoRenderer implements RenderInfo {
 
     private Framebuffer guiFramebuffer;
     private int displayWidth, displayHeight;
+    private long lastGuiDraw = System.nanoTime() - GUI_FRAME_NANOS;
+    /**
+     * Video time and partial ticks of the frame currently being rendered, for {@link CameraRenderInfo}.
+     */
+    private int frameTime;
+    private float framePartialTicks;
 
     public VideoRenderer(RenderSettings settings, ReplayHandler replayHandler, Timeline timeline) throws IOException {
+        this(settings, replayHandler, timeline, Collections.emptyList());
+    }
+
+    /**
+     * @param additionalCameras jobs which are rendered in the same pass, from their own camera path but at the same
+     *                          replay time, see {@link RenderJob#canRenderTogether(RenderJob)}
+     */
+    public VideoRenderer(RenderSettings settings, ReplayHandler replayHandler, Timeline timeline,
+                         List<RenderJob> additionalCameras) throws IOException {
         this.settings = settings;
         this.replayHandler = replayHandler;
         this.timeline = timeline;
         this.gui = new GuiVideoRenderer(this);
+        if (settings.isResumable() && settings.getRenderMethod() != RenderSettings.RenderMethod.BLEND) {
+            this.firstFrame = loadCheckpoints(settings);
+        } else {
+            this.firstFrame = settings.getStartFrame();
+        }
         if (settings.getRenderMethod() == RenderSettings.RenderMethod.BLEND) {
             BlendState.setState(new BlendState(settings.getOutputFile()));
 
             this.renderingPipeline = Pipelines.newBlendPipeline(this);
             this.ffmpegWriter = null;
+            this.spoolWriter = null;
         } else {
-            FrameConsumer<BitmapFrame> frameConsumer;
-            if (settings.getEncodingPreset() == RenderSettings.EncodingPreset.EXR) {
-                frameConsumer = new EXRWriter(settings.getOutputFile().toPath());
-            } else if (settings.getEncodingPreset() == RenderSettings.EncodingPreset.PNG) {
-                frameConsumer = new PNGWriter(settings.getOutputFile().toPath());
-            } else {
-                frameConsumer = new FFmpegWriter(this);
-            }
+            FrameConsumer<BitmapFrame> frameConsumer = createConsumer(settings);
             ffmpegWriter = frameConsumer instanceof FFmpegWriter ? (FFmpegWriter) frameConsumer : null;
-            FrameConsumer<BitmapFrame> previewingFrameConsumer = new FrameConsumer<BitmapFrame>() {
-                @Override
-                public void consume(Map<Channel, BitmapFrame> channels) {
-                    BitmapFrame bgra = channels.get(Channel.BRGA);
-                    if (bgra != null) {
-                        gui.updatePreview(bgra.getByteBuffer(), bgra.getSize());
-                    }
-                    frameConsumer.consume(channels);
-                }
+            spoolWriter = frameConsumer instanceof SpoolWriter ? (SpoolWriter) frameConsumer : null;
 
+            ProcessorChain colorChain = new ProcessorChain(statistics);
+            // Update the preview on the processing threads, before the frame is converted for the consumer
+            colorChain.add(new AbstractFrameProcessor<BitmapFrame, BitmapFrame>() {
                 @Override
-                public void close() throws IOException {
-                    frameConsumer.close();
+                public BitmapFrame process(BitmapFrame frame) {
+                    gui.updatePreview(frame.getByteBuffer(), frame.getSize());
+                    return frame;
                 }
-            };
-            this.renderingPipeline = Pipelines.newPipeline(settings.getRenderMethod(), this, previewingFrameConsumer);
+            });
+            this.renderingPipeline = createPipeline(settings, this, frameConsumer, colorChain);
+
+            // Further cameras see the same state of the world, it is only advanced by the main pipeline
+            for (RenderJob camera : additionalCameras) {
+                RenderSettings cameraSettings = camera.getSettings();
+                FrameConsumer<BitmapFrame> cameraConsumer = createConsumer(cameraSettings);
+                addAdditionalWriter(cameraConsumer);
+                cameraTimelines.add(camera.getTimeline());
+                cameraPipelines.add(createPipeline(cameraSettings, new CameraRenderInfo(camera.getTimeline(), cameraSettings),
+                        cameraConsumer, new ProcessorChain(statistics)));
+            }
         }
 
         if (settings.isCameraPathExport()) {
@@ -128,6 +180,116 @@ public class VideoRenderer implements RenderInfo {
         }
     }
 
+    private Pipeline<?, BitmapFrame> createPipeline(RenderSettings settings, RenderInfo renderInfo,
+                                                    FrameConsumer<BitmapFrame> frameConsumer, ProcessorChain colorChain) throws IOException {
+        List<RenderSettings.AdditionalOutput> additionalOutputs = settings.getAdditionalOutputs();
+        if (additionalOutputs.isEmpty()) {
+            colorChain.add(createOutputProcessor(settings, 1));
+        } else {
+            // All outputs are fed from the same rendered frames, which are converted for each of them on the
+            // processing threads and then written by one thread per output
+            int queueDepth = settings.getFrameQueueDepth() > 0 ? settings.getFrameQueueDepth() : 4;
+            MultiOutputWriter multiOutputWriter = new MultiOutputWriter(queueDepth);
+            multiOutputWriter.addOutput(createOutputProcessor(settings, 1), frameConsumer);
+            for (RenderSettings.AdditionalOutput output : additionalOutputs) {
+                RenderSettings outputSettings = settings.forAdditionalOutput(output);
+                FrameConsumer<BitmapFrame> outputConsumer = createConsumer(outputSettings);
+                addAdditionalWriter(outputConsumer);
+                multiOutputWriter.addOutput(createOutputProcessor(outputSettings, output.getDownscale()), outputConsumer);
+            }
+            colorChain.add(multiOutputWriter.getProcessor());
+            frameConsumer = multiOutputWriter;
+        }
+
+        Pipeline<?, BitmapFrame> pipeline = Pipelines.newPipeline(settings.getRenderMethod(), renderInfo, frameConsumer);
+        pipeline.addPostProcessor(Channel.BRGA, colorChain);
+        return pipeline;
+    }
+
+    private void addAdditionalWriter(FrameConsumer<BitmapFrame> consumer) {
+        if (consumer instanceof FFmpegWriter) {
+            additionalFFmpegWriters.add((FFmpegWriter) consumer);
+        } else if (consumer instanceof SpoolWriter) {
+            additionalSpoolWriters.add((SpoolWriter) consumer);
+        }
+    }
+
+    /**
+     * Loads the checkpoints of all outputs of a resumable render. Spooled outputs cannot be resumed.
+     *
+     * @return the first frame which has not yet been written by all outputs, at which rendering continues
+     */
+    private int loadCheckpoints(RenderSettings settings) throws IOException {
+        List<RenderSettings> outputs = new ArrayList<>();
+        outputs.add(settings);
+        for (RenderSettings.AdditionalOutput output : settings.getAdditionalOutputs()) {
+            outputs.add(settings.forAdditionalOutput(output));
+        }
+        int frame = Integer.MAX_VALUE;
+        for (RenderSettings output : outputs) {
+            if (isSpooled(output)) {
+                continue;
+            }
+            RenderCheckpoint checkpoint = RenderCheckpoint.load(output);
+            checkpoints.put(output.getOutputFile(), checkpoint);
+            frame = Math.min(frame, checkpoint.getResumeFrame(output));
+        }
+        if (checkpoints.isEmpty()) {
+            return settings.getStartFrame();
+        }
+
+        // A new ffmpeg run can only start where a segment of the previous run ends
+        int aligned;
+        do {
+            aligned = frame;
+            for (RenderCheckpoint checkpoint : checkpoints.values()) {
+                frame = checkpoint.alignToSegment(frame);
+            }
+        } while (frame != aligned);
+
+        for (RenderCheckpoint checkpoint : checkpoints.values()) {
+            checkpoint.save();
+        }
+        if (frame > settings.getStartFrame()) {
+            LOGGER.info("Resuming render of {} at frame {}", settings.getOutputFile(), frame);
+        }
+        return frame;
+    }
+
+    private static boolean isSpooled(RenderSettings settings) {
+        return settings.isSpool() && settings.getEncodingPreset() != RenderSettings.EncodingPreset.EXR
+                && settings.getEncodingPreset() != RenderSettings.EncodingPreset.PNG;
+    }
+
+    private FrameConsumer<BitmapFrame> createConsumer(RenderSettings settings) throws IOException {
+        if (settings.getEncodingPreset() == RenderSettings.EncodingPreset.EXR) {
+            return new EXRWriter(settings.getOutputFile().toPath(), settings.getExrCompression(), firstFrame);
+        } else if (settings.getEncodingPreset() == RenderSettings.EncodingPreset.PNG) {
+            return new PNGWriter(settings.getOutputFile().toPath(), firstFrame);
+        } else if (isSpooled(settings)) {
+            return new SpoolWriter(SpoolWriter.getSpoolFile(settings), settings);
+        } else {
+            return new FFmpegWriter(this, settings, checkpoints.get(settings.getOutputFile()), firstFrame);
+        }
+    }
+
+    /**
+     * @return processor which brings full size color frames into the form required by the output with the given
+     * settings
+     */
+    private ProcessorChain createOutputProcessor(RenderSettings settings, int downscale) {
+        ProcessorChain chain = new ProcessorChain(statistics);
+        if (downscale > 1) {
+            chain.add(new DownscaleProcessor(downscale, false));
+        }
+        boolean ffmpeg = settings.getEncodingPreset() != RenderSettings.EncodingPreset.EXR
+                && settings.getEncodingPreset() != RenderSettings.EncodingPreset.PNG;
+        if (ffmpeg && settings.getFFmpegInputFormat() != RenderSettings.PixelFormat.BGRA) {
+            chain.add(new YuvConversionProcessor(settings.getFFmpegInputFormat()));
+        }
+        return chain;
+    }
+
     /**
      * Render this video.
      *
@@ -149,7 +311,7 @@ public class VideoRenderer implements RenderInfo {
         // Note that it is impossible to also get the interpolation between their latest position
         // and the one in the recording correct as there's no reliable way to tell when the server ticks
         // or when we should be done with the interpolation of the entity
-        Optional<Integer> optionalVideoStartTime = timeline.getValue(TimestampProperty.PROPERTY, 0);
+        Optional<Integer> optionalVideoStartTime = timeline.getValue(TimestampProperty.PROPERTY, getVideoTime());
         if (optionalVideoStartTime.isPresent()) {
             int videoStart = optionalVideoStartTime.get();
 
@@ -166,13 +328,67 @@ public class VideoRenderer implements RenderInfo {
         }
 
 
-        renderingPipeline.run();
+        if (cameraPipelines.isEmpty()) {
+            renderingPipeline.run();
+        } else {
+            List<Pipeline<?, ?>> pipelines = new ArrayList<>();
+            pipelines.add(renderingPipeline);
+            pipelines.addAll(cameraPipelines);
+            Pipeline.runInterleaved(pipelines);
+        }
+        statistics.finish();
+
+        if (settings.getRenderMethod() != RenderSettings.RenderMethod.BLEND) {
+            writeStatisticsReport();
+        }
 
         if (((MinecraftAccessor) mc).getCrashReporter() != null) {
             throw new ReportedException(((MinecraftAccessor) mc).getCrashReporter());
         }
 
-        if (settings.isInjectSphericalMetadata()) {
+        if (ffmpegWriter != null && !hasFailed() && !cancelled) {
+            try {
+                ffmpegWriter.joinSegments();
+            } catch (IOException e) {
+                setFailure(e);
+            }
+        }
+        for (FFmpegWriter writer : additionalFFmpegWriters) {
+            if (hasFailed() || cancelled) {
+                break;
+            }
+            RenderSettings outputSettings = writer.getRenderSettings();
+            try {
+                writer.joinSegments();
+                if (outputSettings.isInjectSphericalMetadata()) {
+                    MetadataInjector.injectMetadata(outputSettings.getRenderMethod(), outputSettings.getOutputFile(),
+                            outputSettings.getTargetVideoWidth(), outputSettings.getTargetVideoHeight(),
+                            outputSettings.getSphericalFovX(), outputSettings.getSphericalFovY());
+                }
+            } catch (IOException e) {
+                setFailure(e);
+            }
+        }
+        if (!hasFailed() && !cancelled) {
+            // Interrupted renders keep their checkpoints, so they can be resumed
+            checkpoints.values().forEach(RenderCheckpoint::delete);
+        }
+
+        for (SpoolWriter writer : additionalSpoolWriters) {
+            if (!hasFailed() && !cancelled) {
+                new SpoolEncoder(writer.getFile(), writer.getRenderSettings()).encodeInBackground(ReplayModRender.instance.getCore(), true);
+            } else {
+                LOGGER.info("Keeping spool file {}, it can be encoded from the render queue", writer.getFile());
+            }
+        }
+        if (spoolWriter != null) {
+            if (!hasFailed() && !cancelled) {
+                // Metadata is injected by the encoder once the video exists
+                new SpoolEncoder(spoolWriter.getFile(), settings).encodeInBackground(ReplayModRender.instance.getCore(), true);
+            } else {
+                LOGGER.info("Keeping spool file {}, it can be encoded from the render queue", spoolWriter.getFile());
+            }
+        } else if (settings.isInjectSphericalMetadata()) {
             MetadataInjector.injectMetadata(settings.getRenderMethod(), settings.getOutputFile(),
                     settings.getTargetVideoWidth(), settings.getTargetVideoHeight(),
                     settings.getSphericalFovX(), settings.getSphericalFovY());
@@ -198,7 +414,9 @@ public class VideoRenderer implements RenderInfo {
         acc.setFramebufferWidth(displayWidth);
         acc.setFramebufferHeight(displayHeight);
 
-        if (!settings.isHighPerformance() || framesDone % fps == 0) {
+        long now = System.nanoTime();
+        if (settings.isHighPerformance() ? framesDone % fps == 0 : now - lastGuiDraw >= GUI_FRAME_NANOS) {
+            lastGuiDraw = now;
             while (drawGui() && paused) {
                 try {
                     //noinspection BusyWait
@@ -232,6 +450,8 @@ public class VideoRenderer implements RenderInfo {
             cameraPathExporter.recordFrame(timer.renderPartialTicks);
         }
 
+        frameTime = getVideoTime();
+        framePartialTicks = timer.renderPartialTicks;
         framesDone++;
         return timer.renderPartialTicks;
     }
@@ -241,6 +461,27 @@ public class VideoRenderer implements RenderInfo {
         return settings;
     }
 
+    @Override
+    public PipelineStatistics getStatistics() {
+        return statistics;
+    }
+
+    private void writeStatisticsReport() {
+        File outputFile = settings.getOutputFile();
+        JsonObject info = new JsonObject();
+        info.addProperty("firstFrame", firstFrame);
+        info.addProperty("framesDone", framesDone);
+        info.addProperty("totalFrames", totalFrames);
+        info.addProperty("cancelled", cancelled);
+        info.add("settings", new Gson().toJsonTree(settings));
+        info.add("bufferPool", ByteBufferPool.toJson());
+        try {
+            statistics.writeReport(outputFile.toPath().resolveSibling(outputFile.getName() + ".stats"), info);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write render statistics:", e);
+        }
+    }
+
     private void setup() {
         timelinePlayer = new TimelinePlayer(replayHandler);
         timelinePlayerFuture = timelinePlayer.start(timeline);
@@ -266,6 +507,14 @@ public class VideoRenderer implements RenderInfo {
 
         fps = settings.getFramesPerSecond();
 
+        for (Timeline cameraTimeline : cameraTimelines) {
+            for (Path path : cameraTimeline.getPaths()) {
+                if (path.isActive()) {
+                    path.updateAll();
+                }
+            }
+        }
+
         long duration = 0;
         for (Path path : timeline.getPaths()) {
             if (!path.isActive()) continue;
@@ -279,7 +528,11 @@ public class VideoRenderer implements RenderInfo {
             }
         }
 
-        totalFrames = (int) (duration * fps / 1000);
+        int endFrame = (int) (duration * fps / 1000);
+        if (settings.getEndFrame() > 0) {
+            endFrame = Math.min(endFrame, settings.getEndFrame());
+        }
+        totalFrames = Math.max(0, endFrame - firstFrame);
 
         if (cameraPathExporter != null) {
             cameraPathExporter.setup(totalFrames);
@@ -314,6 +567,8 @@ public class VideoRenderer implements RenderInfo {
         }
         mc.displayGuiScreen(null);
         forceChunkLoadingHook.uninstall();
+        // Idle buffers are allocated outside of the heap and would otherwise stay around until the next render
+        ByteBufferPool.trim();
 
         if (!hasFailed() && cameraPathExporter != null) {
             try {
@@ -461,7 +716,7 @@ public class VideoRenderer implements RenderInfo {
     }
 
     public int getVideoTime() {
-        return framesDone * 1000 / fps;
+        return (int) ((long) (firstFrame + framesDone) * 1000 / fps);
     }
 
     public void setPaused(boolean paused) {
@@ -476,8 +731,10 @@ public class VideoRenderer implements RenderInfo {
         if (ffmpegWriter != null) {
             ffmpegWriter.abort();
         }
+        additionalFFmpegWriters.forEach(FFmpegWriter::abort);
         this.cancelled = true;
         renderingPipeline.cancel();
+        cameraPipelines.forEach(Pipeline::cancel);
     }
 
     public boolean hasFailed() {
@@ -494,6 +751,51 @@ public class VideoRenderer implements RenderInfo {
         }
     }
 
+    /**
+     * Render info of an additional camera. Instead of advancing the world, it only moves the camera to where it is
+     * on its own path at the time of the frame which is currently being rendered.
+     */
+    private class CameraRenderInfo implements RenderInfo {
+        private final Timeline timeline;
+        private final RenderSettings settings;
+
+        CameraRenderInfo(Timeline timeline, RenderSettings settings) {
+            this.timeline = timeline;
+            this.settings = settings;
+        }
+
+        @Override
+        public ReadableDimension getFrameSize() {
+            return new Dimension(settings.getVideoWidth(), settings.getVideoHeight());
+        }
+
+        @Override
+        public int getFramesDone() {
+            return framesDone;
+        }
+
+        @Override
+        public int getTotalFrames() {
+            return totalFrames;
+        }
+
+        @Override
+        public float updateForNextFrame() {
+            timeline.applyToGame(frameTime, replayHandler);
+            return framePartialTicks;
+        }
+
+        @Override
+        public RenderSettings getRenderSettings() {
+            return settings;
+        }
+
+        @Override
+        public PipelineStatistics getStatistics() {
+            return statistics;
+        }
+    }
+
     private class TimelinePlayer extends AbstractTimelinePlayer {
         public TimelinePlayer(ReplayHandler replayHandler) {
             super(replayHandler);
@@ -1,48 +1,339 @@
 package com.replaymod.render.utils;
 
-import com.google.common.collect.Maps;
-import org.lwjgl.BufferUtils;
+import com.google.gson.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lwjgl.system.MemoryUtil;
 
-import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.ByteOrder;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
+/**
+ * Pool of direct byte buffers shared by all stages of the rendering pipeline.
+ * <p>
+ * Requested sizes are rounded up to one of four size classes per power of two, so buffers can be reused for frames
+ * of similar but not identical size. Each size class is a lock-free free list.
+ * All memory owned by the pool (handed out or idle) is reserved against a fixed budget before it is allocated. Once it
+ * is exhausted, idle buffers of other size classes are freed and if that is not enough, callers of
+ * {@link #allocate(int)} wait for other threads to {@link #release(ByteBuffer)} their buffers.
+ * The only exception are threads whose {@link #setOverBudgetCondition over-budget condition} is met: the pipeline
+ * uses it for the frame which the consumer is waiting for, as the buffers of all later frames may only be released
+ * once that one has been consumed. Waiting for them would never end.
+ * The budget defaults to half of the maximum heap size and can be overwritten in megabytes via the
+ * {@code replaymod.render.bufferpool.budget} system property.
+ * Memory is allocated outside of the heap and freed explicitly, either when evicted or by {@link #trim()}.
+ * <p>
+ * Only buffers handed out by the pool are taken back by {@link #release(ByteBuffer)}, releasing any other buffer
+ * (or the same buffer twice) does nothing.
+ * Buffers which are not owned by the pool (e.g. views into mapped GPU memory) can be {@link #registerView registered}
+ * so that consumers may release them just like any other buffer.
+ * Both kinds of buffers are tracked in concurrent maps keyed by their address, identity is checked on lookup.
+ */
 public class ByteBufferPool {
-    private static Map<Integer, List<SoftReference<ByteBuffer>>> bufferPool = Maps.newHashMap();
+    private static final Logger LOGGER = LogManager.getLogger();
 
-    public static synchronized ByteBuffer allocate(int size) {
-        List<SoftReference<ByteBuffer>> available = bufferPool.get(size);
-        if (available != null) {
-            Iterator<SoftReference<ByteBuffer>> iter = available.iterator();
+    private static final int MIN_EXPONENT = 12;
+    private static final int MIN_CAPACITY = 1 << MIN_EXPONENT;
+    private static final int SUB_CLASSES = 4;
+    private static final int SIZE_CLASSES = (31 - MIN_EXPONENT) * SUB_CLASSES + 1;
+    /**
+     * If we cannot get back under budget for this long, the budget is most likely too small for the current render
+     * settings. Warn about it, so a render which seems to be stuck can be explained.
+     */
+    private static final long WARN_WAIT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentLinkedDeque<ByteBuffer>[] freeLists = new ConcurrentLinkedDeque[SIZE_CLASSES];
+    static {
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    private static final long budget = Long.getLong("replaymod.render.bufferpool.budget",
+            Runtime.getRuntime().maxMemory() / 2 / (1 << 20)) << 20;
+
+    /**
+     * Bytes allocated by the pool, i.e. in use, pooled or about to be allocated. Only exceeds the budget for
+     * allocations made under their thread's over-budget condition.
+     */
+    private static final AtomicLong bytesReserved = new AtomicLong();
+    private static final AtomicLong bytesInUse = new AtomicLong();
+    private static final AtomicLong bytesPooled = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong waitNanos = new AtomicLong();
+    private static final AtomicLong overBudget = new AtomicLong();
+
+    private static final Map<Long, View> views = new ConcurrentHashMap<>();
+    /**
+     * Buffers which are currently handed out, by address.
+     */
+    private static final Map<Long, ByteBuffer> owned = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<BooleanSupplier> overBudgetCondition = new ThreadLocal<>();
+
+    private static final Object budgetLock = new Object();
+    private static int waiting;
+
+    /**
+     * Returns a buffer with at least the given capacity, waiting for other buffers to be released if the budget is
+     * exhausted.
+     *
+     * @throws IllegalStateException if interrupted while waiting, the interrupt flag is kept
+     */
+    public static ByteBuffer allocate(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = freeLists[sizeClass].pollFirst();
+        if (buffer != null) {
+            hits.incrementAndGet();
+            bytesPooled.addAndGet(-buffer.capacity());
+        } else {
+            misses.incrementAndGet();
+            int capacity = classCapacity(sizeClass);
+            reserve(capacity);
+            buffer = MemoryUtil.memAlloc(capacity);
+        }
+        bytesInUse.addAndGet(buffer.capacity());
+        owned.put(MemoryUtil.memAddress0(buffer), buffer);
+        buffer.clear();
+        buffer.limit(size);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    /**
+     * Registers a buffer not owned by this pool. Instead of returning it to the pool, {@link #release(ByteBuffer)}
+     * will call the given callback.
+     *
+     * @return the given buffer
+     */
+    public static ByteBuffer registerView(ByteBuffer view, Runnable onRelease) {
+        views.put(MemoryUtil.memAddress0(view), new View(view, onRelease));
+        return view;
+    }
+
+    /**
+     * @return whether the given buffer has been {@link #registerView registered} and not yet released
+     */
+    public static boolean isView(ByteBuffer buffer) {
+        if (views.isEmpty()) {
+            return false;
+        }
+        View view = views.get(MemoryUtil.memAddress0(buffer));
+        return view != null && view.buffer == buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        long address = MemoryUtil.memAddress0(buffer);
+        if (!views.isEmpty()) {
+            View view = views.get(address);
+            if (view != null && view.buffer == buffer && views.remove(address, view)) {
+                view.onRelease.run();
+                return;
+            }
+        }
+        // ByteBuffer.equals compares contents, so make sure it is the very same buffer before removing it
+        if (owned.get(address) != buffer || !owned.remove(address, buffer)) {
+            return; // Not one of ours or already released
+        }
+        int capacity = buffer.capacity();
+        buffer.clear();
+        bytesInUse.addAndGet(-capacity);
+        bytesPooled.addAndGet(capacity);
+        freeLists[sizeClass(capacity)].addFirst(buffer);
+        synchronized (budgetLock) {
+            if (waiting > 0) {
+                budgetLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Frees all idle buffers, e.g. once rendering has finished.
+     */
+    public static void trim() {
+        evictIdle(Long.MAX_VALUE);
+    }
+
+    /**
+     * Sets the condition under which allocations on the current thread may exceed the budget instead of waiting for
+     * it. It is checked whenever the thread would have to wait.
+     *
+     * @param condition the condition or {@code null} to always wait
+     */
+    public static void setOverBudgetCondition(BooleanSupplier condition) {
+        if (condition != null) {
+            overBudgetCondition.set(condition);
+        } else {
+            overBudgetCondition.remove();
+        }
+    }
+
+    /**
+     * Reserves the given capacity within the budget, evicting idle buffers or waiting for other buffers to be
+     * released if necessary.
+     */
+    private static void reserve(int capacity) {
+        if (capacity > budget) {
+            throw new IllegalStateException("Buffer of " + (capacity >> 20) + "MB exceeds the buffer pool budget of "
+                    + (budget >> 20) + "MB, increase it via -Dreplaymod.render.bufferpool.budget");
+        }
+        if (tryReserve(capacity)) {
+            return;
+        }
+        long start = System.nanoTime();
+        boolean warned = false;
+        BooleanSupplier condition = overBudgetCondition.get();
+        synchronized (budgetLock) {
+            waiting++;
             try {
-                while (iter.hasNext()) {
-                    SoftReference<ByteBuffer> reference = iter.next();
-                    ByteBuffer buffer = reference.get();
-                    iter.remove();
-                    if (buffer != null) {
-                        return buffer;
+                while (true) {
+                    // Idle buffers of other sizes are of no use to us, free them to make room
+                    evictIdle(bytesReserved.get() + capacity - budget);
+                    if (tryReserve(capacity)) {
+                        break;
+                    }
+                    if (condition != null && condition.getAsBoolean()) {
+                        bytesReserved.addAndGet(capacity);
+                        overBudget.incrementAndGet();
+                        break;
+                    }
+                    long waited = System.nanoTime() - start;
+                    if (!warned && waited >= WARN_WAIT_NANOS) {
+                        warned = true;
+                        LOGGER.warn("Waited {}s for the buffer pool budget of {}MB ({}MB in use), it may be too small.",
+                                TimeUnit.NANOSECONDS.toSeconds(waited), budget >> 20, bytesInUse.get() >> 20);
+                    }
+                    try {
+                        // Releases notify us, the timeout covers evictable buffers added to other size classes and
+                        // our condition becoming true
+                        budgetLock.wait(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for the buffer pool budget", e);
                     }
                 }
             } finally {
-                if (!iter.hasNext()) {
-                    bufferPool.remove(size);
-                }
+                waiting--;
+                waitNanos.addAndGet(System.nanoTime() - start);
             }
         }
-        return BufferUtils.createByteBuffer(size);
     }
 
-    public static synchronized void release(ByteBuffer buffer) {
-        buffer.clear();
-        int size = buffer.capacity();
-        List<SoftReference<ByteBuffer>> available = bufferPool.get(size);
-        if (available == null) {
-            available = new LinkedList<>();
-            bufferPool.put(size, available);
+    private static boolean tryReserve(int capacity) {
+        while (true) {
+            long reserved = bytesReserved.get();
+            if (reserved + capacity > budget) {
+                return false;
+            }
+            if (bytesReserved.compareAndSet(reserved, reserved + capacity)) {
+                return true;
+            }
+        }
+    }
+
+    private static void evictIdle(long bytes) {
+        for (int i = freeLists.length - 1; i >= 0 && bytes > 0; i--) {
+            ByteBuffer buffer;
+            while (bytes > 0 && (buffer = freeLists[i].pollLast()) != null) {
+                int capacity = buffer.capacity();
+                bytesPooled.addAndGet(-capacity);
+                MemoryUtil.memFree(buffer);
+                bytesReserved.addAndGet(-capacity);
+                bytes -= capacity;
+            }
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_CAPACITY) {
+            return 0;
+        }
+        // 2^exponent < size <= 2^(exponent + 1), that range is split into SUB_CLASSES equally sized steps
+        int exponent = 31 - Integer.numberOfLeadingZeros(size - 1);
+        int subClass = (size - 1 - (1 << exponent)) >> (exponent - 2);
+        return (exponent - MIN_EXPONENT) * SUB_CLASSES + subClass + 1;
+    }
+
+    private static int classCapacity(int sizeClass) {
+        if (sizeClass == 0) {
+            return MIN_CAPACITY;
+        }
+        int exponent = (sizeClass - 1) / SUB_CLASSES + MIN_EXPONENT;
+        int subClass = (sizeClass - 1) % SUB_CLASSES;
+        long capacity = (1L << exponent) + ((long) (subClass + 1) << (exponent - 2));
+        return (int) Math.min(Integer.MAX_VALUE, capacity);
+    }
+
+    public static long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return bytes currently handed out and not yet released
+     */
+    public static long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    /**
+     * @return bytes held idle in the pool
+     */
+    public static long getBytesPooled() {
+        return bytesPooled.get();
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return total time spent by all threads waiting for the pool to get back under budget
+     */
+    public static long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    /**
+     * @return number of allocations which exceeded the budget because their thread's over-budget condition was met
+     */
+    public static long getOverBudgetAllocations() {
+        return overBudget.get();
+    }
+
+    public static JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("budget", getBudget());
+        json.addProperty("bytesInUse", getBytesInUse());
+        json.addProperty("bytesPooled", getBytesPooled());
+        json.addProperty("hits", getHits());
+        json.addProperty("misses", getMisses());
+        json.addProperty("waitMillis", TimeUnit.NANOSECONDS.toMillis(getWaitNanos()));
+        json.addProperty("overBudgetAllocations", getOverBudgetAllocations());
+        return json;
+    }
+
+    private static class View {
+        private final ByteBuffer buffer;
+        private final Runnable onRelease;
+
+        View(ByteBuffer buffer, Runnable onRelease) {
+            this.buffer = buffer;
+            this.onRelease = onRelease;
         }
-        available.add(new SoftReference<>(buffer));
     }
 }
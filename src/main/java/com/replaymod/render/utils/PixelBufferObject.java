@@ -5,6 +5,7 @@ import com.replaymod.core.ReplayMod;
 import org.apache.logging.log4j.LogManager;
 import org.lwjgl.opengl.ARBVertexBufferObject;
 import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
 
 import java.nio.ByteBuffer;
 
@@ -12,6 +13,12 @@ import static org.lwjgl.opengl.ARBPixelBufferObject.GL_PIXEL_PACK_BUFFER_ARB;
 import static org.lwjgl.opengl.ARBVertexBufferObject.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL21.GL_PIXEL_PACK_BUFFER;
+import static org.lwjgl.opengl.GL30.GL_MAP_READ_BIT;
+import static org.lwjgl.opengl.GL30.GL_MAP_WRITE_BIT;
+import static org.lwjgl.opengl.GL30.glMapBufferRange;
+import static org.lwjgl.opengl.GL44.GL_MAP_COHERENT_BIT;
+import static org.lwjgl.opengl.GL44.GL_MAP_PERSISTENT_BIT;
+import static org.lwjgl.opengl.GL44.glBufferStorage;
 
 public class PixelBufferObject {
     public enum Usage {
@@ -29,24 +36,56 @@ public class PixelBufferObject {
 
     public static final boolean SUPPORTED = GL.getCapabilities().GL_ARB_pixel_buffer_object || GL.getCapabilities().OpenGL15;
     private static final boolean arb = !GL.getCapabilities().OpenGL15;
+    /**
+     * Whether buffers may be created with {@code persistent = true}. Users of those will also need fence syncs.
+     */
+    public static final boolean PERSISTENT_SUPPORTED = SUPPORTED && !arb && checkPersistentSupported(GL.getCapabilities());
+
+    private static boolean checkPersistentSupported(GLCapabilities caps) {
+        return (caps.OpenGL44 || caps.GL_ARB_buffer_storage)
+                && (caps.OpenGL30 || caps.GL_ARB_map_buffer_range)
+                && (caps.OpenGL32 || caps.GL_ARB_sync);
+    }
 
     private static ThreadLocal<Integer> bound = new ThreadLocal<>();
     private static ThreadLocal<Integer> mapped = new ThreadLocal<>();
 
     private final long size;
     private long handle;
+    private ByteBuffer persistentMapping;
 
     public PixelBufferObject(long size, Usage usage) {
+        this(size, usage, false);
+    }
+
+    /**
+     * @param persistent whether to allocate immutable storage which stays mapped for the whole lifetime of this
+     *                   buffer, see {@link #getPersistentMapping()}. Requires {@link #PERSISTENT_SUPPORTED}.
+     */
+    public PixelBufferObject(long size, Usage usage, boolean persistent) {
         if (!SUPPORTED) {
             throw new UnsupportedOperationException("PBOs not supported.");
         }
+        if (persistent && !PERSISTENT_SUPPORTED) {
+            throw new UnsupportedOperationException("Persistently mapped PBOs not supported.");
+        }
 
         this.size = size;
         this.handle = arb ? ARBVertexBufferObject.glGenBuffersARB() : glGenBuffers();
 
         bind();
 
-        if (arb) {
+        if (persistent) {
+            int access = usage == Usage.READ ? GL_MAP_READ_BIT : usage == Usage.DRAW ? GL_MAP_WRITE_BIT : GL_MAP_READ_BIT | GL_MAP_WRITE_BIT;
+            int flags = access | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+            glBufferStorage(GL_PIXEL_PACK_BUFFER, size, flags);
+            persistentMapping = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, size, flags);
+            if (persistentMapping == null) {
+                unbind();
+                delete();
+                throw new IllegalStateException("Failed to map PBO.");
+            }
+        } else if (arb) {
             ARBVertexBufferObject.glBufferDataARB(GL_PIXEL_PACK_BUFFER_ARB, size, usage.arb);
         } else {
             glBufferData(GL_PIXEL_PACK_BUFFER, size, usage.gl15);
@@ -55,6 +94,21 @@ public class PixelBufferObject {
         unbind();
     }
 
+    public boolean isPersistentlyMapped() {
+        return persistentMapping != null;
+    }
+
+    /**
+     * Returns the mapping of a persistent buffer. Its content may only be accessed after all GL commands writing to
+     * the buffer have completed (i.e. after waiting on a fence sync placed after them).
+     */
+    public ByteBuffer getPersistentMapping() {
+        if (persistentMapping == null) {
+            throw new IllegalStateException("Buffer not persistently mapped.");
+        }
+        return persistentMapping;
+    }
+
     private int getHandle() {
         if (handle == -1) {
             throw new IllegalStateException("PBO not allocated.");
@@ -88,6 +142,9 @@ public class PixelBufferObject {
     }
 
     private void checkNotMapped() {
+        if (persistentMapping != null) {
+            throw new IllegalStateException("Buffer is persistently mapped.");
+        }
         if (Objects.equal(getHandle(), mapped.get())) {
             throw new IllegalStateException("Buffer already mapped.");
         }
@@ -147,6 +204,8 @@ public class PixelBufferObject {
 
     public void delete() {
         if (handle != -1) {
+            // Deleting the buffer implicitly unmaps it
+            persistentMapping = null;
             if (arb) {
                 ARBVertexBufferObject.glDeleteBuffersARB(getHandle());
             } else {
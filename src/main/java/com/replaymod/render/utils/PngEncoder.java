@@ -0,0 +1,301 @@
+package com.replaymod.render.utils;
+
+import com.replaymod.core.SettingsRegistry;
+import com.replaymod.render.Setting;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes PNG files straight from frame buffers, without going through an intermediate image.
+ * <p>
+ * Rows are converted one int per pixel, filtered and deflated. Large images are split into stripes of rows which are
+ * deflated in parallel by the {@link TileExecutor}. Every stripe but the last one ends with a sync flush, so the
+ * compressed stripes can simply be concatenated, and the checksum of the whole zlib stream is combined from the
+ * checksums of the stripes.
+ */
+public class PngEncoder {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int COLOR_TYPE_GRAY = 0;
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int STRIPE_ROWS = 128;
+    /**
+     * Images with at least this many pixels are deflated in parallel stripes.
+     */
+    private static final long PARALLEL_PIXELS = 1 << 21;
+    /**
+     * Depth is stored in steps of 1/64 block, so the 16 bit range covers 1024 blocks.
+     */
+    public static final float DEPTH_SCALE = 64;
+
+    public enum Filter {
+        // Order matches the filter types of the PNG specification
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /**
+         * Picks the filter with the smallest sum of absolute differences for each row.
+         */
+        ADAPTIVE,
+    }
+
+    private final int compressionLevel;
+    private final Filter filter;
+
+    public PngEncoder(int compressionLevel, Filter filter) {
+        this.compressionLevel = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+        this.filter = filter;
+    }
+
+    public static PngEncoder fromSettings(SettingsRegistry settings) {
+        Filter filter;
+        try {
+            filter = Filter.valueOf(settings.get(Setting.PNG_FILTER));
+        } catch (IllegalArgumentException e) {
+            filter = Filter.UP;
+        }
+        return new PngEncoder(settings.get(Setting.PNG_COMPRESSION_LEVEL), filter);
+    }
+
+    /**
+     * Writes a BGRA frame.
+     *
+     * @param alpha whether to keep the alpha channel, if {@code false} an RGB image is written
+     */
+    public void writeBgra(ByteBuffer bgra, int width, int height, boolean alpha, File file) throws IOException {
+        IntBuffer pixels = bgra.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        int bytesPerPixel = alpha ? 4 : 3;
+        write(width, height, alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB, 8, bytesPerPixel, file, (y, row) -> {
+            int offset = y * width;
+            int i = 0;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels.get(offset + x);
+                row[i++] = (byte) (pixel >>> 16);
+                row[i++] = (byte) (pixel >>> 8);
+                row[i++] = (byte) pixel;
+                if (alpha) {
+                    row[i++] = (byte) (pixel >>> 24);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes a frame of absolute float depth values as 16 bit grayscale image, see {@link #DEPTH_SCALE}.
+     */
+    public void writeDepth(ByteBuffer depth, int width, int height, File file) throws IOException {
+        FloatBuffer values = depth.duplicate().order(depth.order()).asFloatBuffer();
+        write(width, height, COLOR_TYPE_GRAY, 16, 2, file, (y, row) -> {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                float value = values.get(offset + x) * DEPTH_SCALE;
+                int sample = value >= 0xffff ? 0xffff : value > 0 ? Math.round(value) : 0;
+                row[x * 2] = (byte) (sample >>> 8);
+                row[x * 2 + 1] = (byte) sample;
+            }
+        });
+    }
+
+    private void write(int width, int height, int colorType, int bitDepth, int bytesPerPixel, File file,
+                       RowReader rows) throws IOException {
+        int rowBytes = width * bytesPerPixel;
+        Stripe[] stripes;
+        if ((long) width * height >= PARALLEL_PIXELS) {
+            int count = (height + STRIPE_ROWS - 1) / STRIPE_ROWS;
+            Stripe[] compressed = new Stripe[count];
+            TileExecutor.forEach(count, i -> compressed[i] = compress(rows, rowBytes, bytesPerPixel,
+                    i * STRIPE_ROWS, Math.min(height, (i + 1) * STRIPE_ROWS), i == count - 1));
+            stripes = compressed;
+        } else {
+            stripes = new Stripe[]{compress(rows, rowBytes, bytesPerPixel, 0, height, true)};
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.write(SIGNATURE);
+
+            ByteBuffer header = ByteBuffer.allocate(13);
+            header.putInt(width).putInt(height).put((byte) bitDepth).put((byte) colorType)
+                    .put((byte) 0 /* deflate */).put((byte) 0 /* adaptive filtering */).put((byte) 0 /* no interlace */);
+            writeChunk(out, "IHDR", header.array(), header.array().length);
+
+            int levelFlag = compressionLevel <= 1 ? 0 : compressionLevel <= 5 ? 1 : compressionLevel == 6 ? 2 : 3;
+            int flags = levelFlag << 6;
+            flags += 31 - ((0x78 << 8 | flags) % 31);
+            writeChunk(out, "IDAT", new byte[]{0x78, (byte) flags}, 2);
+
+            long adler = 1;
+            for (Stripe stripe : stripes) {
+                writeChunk(out, "IDAT", stripe.data, stripe.length);
+                adler = combineAdler32(adler, stripe.adler, stripe.rawLength);
+            }
+            writeChunk(out, "IDAT", ByteBuffer.allocate(4).putInt((int) adler).array(), 4);
+
+            writeChunk(out, "IEND", new byte[0], 0);
+        }
+    }
+
+    private Stripe compress(RowReader rows, int rowBytes, int bytesPerPixel, int fromRow, int toRow, boolean last) {
+        byte[] prior = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        if (fromRow > 0) {
+            rows.read(fromRow - 1, prior);
+        }
+        byte[] scratch = filter == Filter.ADAPTIVE ? new byte[rowBytes + 1] : null;
+        int filteredRowBytes = rowBytes + 1;
+        byte[] filtered = new byte[filteredRowBytes * (toRow - fromRow)];
+        for (int y = fromRow; y < toRow; y++) {
+            rows.read(y, current);
+            int offset = (y - fromRow) * filteredRowBytes;
+            if (scratch != null) {
+                long bestScore = Long.MAX_VALUE;
+                for (int type = 0; type < Filter.ADAPTIVE.ordinal(); type++) {
+                    applyFilter(type, current, prior, bytesPerPixel, scratch, 0);
+                    long score = 0;
+                    for (int i = 1; i < scratch.length; i++) {
+                        score += Math.abs(scratch[i]);
+                    }
+                    if (score < bestScore) {
+                        bestScore = score;
+                        System.arraycopy(scratch, 0, filtered, offset, filteredRowBytes);
+                    }
+                }
+            } else {
+                applyFilter(filter.ordinal(), current, prior, bytesPerPixel, filtered, offset);
+            }
+            byte[] swap = prior;
+            prior = current;
+            current = swap;
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(filtered);
+
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            deflater.setInput(filtered);
+            if (last) {
+                deflater.finish();
+            }
+            byte[] out = new byte[Math.max(4096, filtered.length / 2)];
+            int length = 0;
+            while (true) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                // A sync flush is complete once it did not fill up the whole output
+                if (last ? deflater.finished() : length < out.length) {
+                    break;
+                }
+            }
+            return new Stripe(out, length, adler.getValue(), filtered.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void applyFilter(int type, byte[] current, byte[] prior, int bpp, byte[] out, int offset) {
+        out[offset++] = (byte) type;
+        int length = current.length;
+        switch (type) {
+            case 0:
+                System.arraycopy(current, 0, out, offset, length);
+                break;
+            case 1:
+                for (int i = 0; i < length; i++) {
+                    int left = i >= bpp ? current[i - bpp] : 0;
+                    out[offset + i] = (byte) (current[i] - left);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < length; i++) {
+                    out[offset + i] = (byte) (current[i] - prior[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < length; i++) {
+                    int left = i >= bpp ? current[i - bpp] & 0xff : 0;
+                    out[offset + i] = (byte) (current[i] - ((left + (prior[i] & 0xff)) >>> 1));
+                }
+                break;
+            case 4:
+                for (int i = 0; i < length; i++) {
+                    int a = i >= bpp ? current[i - bpp] & 0xff : 0;
+                    int b = prior[i] & 0xff;
+                    int c = i >= bpp ? prior[i - bpp] & 0xff : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    int predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                    out[offset + i] = (byte) (current[i] - predictor);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown filter type " + type);
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Computes the Adler-32 checksum of two concatenated sequences from their individual checksums, like zlib's
+     * {@code adler32_combine}.
+     */
+    private static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - remainder;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    private interface RowReader {
+        /**
+         * Reads the given row in its PNG representation (before filtering).
+         * Called concurrently for different rows.
+         */
+        void read(int y, byte[] row);
+    }
+
+    private static class Stripe {
+        private final byte[] data;
+        private final int length;
+        private final long adler;
+        private final long rawLength;
+
+        Stripe(byte[] data, int length, long adler, long rawLength) {
+            this.data = data;
+            this.length = length;
+            this.adler = adler;
+            this.rawLength = rawLength;
+        }
+    }
+}
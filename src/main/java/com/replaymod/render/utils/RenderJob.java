@@ -1,13 +1,18 @@
 package com.replaymod.render.utils;
 
+import com.google.common.collect.Iterables;
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
+import com.replaymod.pathing.properties.TimestampProperty;
 import com.replaymod.render.RenderSettings;
 import com.replaymod.replaystudio.lib.guava.base.Optional;
 import com.replaymod.replaystudio.pathing.PathingRegistry;
+import com.replaymod.replaystudio.pathing.path.Keyframe;
+import com.replaymod.replaystudio.pathing.path.Path;
 import com.replaymod.replaystudio.pathing.path.Timeline;
 import com.replaymod.replaystudio.pathing.serialize.TimelineSerialization;
 import com.replaymod.replaystudio.replay.ReplayFile;
@@ -16,6 +21,7 @@ import com.replaymod.simplepathing.SPTimeline;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
@@ -47,6 +53,67 @@ public class RenderJob {
         this.settings = settings;
     }
 
+    /**
+     * Whether this job and the given one can be rendered in a single pass over the replay, i.e. whether they produce
+     * frames of the same size at the same replay times, capture them the same way and only differ in their camera path
+     * and output.
+     */
+    public boolean canRenderTogether(RenderJob other) {
+        RenderSettings a = settings;
+        RenderSettings b = other.settings;
+        if (a.getRenderMethod() != b.getRenderMethod() || a.getRenderMethod() == RenderSettings.RenderMethod.BLEND) {
+            return false;
+        }
+        if (a.getVideoWidth() != b.getVideoWidth() || a.getVideoHeight() != b.getVideoHeight()
+                || a.getFramesPerSecond() != b.getFramesPerSecond()) {
+            return false;
+        }
+        // These determine the size of the capture buffers and thereby how many frames the capturer lags behind
+        if (a.getAntiAliasing() != b.getAntiAliasing() || a.isDepthMap() != b.isDepthMap()
+                || a.getPboRingDepth() != b.getPboRingDepth()) {
+            return false;
+        }
+        // Resumed jobs start wherever they were interrupted, which need not be the same frame for all of them
+        if (a.isResumable() || b.isResumable()
+                || a.getStartFrame() != b.getStartFrame() || a.getEndFrame() != b.getEndFrame()) {
+            return false;
+        }
+        return getReplayTimes().equals(other.getReplayTimes());
+    }
+
+    /**
+     * @return the number of frames rendered for this job, taking its frame range into account
+     */
+    public int getFrameCount() {
+        long duration = 0;
+        for (Path path : timeline.getPaths()) {
+            if (!path.isActive()) continue;
+            Collection<Keyframe> keyframes = path.getKeyframes();
+            if (!keyframes.isEmpty()) {
+                duration = Math.max(duration, Iterables.getLast(keyframes).getTime());
+            }
+        }
+        int endFrame = (int) (duration * settings.getFramesPerSecond() / 1000);
+        if (settings.getEndFrame() > 0) {
+            endFrame = Math.min(endFrame, settings.getEndFrame());
+        }
+        return Math.max(0, endFrame - settings.getStartFrame());
+    }
+
+    /**
+     * @return video time and replay time of all time keyframes
+     */
+    private List<String> getReplayTimes() {
+        List<String> times = new ArrayList<>();
+        for (Path path : timeline.getPaths()) {
+            if (!path.isActive()) continue;
+            for (Keyframe keyframe : path.getKeyframes()) {
+                keyframe.getValue(TimestampProperty.PROPERTY).ifPresent(value -> times.add(keyframe.getTime() + ":" + value));
+            }
+        }
+        return times;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -77,10 +144,7 @@ public class RenderJob {
             }
             try (InputStream in = optIn.get();
                  InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
-                List<RenderJob> jobs = new GsonBuilder()
-                        .registerTypeAdapter(Timeline.class, new TimelineTypeAdapter())
-                        .create()
-                        .fromJson(reader, new TypeToken<List<RenderJob>>(){}.getType());
+                List<RenderJob> jobs = createGson().fromJson(reader, new TypeToken<List<RenderJob>>(){}.getType());
                 if (jobs == null) {
                     jobs = new ArrayList<>();
                 }
@@ -93,14 +157,25 @@ public class RenderJob {
         synchronized (replayFile) {
             try (OutputStream out = replayFile.write("renderQueue.json");
                  OutputStreamWriter writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
-                new GsonBuilder()
-                        .registerTypeAdapter(Timeline.class, new TimelineTypeAdapter())
-                        .create()
-                        .toJson(renderQueue, writer);
+                createGson().toJson(renderQueue, writer);
             }
         }
     }
 
+    public static String toJson(RenderJob job) {
+        return createGson().toJson(job);
+    }
+
+    public static RenderJob fromJson(String json) {
+        return createGson().fromJson(json, RenderJob.class);
+    }
+
+    private static Gson createGson() {
+        return new GsonBuilder()
+                .registerTypeAdapter(Timeline.class, new TimelineTypeAdapter())
+                .create();
+    }
+
     private static class TimelineTypeAdapter extends TypeAdapter<Timeline> {
 
         private final TimelineSerialization serialization;
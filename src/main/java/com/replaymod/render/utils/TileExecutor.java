@@ -0,0 +1,110 @@
+package com.replaymod.render.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+/**
+ * Splits the work on a single frame into tiles (e.g. groups of rows) which are run in parallel.
+ * <p>
+ * Tiles are run by the calling thread and by a small dedicated pool of helper threads, not the common fork-join pool,
+ * so they cannot delay unrelated work. The calling thread takes part in the work and never waits for helpers which
+ * have not yet started. Helpers are only queued if there is room for them, so when all helpers are busy (e.g. because
+ * every processing thread is working on its own frame), the calling thread simply runs all tiles itself.
+ * The number of helpers defaults to the number of processors and can be overwritten via the
+ * {@code replaymod.render.tilethreads} system property.
+ */
+public class TileExecutor {
+    private static final int THREADS = Math.max(0, Integer.getInteger("replaymod.render.tilethreads",
+            Runtime.getRuntime().availableProcessors()));
+
+    private static final ThreadPoolExecutor helpers;
+    static {
+        AtomicInteger threadCounter = new AtomicInteger();
+        helpers = new ThreadPoolExecutor(Math.max(1, THREADS), Math.max(1, THREADS), 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, THREADS)), runnable -> {
+            Thread thread = new Thread(runnable, "replaymod-tile-helper-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        helpers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the given task for every tile from {@code 0} (inclusive) to {@code tiles} (exclusive) and waits for all of
+     * them to complete. Tasks for different tiles may run concurrently.
+     *
+     * @throws RuntimeException or {@link Error} thrown by any of the tasks, remaining tiles are skipped
+     */
+    public static void forEach(int tiles, IntConsumer task) {
+        if (tiles <= 1 || THREADS == 0) {
+            for (int tile = 0; tile < tiles; tile++) {
+                task.accept(tile);
+            }
+            return;
+        }
+
+        Tiles work = new Tiles(tiles, task);
+        for (int i = Math.min(tiles - 1, THREADS); i > 0; i--) {
+            helpers.execute(work);
+        }
+        work.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                // Only waits for tiles which helpers are still working on
+                work.done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable failure = work.failure.get();
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    private static class Tiles implements Runnable {
+        private final int tiles;
+        private final IntConsumer task;
+        private final AtomicInteger next = new AtomicInteger();
+        private final CountDownLatch done;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Tiles(int tiles, IntConsumer task) {
+            this.tiles = tiles;
+            this.task = task;
+            this.done = new CountDownLatch(tiles);
+        }
+
+        @Override
+        public void run() {
+            int tile;
+            while ((tile = next.getAndIncrement()) < tiles) {
+                try {
+                    if (failure.get() == null) {
+                        task.accept(tile);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+    }
+}
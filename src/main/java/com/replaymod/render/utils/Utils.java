@@ -1,6 +1,11 @@
 package com.replaymod.render.utils;
 
+import com.replaymod.render.frame.BitmapFrame;
+import com.replaymod.render.frame.CubicOpenGlFrame;
+import com.replaymod.render.frame.ODSOpenGlFrame;
 import com.replaymod.render.frame.OpenGlFrame;
+import com.replaymod.render.frame.StereoscopicOpenGlFrame;
+import com.replaymod.render.rendering.Frame;
 
 import java.nio.ByteBuffer;
 
@@ -42,4 +47,30 @@ public class Utils {
         }
         to.rewind();
     }
+
+    /**
+     * Returns all buffers of the given frame to the {@link ByteBufferPool}, for frames which are dropped without
+     * being processed or consumed.
+     */
+    public static void release(Frame frame) {
+        if (frame instanceof BitmapFrame) {
+            ByteBufferPool.release(((BitmapFrame) frame).getByteBuffer());
+        } else if (frame instanceof OpenGlFrame) {
+            ByteBufferPool.release(((OpenGlFrame) frame).getByteBuffer());
+        } else if (frame instanceof StereoscopicOpenGlFrame) {
+            release(((StereoscopicOpenGlFrame) frame).getLeft());
+            release(((StereoscopicOpenGlFrame) frame).getRight());
+        } else if (frame instanceof CubicOpenGlFrame) {
+            CubicOpenGlFrame cubic = (CubicOpenGlFrame) frame;
+            release(cubic.getLeft());
+            release(cubic.getRight());
+            release(cubic.getFront());
+            release(cubic.getBack());
+            release(cubic.getTop());
+            release(cubic.getBottom());
+        } else if (frame instanceof ODSOpenGlFrame) {
+            release(((ODSOpenGlFrame) frame).getLeft());
+            release(((ODSOpenGlFrame) frame).getRight());
+        }
+    }
 }
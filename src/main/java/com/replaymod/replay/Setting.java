@@ -9,6 +9,7 @@ import java.util.stream.Collectors;
 public final class Setting<T> extends SettingsRegistry.SettingKeys<T> {
     public static final Setting<Boolean> SHOW_CHAT = make("showChat", "showchat", true);
     public static final Setting<Boolean> SHOW_SERVER_IPS = new Setting<>("showServerIPs", true);
+    public static final Setting<Integer> SEEK_SNAPSHOT_INTERVAL = new Setting<>("seekSnapshotInterval", 60);
     public static final SettingsRegistry.MultipleChoiceSettingKeys<String> CAMERA =
             new SettingsRegistry.MultipleChoiceSettingKeys<>(
                     "replay", "camera", "replaymod.gui.settings.camera", "replaymod.camera.classic");
@@ -24,6 +24,7 @@ import com.replaymod.gui.popup.GuiYesNoPopup;
 import com.replaymod.gui.utils.Colors;
 import com.replaymod.gui.utils.Consumer;
 import com.replaymod.gui.versions.Image;
+import com.replaymod.render.farm.RenderFarmCoordinator;
 import com.replaymod.render.gui.GuiRenderQueue;
 import com.replaymod.render.rendering.VideoRenderer;
 import com.replaymod.render.utils.RenderJob;
@@ -86,6 +87,20 @@ public class GuiReplayViewer extends GuiScreen {
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+            } else if (mod.getCore().getSettingsRegistry().get(com.replaymod.render.Setting.RENDER_FARM_PORT) > 0) {
+                // Render on the farm instead, this client only hands out the work
+                List<Pair<File, List<RenderJob>>> replays = selected.stream()
+                        .filter(it -> !it.renderQueue.isEmpty())
+                        .map(it -> new Pair<>(it.file, it.renderQueue))
+                        .collect(Collectors.toList());
+                new RenderFarmCoordinator(replays,
+                        mod.getCore().getSettingsRegistry().get(com.replaymod.render.Setting.RENDER_FARM_BIND_ADDRESS),
+                        mod.getCore().getSettingsRegistry().get(com.replaymod.render.Setting.RENDER_FARM_PORT),
+                        mod.getCore().getSettingsRegistry().get(com.replaymod.render.Setting.RENDER_FARM_TOKEN),
+                        mod.getCore().getSettingsRegistry().get(com.replaymod.render.Setting.RENDER_FARM_RANGES)
+                ).startInBackground(mod.getCore());
+                loading = false;
+                updateButtons();
             } else {
                 Iterator<Pair<File, List<RenderJob>>> replays = selected.stream()
                         .filter(it -> !it.renderQueue.isEmpty())
@@ -6,6 +6,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.io.Files;
 import com.replaymod.core.MinecraftMethodAccessor;
 import com.replaymod.core.ReplayMod;
+import com.replaymod.core.events.PreRenderCallback;
 import com.replaymod.core.utils.Restrictions;
 import com.replaymod.core.utils.WrappedTimer;
 import com.replaymod.gui.utils.EventRegistrations;
@@ -20,6 +21,9 @@ import com.replaymod.replay.camera.CameraEntity;
 import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.replay.ReplayFile;
 import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandler.Sharable;
@@ -40,6 +44,7 @@ import net.minecraft.network.ProtocolType;
 import net.minecraft.network.login.server.SLoginSuccessPacket;
 import net.minecraft.network.play.server.*;
 import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.text.ITextComponent;
 import net.minecraft.util.text.TranslationTextComponent;
@@ -57,7 +62,9 @@ import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.replaymod.core.versions.MCVer.*;
 import static com.replaymod.replaystudio.util.Utils.readInt;
@@ -136,6 +143,12 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
      */
     protected ReplayInputStream replayIn;
 
+    /**
+     * Reads and decodes packets from {@link #replayIn} ahead of time, {@code null} until the first packet is needed.
+     * All packets are taken from it rather than being read from {@link #replayIn} directly.
+     */
+    private volatile PacketReadAhead readAhead;
+
     /**
      * The next packet that should be sent.
      * This is required as some actions such as jumping to a specified timestamp have to peek at the next packet.
@@ -194,6 +207,20 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
 
     private final EventHandler events = new EventHandler();
 
+    /**
+     * Main thread work requested by the packets sent since it has last been done, see {@link #doMainThreadWork()}.
+     */
+    private final AtomicBoolean pendingDeadEntityRemoval = new AtomicBoolean();
+    /**
+     * Chunks which have been sent but not yet been lit, light updates are done for all of them in one go.
+     */
+    private final LongSet pendingLightChunks = new LongOpenHashSet();
+
+    /**
+     * Snapshots from which the replay is restarted when jumping backwards, {@code null} if disabled.
+     */
+    private final SeekSnapshotIndex seekSnapshots;
+
     /**
      * Create a new replay sender.
      *
@@ -207,6 +234,14 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
         this.asyncMode = asyncMode;
         this.replayLength = file.getMetaData().getDuration();
 
+        int snapshotInterval = ReplayModReplay.instance.getCore().getSettingsRegistry().get(Setting.SEEK_SNAPSHOT_INTERVAL);
+        if (snapshotInterval > 0 && !ReplayMod.isMinimalMode()) {
+            seekSnapshots = new SeekSnapshotIndex(file, snapshotInterval * 1000);
+            seekSnapshots.load();
+        } else {
+            seekSnapshots = null;
+        }
+
         events.register();
 
         if (asyncMode) {
@@ -278,6 +313,13 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
         }
         terminate = true;
         syncSender.shutdown();
+        if (seekSnapshots != null) {
+            seekSnapshots.cancel();
+        }
+        PacketReadAhead readAhead = this.readAhead;
+        if (readAhead != null) {
+            readAhead.close();
+        }
         events.unregister();
         try {
             channelInactive(ctx);
@@ -291,6 +333,14 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
     private class EventHandler extends EventRegistrations {
         {
             on(PreTickCallback.EVENT, this::onWorldTick);
+            on(PreRenderCallback.EVENT, this::onPreRender);
+        }
+
+        private void onPreRender() {
+            // Light updates during a jump would be wasted on chunks which are unloaded again before it is done
+            if (!isHurrying()) {
+                doMainThreadWork();
+            }
         }
 
         private void onWorldTick() {
@@ -323,41 +373,48 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
         }
 
         if (msg instanceof byte[]) {
-            try {
-                IPacket deserialized = deserializePacket((byte[]) msg);
+            IPacket deserialized = deserializePacket((byte[]) msg, loginPhase);
+            if (deserialized == null) {
+                System.out.println("Failed to deserialize a packet to send. loginPhase: " + loginPhase);
+                return;
+            }
+            dispatch(ctx, deserialized);
+        }
+    }
 
-                if (deserialized == null) {
-                    System.out.println("Failed to deserialize a packet to send. loginPhase: " + loginPhase);
-                    return;
-                }
+    /**
+     * Processes a packet from the replay and, unless it is dropped, passes it on to minecraft.
+     *
+     * @param deserialized The packet, as read from the replay
+     */
+    private void dispatch(ChannelHandlerContext ctx, IPacket deserialized) throws Exception {
+        // When in async mode and the replay sender shut down, then don't send packets
+        if (terminate && asyncMode) {
+            return;
+        }
 
-                IPacket processed = processPacket(deserialized);
+        try {
+            IPacket processed = processPacket(deserialized);
 
-                if (processed != null) {
-                    // System.out.println("Processing a packet. Class: " + processed.getClass().toString());
-                    super.channelRead(ctx, processed);
+            if (processed != null) {
+                // System.out.println("Processing a packet. Class: " + processed.getClass().toString());
+                super.channelRead(ctx, processed);
+            }
+            maybeRemoveDeadEntities(processed);
+            if (processed instanceof SChunkDataPacket) {
+                SChunkDataPacket packet = (SChunkDataPacket) processed;
+                synchronized (pendingLightChunks) {
+                    pendingLightChunks.add(ChunkPos.asLong(packet.getChunkX(), packet.getChunkZ()));
                 }
-                maybeRemoveDeadEntities(processed);
-                if (processed instanceof SChunkDataPacket) {
-                    Runnable doLightUpdates = () -> {
-                        ClientWorld world = mc.world;
-                        if (world!= null) {
-                            WorldLightManager provider = world.getChunkProvider().getLightManager();
-                            while (provider.hasLightWork()) {
-                                provider.tick(Integer.MAX_VALUE, true, true);
-                            }
-                        }
-                    };
-                    if (mc.isOnExecutionThread()) {
-                        doLightUpdates.run();
-                    } else {
-                        mc.enqueue(doLightUpdates);
-                    }
+            } else if (processed instanceof SUnloadChunkPacket) {
+                SUnloadChunkPacket packet = (SUnloadChunkPacket) processed;
+                synchronized (pendingLightChunks) {
+                    pendingLightChunks.remove(ChunkPos.asLong(packet.getX(), packet.getZ()));
                 }
-            } catch (Exception e) {
-                // We'd rather not have a failure parsing one packet screw up the whole replay process
-                e.printStackTrace();
             }
+        } catch (Exception e) {
+            // We'd rather not have a failure parsing one packet screw up the whole replay process
+            e.printStackTrace();
         }
     }
     // If we do not give minecraft time to tick, there will be dead entity artifacts left in the world
@@ -378,18 +435,53 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
             return; // don't want to do it too often, only when there's likely to be a dead entity
         }
 
-        mc.enqueue(() -> {
-            ClientWorld world = mc.world;
-            if (world != null) {
-                removeDeadEntities(world);
-            }
-        });
+        pendingDeadEntityRemoval.set(true);
     }
     private void removeDeadEntities(ClientWorld world) {
         world.removeAllEntities();
     }
 
-    private IPacket deserializePacket(byte[] bytes) {
+    /**
+     * Does all pending main thread work at once, no matter how many packets requested it.
+     * In sync mode this is done by {@link #sendPacketsTill(int)} after all packets have been sent, otherwise right
+     * before the next frame is rendered, unless we are still jumping.
+     */
+    private void doMainThreadWork() {
+        boolean removeDeadEntities = pendingDeadEntityRemoval.getAndSet(false);
+        ClientWorld world = mc.world;
+        if (world == null) {
+            synchronized (pendingLightChunks) {
+                pendingLightChunks.clear();
+            }
+            return;
+        }
+        if (removeDeadEntities) {
+            removeDeadEntities(world);
+        }
+
+        // Only chunks which minecraft has already loaded are lit, their packets may still be waiting in its task
+        // queue. Chunks which have been unloaded again in the meantime are no longer pending at all.
+        boolean updateLight = false;
+        AbstractChunkProvider chunkProvider = world.getChunkProvider();
+        synchronized (pendingLightChunks) {
+            LongIterator iterator = pendingLightChunks.iterator();
+            while (iterator.hasNext()) {
+                long pos = iterator.nextLong();
+                if (chunkProvider.getChunkNow(ChunkPos.getX(pos), ChunkPos.getZ(pos)) != null) {
+                    iterator.remove();
+                    updateLight = true;
+                }
+            }
+        }
+        if (updateLight) {
+            WorldLightManager provider = chunkProvider.getLightManager();
+            while (provider.hasLightWork()) {
+                provider.tick(Integer.MAX_VALUE, true, true);
+            }
+        }
+    }
+
+    private static IPacket deserializePacket(byte[] bytes, boolean loginPhase) {
         try {
             ByteBuf bb = Unpooled.wrappedBuffer(bytes);
             PacketBuffer pb = new PacketBuffer(bb);
@@ -597,8 +689,11 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
         if (asyncMode) {
             return processPacketAsync(p);
         } else {
-            IPacket fp = p;
-            mc.enqueue(() -> processPacketSync(fp));
+            if (p instanceof SUnloadChunkPacket) {
+                // Needs to happen before minecraft processes the packet, so it is enqueued right before it
+                IPacket fp = p;
+                mc.enqueue(() -> processPacketSync(fp));
+            }
             return p;
         }
     }
@@ -694,9 +789,7 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
                 REPLAY_LOOP:
                 while (!terminate) {
                     synchronized (FullReplaySender.this) {
-                        if (replayIn == null) {
-                            replayIn = replayFile.getPacketData(getPacketTypeRegistry(true));
-                        }
+                        openReplayIn();
                         // Packet loop
                         while (true) {
                             try {
@@ -722,7 +815,7 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
 
                                 // Read the next packet if we don't already have one
                                 if (nextPacket == null) {
-                                    nextPacket = new PacketData(replayIn, loginPhase);
+                                    nextPacket = readAhead.next();
                                 }
 
                                 int nextTimeStamp = nextPacket.timestamp;
@@ -740,7 +833,7 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
                                 }
 
                                 // Process packet
-                                channelRead(ctx, nextPacket.bytes);
+                                dispatchPacket(nextPacket);
                                 nextPacket = null;
 
                                 lastTimeStamp = nextTimeStamp;
@@ -781,11 +874,11 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
                         startFromBeginning = false;
                         nextPacket = null;
                         realTimeStart = System.currentTimeMillis();
-                        if (replayIn != null) {
-                            replayIn.close();
-                            replayIn = null;
-                        }
+                        closeReplayIn();
                         ReplayMod.instance.runSync(replayHandler::restartedReplay);
+                        if (desiredTimeStamp != -1) {
+                            restoreSnapshot((int) desiredTimeStamp);
+                        }
                     }
                 }
             } catch (Exception e) {
@@ -824,7 +917,8 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
     /**
      * Jumps to the specified timestamp when in async mode by rushing all packets until one with a timestamp greater
      * than the specified timestamp is found.
-     * If the timestamp has already passed, this causes the replay to restart and then rush all packets.
+     * If the timestamp has already passed, this causes the replay to restart from the latest seek snapshot before it
+     * (or the very beginning if there is none) and then rush all packets.
      *
      * @param millis Timestamp in milliseconds since the start of the replay
      */
@@ -855,9 +949,12 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
     //        Synchronous packet processing                //
     /////////////////////////////////////////////////////////
 
+    private static final long MAX_TASK_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
     /**
      * Sends all packets until the specified timestamp is reached (inclusive).
-     * If the timestamp is smaller than the last packet sent, the replay is restarted from the beginning.
+     * If the timestamp is smaller than the last packet sent, the replay is restarted from the latest seek snapshot
+     * before it (or the very beginning if there is none).
      *
      * @param timestamp The timestamp in milliseconds since the beginning of this replay
      */
@@ -869,12 +966,14 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
         Preconditions.checkState(!asyncMode, "This method cannot be used in async mode. Use jumpToTime(int) instead.");
 
         // Submit our target to the sender thread and track its progress
+        Thread mainThread = Thread.currentThread();
         AtomicBoolean doneSending = new AtomicBoolean();
         syncSender.submit(() -> {
             try {
                 doSendPacketsTill(timestamp);
             } finally {
                 doneSending.set(true);
+                LockSupport.unpark(mainThread);
             }
         });
 
@@ -882,18 +981,17 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
         while (!doneSending.get()) {
             executeTaskQueue();
 
-            // Wait until the sender thread has made progress
-            try {
-                //noinspection BusyWait
-                Thread.sleep(0, 100_000);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+            // Wait until the sender thread is done. Minecraft also wakes us up whenever it enqueues a task, the
+            // timeout is only for tasks of our own scheduler.
+            LockSupport.parkNanos(this, MAX_TASK_DELAY_NANOS);
+            if (Thread.currentThread().isInterrupted()) {
                 return;
             }
         }
 
-        // Everything has been sent, drain the queue one last time
+        // Everything has been sent, drain the queue one last time and then do the work collected while sending
         executeTaskQueue();
+        doMainThreadWork();
     }
     private void executeTaskQueue() {
         //#if MC>=11400
@@ -913,19 +1011,15 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
                 if (timestamp < lastTimeStamp) { // Restart the replay if we need to go backwards in time
                     hasWorldLoaded = false;
                     lastTimeStamp = 0;
-                    if (replayIn != null) {
-                        replayIn.close();
-                        replayIn = null;
-                    }
+                    closeReplayIn();
                     loginPhase = true;
                     startFromBeginning = false;
                     nextPacket = null;
                     ReplayMod.instance.runSync(replayHandler::restartedReplay);
+                    restoreSnapshot(timestamp);
                 }
 
-                if (replayIn == null) {
-                    replayIn = replayFile.getPacketData(getPacketTypeRegistry(true));
-                }
+                openReplayIn();
 
                 while (true) { // Send packets
                     try {
@@ -936,7 +1030,7 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
                             nextPacket = null;
                         } else {
                             // Otherwise read one from the input stream
-                            pd = new PacketData(replayIn, loginPhase);
+                            pd = readAhead.next();
                         }
 
                         int nextTimeStamp = pd.timestamp;
@@ -947,11 +1041,12 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
                         }
 
                         // Process packet
-                        channelRead(ctx, pd.bytes);
+                        dispatchPacket(pd);
                     } catch (EOFException eof) {
                         // Shit! We hit the end before finishing our job! What shall we do now?
                         // well, let's just pretend we're done...
                         replayIn = null;
+                        readAhead = null;
                         break;
                     } catch (IOException e) {
                         e.printStackTrace();
@@ -967,6 +1062,76 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
         }
     }
 
+    /**
+     * Restores the latest seek snapshot at or before the given time after the replay has been restarted.
+     * The snapshot is sent instead of all packets it includes, those are skipped in a newly opened replay input
+     * stream. Does nothing if there is no such snapshot, snapshots are only built once this is first called.
+     */
+    private void restoreSnapshot(int timestamp) throws Exception {
+        if (seekSnapshots != null) {
+            seekSnapshots.startBuilding();
+        }
+        SeekSnapshotIndex.Snapshot snapshot = seekSnapshots != null ? seekSnapshots.getLatest(timestamp) : null;
+        if (snapshot == null) {
+            return;
+        }
+        List<byte[]> packets;
+        try {
+            packets = seekSnapshots.read(snapshot);
+            replayIn = replayFile.getPacketData(getPacketTypeRegistry(true));
+            for (int i = 0; i < snapshot.getPacketIndex(); i++) {
+                com.replaymod.replaystudio.PacketData data = replayIn.readPacket();
+                if (data == null) {
+                    throw new EOFException("Replay ended before the end of the seek snapshot at " + snapshot.getTime());
+                }
+                data.release();
+            }
+        } catch (IOException e) {
+            ReplayModReplay.LOGGER.warn("Failed to restore seek snapshot, restarting from the beginning:", e);
+            closeReplayIn();
+            return;
+        }
+
+        for (byte[] bytes : packets) {
+            channelRead(ctx, bytes);
+        }
+        lastTimeStamp = snapshot.getTime();
+    }
+
+    /**
+     * Opens the replay input stream if it isn't already and starts reading ahead from it.
+     */
+    private void openReplayIn() throws IOException {
+        if (replayIn == null) {
+            replayIn = replayFile.getPacketData(getPacketTypeRegistry(true));
+        }
+        if (readAhead == null) {
+            readAhead = new PacketReadAhead(replayIn, loginPhase);
+        }
+    }
+
+    /**
+     * Stops reading ahead and closes the replay input stream, packets which have been read ahead are discarded.
+     */
+    private void closeReplayIn() throws IOException {
+        if (readAhead != null) {
+            readAhead.close();
+            readAhead = null;
+        }
+        if (replayIn != null) {
+            replayIn.close();
+            replayIn = null;
+        }
+    }
+
+    private void dispatchPacket(PacketData pd) throws Exception {
+        if (pd.packet == null) {
+            ReplayModReplay.LOGGER.warn("Failed to deserialize a packet to send. loginPhase: {}", loginPhase);
+            return;
+        }
+        dispatch(ctx, pd.packet);
+    }
+
     protected IPacket processPacketSync(IPacket p) {
         if (p instanceof SUnloadChunkPacket) {
             SUnloadChunkPacket packet = (SUnloadChunkPacket) p;
@@ -1025,14 +1190,15 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
         return p; // During synchronous playback everything is sent normally
     }
 
-    private static final class PacketData {
-        private static final com.github.steveice10.netty.buffer.ByteBuf byteBuf = com.github.steveice10.netty.buffer.Unpooled.buffer();
-        private static final NetOutput netOutput = new ByteBufNetOutput(byteBuf);
-
+    static final class PacketData {
         private final int timestamp;
-        private final byte[] bytes;
+        /**
+         * The decoded packet, {@code null} if it could not be decoded.
+         */
+        final IPacket packet;
 
-        PacketData(ReplayInputStream in, boolean loginPhase) throws IOException {
+        PacketData(ReplayInputStream in, boolean loginPhase, PacketDecoder decoder) throws IOException {
+            ProtocolType state = loginPhase ? ProtocolType.LOGIN : ProtocolType.PLAY;
             if (ReplayMod.isMinimalMode()) {
                 // Minimal mode, we can only read our exact protocol version and cannot use ReplayStudio
                 timestamp = readInt(in);
@@ -1040,34 +1206,52 @@ public class FullReplaySender extends ChannelDuplexHandler implements ReplaySend
                 if (timestamp == -1 || length == -1) {
                     throw new EOFException();
                 }
-                bytes = new byte[length];
-                IOUtils.readFully(in, bytes);
+                packet = decoder.read(state, in, length);
             } else {
                 com.replaymod.replaystudio.PacketData data = in.readPacket();
                 if (data == null) {
                     throw new EOFException();
                 }
                 timestamp = (int) data.getTime();
+                // We read packets with ReplayStudio rather than directly as NMS packets, so it can apply
+                // ViaVersion (and potentially other magic) to them, and then decode its result.
                 com.replaymod.replaystudio.protocol.Packet packet = data.getPacket();
-                // We need to re-encode ReplayStudio packets, so we can later decode them as NMS packets
-                // The main reason we aren't reading them as NMS packets is that we want ReplayStudio to be able
-                // to apply ViaVersion (and potentially other magic) to it.
-                synchronized (byteBuf) {
-                    byteBuf.markReaderIndex(); // Mark the current reader and writer index (should be at start)
-                    byteBuf.markWriterIndex();
-
-                    netOutput.writeVarInt(packet.getId());
-                    int idSize = byteBuf.readableBytes();
-                    int contentSize = packet.getBuf().readableBytes();
-                    bytes = new byte[idSize + contentSize]; // Create bytes array of sufficient size
-                    byteBuf.readBytes(bytes, 0, idSize);
-                    packet.getBuf().readBytes(bytes, idSize, contentSize);
-
-                    byteBuf.resetReaderIndex(); // Reset reader & writer index for next use
-                    byteBuf.resetWriterIndex();
+                IPacket decoded;
+                try {
+                    decoded = decoder.decode(state, packet);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    decoded = null;
                 }
+                this.packet = decoded;
                 packet.getBuf().release();
             }
         }
     }
+
+    private static final com.github.steveice10.netty.buffer.ByteBuf encodeBuf = com.github.steveice10.netty.buffer.Unpooled.buffer();
+    private static final NetOutput encodeOutput = new ByteBufNetOutput(encodeBuf);
+
+    /**
+     * Re-encodes a ReplayStudio packet, so it can later be decoded as NMS packet by {@link #channelRead}.
+     */
+    static byte[] encodePacket(com.replaymod.replaystudio.protocol.Packet packet) throws IOException {
+        com.github.steveice10.netty.buffer.ByteBuf content = packet.getBuf();
+        synchronized (encodeBuf) {
+            com.github.steveice10.netty.buffer.ByteBuf byteBuf = encodeBuf;
+            byteBuf.markReaderIndex(); // Mark the current reader and writer index (should be at start)
+            byteBuf.markWriterIndex();
+
+            encodeOutput.writeVarInt(packet.getId());
+            int idSize = byteBuf.readableBytes();
+            int contentSize = content.readableBytes();
+            byte[] bytes = new byte[idSize + contentSize]; // Create bytes array of sufficient size
+            byteBuf.readBytes(bytes, 0, idSize);
+            content.getBytes(content.readerIndex(), bytes, idSize, contentSize);
+
+            byteBuf.resetReaderIndex(); // Reset reader & writer index for next use
+            byteBuf.resetWriterIndex();
+            return bytes;
+        }
+    }
 }
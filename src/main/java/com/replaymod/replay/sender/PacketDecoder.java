@@ -0,0 +1,76 @@
+package com.replaymod.replay.sender;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import net.minecraft.network.IPacket;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.network.PacketDirection;
+import net.minecraft.network.ProtocolType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes packets as minecraft packets through a single pooled buffer, which is reused for every packet instead of
+ * allocating a new array and wrappers each time.
+ * Not thread-safe, every thread decoding packets needs its own decoder. Must be {@link #release() released} once
+ * no longer needed.
+ */
+class PacketDecoder {
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private final ByteBuf buffer = PooledByteBufAllocator.DEFAULT.heapBuffer(INITIAL_CAPACITY);
+    private final PacketBuffer packetBuffer = new PacketBuffer(buffer);
+
+    /**
+     * Decodes the content of a ReplayStudio packet. The packet itself is left untouched.
+     *
+     * @return The decoded packet or {@code null} if its id is unknown in the given state
+     */
+    IPacket<?> decode(ProtocolType state, com.replaymod.replaystudio.protocol.Packet packet) throws IOException {
+        IPacket<?> mcPacket = state.getPacket(PacketDirection.CLIENTBOUND, packet.getId());
+        if (mcPacket == null) {
+            return null;
+        }
+        com.github.steveice10.netty.buffer.ByteBuf content = packet.getBuf();
+        int size = content.readableBytes();
+        buffer.clear();
+        if (content.hasArray()) {
+            buffer.writeBytes(content.array(), content.arrayOffset() + content.readerIndex(), size);
+        } else {
+            buffer.writeBytes(content.nioBuffer(content.readerIndex(), size));
+        }
+        mcPacket.readPacketData(packetBuffer);
+        return mcPacket;
+    }
+
+    /**
+     * Reads a raw packet, its id followed by its content, from the given stream.
+     * Fails only if the packet cannot be read completely, an undecodable packet is reported as {@code null}.
+     *
+     * @return The decoded packet or {@code null} if it could not be decoded
+     */
+    IPacket<?> read(ProtocolType state, InputStream in, int length) throws IOException {
+        buffer.clear();
+        while (buffer.writerIndex() < length) {
+            if (buffer.writeBytes(in, length - buffer.writerIndex()) < 0) {
+                throw new EOFException();
+            }
+        }
+        try {
+            IPacket<?> mcPacket = state.getPacket(PacketDirection.CLIENTBOUND, packetBuffer.readVarInt());
+            if (mcPacket != null) {
+                mcPacket.readPacketData(packetBuffer);
+            }
+            return mcPacket;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    void release() {
+        buffer.release();
+    }
+}
@@ -0,0 +1,124 @@
+package com.replaymod.replay.sender;
+
+import com.replaymod.replay.sender.FullReplaySender.PacketData;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import net.minecraft.network.login.server.SLoginSuccessPacket;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads, translates and decodes packets of a replay on a separate thread ahead of the {@link FullReplaySender}, so
+ * the sender only has to dispatch them.
+ * At most {@link #CAPACITY} packets are read ahead, reading continues once the sender has taken some of them.
+ */
+class PacketReadAhead implements Closeable {
+    private static final int CAPACITY = 512;
+    /**
+     * Put into the queue once the end of the replay has been reached.
+     */
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param in         The stream to read from, must not be read from by anyone else until this has been closed
+     * @param loginPhase Whether the next packet in the stream is from the login phase
+     */
+    PacketReadAhead(ReplayInputStream in, boolean loginPhase) {
+        thread = new Thread(() -> run(in, loginPhase), "replaymod-packet-reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run(ReplayInputStream in, boolean loginPhase) {
+        PacketDecoder decoder = new PacketDecoder();
+        try {
+            run(in, loginPhase, decoder);
+        } finally {
+            decoder.release();
+        }
+    }
+
+    private void run(ReplayInputStream in, boolean loginPhase, PacketDecoder decoder) {
+        // Whatever happens, the sender has to be told that nothing more is coming or it would wait forever
+        Object end = END;
+        try {
+            while (!closed) {
+                PacketData packet = new PacketData(in, loginPhase, decoder);
+                if (packet.packet instanceof SLoginSuccessPacket) {
+                    loginPhase = false;
+                }
+                queue.put(packet);
+            }
+        } catch (EOFException ignored) {
+        } catch (IOException e) {
+            end = e;
+        } catch (InterruptedException ignored) {
+            // Closed
+        } catch (Throwable t) {
+            end = new IOException("Reading packets ahead failed", t);
+            throw t;
+        } finally {
+            if (!closed) {
+                try {
+                    queue.put(end);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the next packet, waiting for it to be read if necessary.
+     *
+     * @throws EOFException If the end of the replay has been reached or this has been closed
+     * @throws IOException  If reading the packet failed
+     */
+    PacketData next() throws IOException {
+        if (closed) {
+            throw new EOFException("Packet read-ahead has been closed");
+        }
+        Object next;
+        try {
+            next = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for next packet");
+        }
+        if (next == END) {
+            queue.offer(END); // So later calls fail as well
+            throw new EOFException();
+        }
+        if (next instanceof IOException) {
+            queue.offer(END); // Nothing more will be read after an error
+            throw (IOException) next;
+        }
+        return (PacketData) next;
+    }
+
+    /**
+     * Stops reading ahead and waits for the reader thread to finish, so the stream may be used by others.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+        queue.offer(END); // Wakes up anyone still waiting for the next packet
+    }
+}
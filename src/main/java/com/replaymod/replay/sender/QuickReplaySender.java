@@ -14,15 +14,11 @@ import com.replaymod.replay.ReplayModReplay;
 import com.replaymod.replay.ReplaySender;
 import com.replaymod.replaystudio.rar.RandomAccessReplay;
 import com.replaymod.replaystudio.replay.ReplayFile;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerAdapter;
 import io.netty.channel.ChannelHandlerContext;
 import net.minecraft.client.Minecraft;
 import net.minecraft.network.IPacket;
-import net.minecraft.network.PacketBuffer;
-import net.minecraft.network.PacketDirection;
 import net.minecraft.network.ProtocolType;
 import net.minecraft.network.play.server.SPlayerPositionLookPacket;
 import net.minecraft.network.play.server.SRespawnPacket;
@@ -71,50 +67,27 @@ public class QuickReplaySender extends ChannelHandlerAdapter implements ReplaySe
     private com.github.steveice10.netty.buffer.ByteBuf buf;
     private NetInput bufInput;
 
+    /**
+     * Decodes packets while they are dispatched, created on first use.
+     */
+    private PacketDecoder decoder;
+
     public QuickReplaySender(ReplayModReplay mod, ReplayFile replayFile) {
         this.mod = mod;
         this.replay = new RandomAccessReplay(replayFile, getPacketTypeRegistry(false)) {
-            private byte[] buf = new byte[0];
-            /*
-            private byte[] buf = new byte[0];
-            @Override
-            protected IPacket<?> decode(com.github.steveice10.netty.buffer.ByteBuf byteBuf) throws IOException {
-                int packetId = new ByteBufNetInput(byteBuf).readVarInt();
-                IPacket<?> mcPacket = ProtocolType.PLAY.getPacket(PacketDirection.CLIENTBOUND, packetId);
-                if (mcPacket != null) {
-                    int size = byteBuf.readableBytes();
-                    if (buf.length < size) {
-                        buf = new byte[size];
-                    }
-                    byteBuf.readBytes(buf, 0, size);
-                    ByteBuf wrappedBuf = Unpooled.wrappedBuffer(buf);
-                    wrappedBuf.writerIndex(size);
-                    mcPacket.readPacketData(new PacketBuffer(wrappedBuf));
-                }
-                return mcPacket;
-            }*/
-
             @Override
             protected void dispatch(com.replaymod.replaystudio.protocol.Packet packet) {
-                com.github.steveice10.netty.buffer.ByteBuf byteBuf = packet.getBuf();
-                int size = byteBuf.readableBytes();
-                if (buf.length < size) {
-                    buf = new byte[size];
+                if (decoder == null) {
+                    decoder = new PacketDecoder();
                 }
-                byteBuf.getBytes(byteBuf.readerIndex(), buf, 0, size);
-                ByteBuf wrappedBuf = Unpooled.wrappedBuffer(buf);
-                wrappedBuf.writerIndex(size);
-                PacketBuffer packetByteBuf = new PacketBuffer(wrappedBuf);
-
                 IPacket<?> mcPacket;
-                mcPacket = ProtocolType.PLAY.getPacket(PacketDirection.CLIENTBOUND, packet.getId());
+                try {
+                    mcPacket = decoder.decode(ProtocolType.PLAY, packet);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
                 if (mcPacket != null) {
-                    try {
-                        mcPacket.readPacketData(packetByteBuf);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        return;
-                    }
                     ctx.fireChannelRead(packet);
                 }
             }
@@ -127,6 +100,10 @@ public class QuickReplaySender extends ChannelHandlerAdapter implements ReplaySe
 
     public void unregister() {
         eventHandler.unregister();
+        if (decoder != null) {
+            decoder.release();
+            decoder = null;
+        }
     }
 
     @Override
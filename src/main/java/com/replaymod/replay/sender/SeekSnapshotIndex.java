@@ -0,0 +1,301 @@
+package com.replaymod.replay.sender;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.replaymod.core.versions.MCVer;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.filter.SquashFilter;
+import com.replaymod.replaystudio.filter.StreamFilter;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.stream.IteratorStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.replaymod.core.versions.MCVer.getPacketTypeRegistry;
+import static com.replaymod.replay.ReplayModReplay.LOGGER;
+
+/**
+ * Snapshots of the world state taken at regular intervals of a replay, so the {@link FullReplaySender} can jump
+ * backwards without sending all packets from the very beginning again.
+ * <p>
+ * Each snapshot consists of all packets up to its time squashed into the fewest packets which reproduce the same
+ * state, and of the number of packets in the replay it replaces. The snapshots are built in the background once
+ * the replay is first seeked backwards, and stored in the cache folder of the replay; the ones already built can be
+ * used while the rest are still being built.
+ * <p>
+ * There are at most {@link #MAX_SNAPSHOTS} snapshots, the interval is widened for long replays. No further snapshots
+ * are taken once one of them exceeds {@link #MAX_SNAPSHOT_BYTES}, later ones would only be larger.
+ */
+class SeekSnapshotIndex {
+    private static final String INDEX_CACHE = "seekSnapshots.json";
+    private static final String SNAPSHOT_CACHE = "seekSnapshot%d.bin";
+    private static final int VERSION = 2;
+    private static final int MAX_SNAPSHOTS = 32;
+    private static final long MAX_SNAPSHOT_BYTES = 64 << 20;
+
+    private final ReplayFile replayFile;
+    private final int interval;
+    private final List<Snapshot> snapshots = new ArrayList<>();
+    private volatile boolean cancelled;
+    /**
+     * Whether the snapshots have been loaded from the cache or are being built, only accessed while synchronized.
+     */
+    private boolean started;
+
+    /**
+     * @param interval minimum time between two snapshots in milliseconds
+     */
+    SeekSnapshotIndex(ReplayFile replayFile, int interval) throws IOException {
+        this.replayFile = replayFile;
+        int duration = replayFile.getMetaData().getDuration();
+        this.interval = Math.max(interval, (duration + MAX_SNAPSHOTS - 1) / MAX_SNAPSHOTS);
+    }
+
+    /**
+     * Loads the snapshots from the cache if they have been built before.
+     */
+    synchronized void load() {
+        try {
+            Index index = readIndex();
+            if (index != null) {
+                snapshots.addAll(index.snapshots);
+                started = true;
+            }
+        } catch (IOException | JsonParseException e) {
+            LOGGER.warn("Failed to read seek snapshot index, it will be rebuilt:", e);
+        }
+    }
+
+    /**
+     * Starts building the snapshots in the background unless they have been loaded or are being built already.
+     */
+    synchronized void startBuilding() {
+        if (started || cancelled) {
+            return;
+        }
+        started = true;
+        Thread thread = new Thread(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                build();
+                if (!cancelled) {
+                    LOGGER.info("Built seek snapshots in " + (System.currentTimeMillis() - start) + "ms");
+                }
+            } catch (Throwable t) {
+                if (!cancelled) {
+                    LOGGER.error("Building seek snapshots:", t);
+                }
+            }
+        }, "replaymod-seek-snapshots");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops building snapshots, e.g. because the replay has been closed.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return the latest snapshot which was taken at or before the given time, or {@code null} if there is none
+     */
+    synchronized Snapshot getLatest(int time) {
+        Snapshot latest = null;
+        for (Snapshot snapshot : snapshots) {
+            if (snapshot.time > time) {
+                break;
+            }
+            latest = snapshot;
+        }
+        return latest;
+    }
+
+    /**
+     * @return the packets of the given snapshot, encoded as expected by {@link FullReplaySender#channelRead}
+     */
+    List<byte[]> read(Snapshot snapshot) throws IOException {
+        Optional<InputStream> optIn = replayFile.getCache(String.format(SNAPSHOT_CACHE, snapshot.time));
+        if (!optIn.isPresent()) {
+            throw new IOException("Seek snapshot at " + snapshot.time + "ms is missing from the cache");
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(optIn.get())))) {
+            int count = in.readInt();
+            List<byte[]> packets = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                packets.add(bytes);
+            }
+            return packets;
+        }
+    }
+
+    private Index readIndex() throws IOException {
+        Optional<InputStream> optIn = replayFile.getCache(INDEX_CACHE);
+        if (!optIn.isPresent()) {
+            return null;
+        }
+        String json;
+        try (InputStream in = optIn.get()) {
+            json = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        Index index = new Gson().fromJson(json, Index.class);
+        if (index == null || index.snapshots == null
+                || index.version != VERSION
+                || index.interval != interval
+                || index.protocolVersion != MCVer.getProtocolVersion()
+                || index.duration != replayFile.getMetaData().getDuration()) {
+            return null;
+        }
+        return index;
+    }
+
+    private void build() throws IOException {
+        // Login packets are not squashed but kept as they are, the client has to go through the login phase
+        // before any of the squashed packets can be sent
+        List<byte[]> loginPackets = new ArrayList<>();
+        boolean loginPhase = true;
+        SquashFilter squashFilter = new SquashFilter(null, null, null);
+        int packetIndex = 0;
+        int lastTime = 0;
+        int nextSnapshot = interval;
+        try (ReplayInputStream in = replayFile.getPacketData(getPacketTypeRegistry(true))) {
+            PacketData data;
+            while (!cancelled && (data = in.readPacket()) != null) {
+                int time = (int) data.getTime();
+                if (!loginPhase && time >= nextSnapshot) {
+                    if (!writeSnapshot(squashFilter, loginPackets, lastTime, packetIndex)) {
+                        data.release();
+                        break;
+                    }
+                    nextSnapshot = time - time % interval + interval;
+                }
+                if (loginPhase) {
+                    Packet packet = data.getPacket();
+                    loginPackets.add(FullReplaySender.encodePacket(packet));
+                    loginPhase = packet.getType() != PacketType.LoginSuccess;
+                } else {
+                    squashFilter.onPacket(null, data);
+                }
+                data.release();
+                lastTime = time;
+                packetIndex++;
+            }
+        } finally {
+            squashFilter.release();
+        }
+        if (cancelled) {
+            return;
+        }
+
+        Index index = new Index();
+        index.version = VERSION;
+        index.interval = interval;
+        index.protocolVersion = MCVer.getProtocolVersion();
+        index.duration = replayFile.getMetaData().getDuration();
+        synchronized (this) {
+            index.snapshots = new ArrayList<>(snapshots);
+        }
+        try (OutputStream out = replayFile.writeCache(INDEX_CACHE)) {
+            out.write(new Gson().toJson(index).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * @return {@code false} if no snapshot was written and no further ones should be, because there are already
+     * {@link #MAX_SNAPSHOTS} or this one would be too large
+     */
+    private boolean writeSnapshot(SquashFilter squashFilter, List<byte[]> loginPackets,
+                                  int time, int packetIndex) throws IOException {
+        synchronized (this) {
+            if (snapshots.size() >= MAX_SNAPSHOTS) {
+                return false;
+            }
+        }
+
+        List<PacketData> packets = new ArrayList<>();
+        List<byte[]> encoded = new ArrayList<>(loginPackets);
+        long size = 0;
+        for (byte[] bytes : loginPackets) {
+            size += bytes.length;
+        }
+        try {
+            squashFilter.copy().onEnd(new IteratorStream(packets.listIterator(), (StreamFilter) null), time);
+            for (PacketData packet : packets) {
+                byte[] bytes = FullReplaySender.encodePacket(packet.getPacket());
+                encoded.add(bytes);
+                size += bytes.length;
+                if (size > MAX_SNAPSHOT_BYTES) {
+                    LOGGER.info("Seek snapshot at {}ms exceeds {} bytes, not taking any further snapshots",
+                            time, MAX_SNAPSHOT_BYTES);
+                    return false;
+                }
+            }
+        } finally {
+            packets.forEach(PacketData::release);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(replayFile.writeCache(String.format(SNAPSHOT_CACHE, time)))))) {
+            out.writeInt(encoded.size());
+            for (byte[] bytes : encoded) {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        synchronized (this) {
+            snapshots.add(new Snapshot(time, packetIndex));
+        }
+        return true;
+    }
+
+    static class Snapshot {
+        /**
+         * Time of the last packet included in this snapshot.
+         */
+        private int time;
+        /**
+         * Number of packets at the start of the replay which are included in this snapshot.
+         */
+        private int packetIndex;
+
+        Snapshot(int time, int packetIndex) {
+            this.time = time;
+            this.packetIndex = packetIndex;
+        }
+
+        int getTime() {
+            return time;
+        }
+
+        int getPacketIndex() {
+            return packetIndex;
+        }
+    }
+
+    private static class Index {
+        private int version;
+        private int interval;
+        private int protocolVersion;
+        private int duration;
+        private List<Snapshot> snapshots;
+    }
+}